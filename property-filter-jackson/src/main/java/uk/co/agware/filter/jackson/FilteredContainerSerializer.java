@@ -0,0 +1,170 @@
+package uk.co.agware.filter.jackson;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.WritableTypeId;
+import com.fasterxml.jackson.databind.BeanProperty;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+import com.fasterxml.jackson.databind.ser.ContextualSerializer;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import uk.co.agware.filter.PropertyFilter;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Wraps the standard serializer of collections, arrays and maps that can hold filter targets, so they are
+ * written with the same rules as {@link PropertyFilter#parseObjectForReturn(Object, String, String)}.
+ * Containers that don't hold any filter targets, such as a map of plain values declared as holding {@code Object},
+ * are written by the standard serializer and don't need a group to be set.
+ * When the filter doesn't filter collections on load the standard serializer writes the container out in full.
+ * Otherwise null elements, and elements of a class the group has no access to, are left out of collections
+ * and arrays, and map entries holding a value the group has no access to are left out. Null map values are kept,
+ * and map values of classes the group has no access set for are written out in full.
+ */
+class FilteredContainerSerializer extends StdSerializer<Object> implements ContextualSerializer {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JsonSerializer<Object> delegate;
+    private final transient PropertyFilter propertyFilter;
+
+    @SuppressWarnings("unchecked")
+    FilteredContainerSerializer(JsonSerializer<?> delegate, PropertyFilter propertyFilter) {
+        super(Object.class);
+        this.delegate = (JsonSerializer<Object>) delegate;
+        this.propertyFilter = propertyFilter;
+    }
+
+    @Override
+    public JsonSerializer<?> createContextual(SerializerProvider provider, BeanProperty property) throws JsonMappingException {
+        JsonSerializer<?> contextual = provider.handlePrimaryContextualization(delegate, property);
+        return contextual == delegate ? this : new FilteredContainerSerializer(contextual, propertyFilter);
+    }
+
+    @Override
+    public boolean isEmpty(SerializerProvider provider, Object value) {
+        return delegate.isEmpty(provider, value);
+    }
+
+    @Override
+    public void serialize(Object value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+        if(!needsFiltering(value)){
+            delegate.serialize(value, gen, provider);
+            return;
+        }
+        if(isUnfiltered(provider)){
+            boolean marked = PermissionBeanSerializer.markUnfiltered(provider);
+            try {
+                delegate.serialize(value, gen, provider);
+            } finally {
+                if(marked) PermissionBeanSerializer.clearUnfiltered(provider);
+            }
+            return;
+        }
+        boolean map = value instanceof Map;
+        if(map){
+            gen.writeStartObject(value);
+        }
+        else {
+            gen.writeStartArray();
+        }
+        writeContents(value, gen, provider);
+        if(map){
+            gen.writeEndObject();
+        }
+        else {
+            gen.writeEndArray();
+        }
+    }
+
+    @Override
+    public void serializeWithType(Object value, JsonGenerator gen, SerializerProvider provider, TypeSerializer typeSer) throws IOException {
+        if(!needsFiltering(value)){
+            delegate.serializeWithType(value, gen, provider, typeSer);
+            return;
+        }
+        if(isUnfiltered(provider)){
+            boolean marked = PermissionBeanSerializer.markUnfiltered(provider);
+            try {
+                delegate.serializeWithType(value, gen, provider, typeSer);
+            } finally {
+                if(marked) PermissionBeanSerializer.clearUnfiltered(provider);
+            }
+            return;
+        }
+        gen.setCurrentValue(value);
+        WritableTypeId typeId = typeSer.writeTypePrefix(gen, typeSer.typeId(value, value instanceof Map ? JsonToken.START_OBJECT : JsonToken.START_ARRAY));
+        writeContents(value, gen, provider);
+        typeSer.writeTypeSuffix(gen, typeId);
+    }
+
+    private boolean isUnfiltered(SerializerProvider provider){
+        return PermissionBeanSerializer.isUnfiltered(provider) || !propertyFilter.isFilterCollectionOnLoad();
+    }
+
+    /* Containers without any filter targets in them are left to the standard serializer */
+    private boolean needsFiltering(Object value){
+        Iterable<?> values;
+        if(value instanceof Map) values = ((Map<?, ?>) value).values();
+        else if(value instanceof Collection) values = (Collection<?>) value;
+        else values = Arrays.asList((Object[]) value);
+        for(Object o : values){
+            if(o != null && PermissionSerializerModifier.isFilterTarget(o.getClass(), propertyFilter)) return true;
+        }
+        return false;
+    }
+
+    private void writeContents(Object value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+        String groupName = PermissionBeanSerializer.getGroupName(provider, value.getClass());
+        Set<String> classNames = propertyFilter.getClassNames(groupName);
+        if(value instanceof Map){
+            writeEntries((Map<?, ?>) value, groupName, classNames, gen, provider);
+            return;
+        }
+        Iterable<?> elements = value instanceof Collection ? (Collection<?>) value : Arrays.asList((Object[]) value);
+        for(Object element : elements){
+            if(element == null || isHidden(element, groupName, classNames)) continue;
+            provider.defaultSerializeValue(element, gen);
+        }
+    }
+
+    private void writeEntries(Map<?, ?> map, String groupName, Set<String> classNames, JsonGenerator gen, SerializerProvider provider) throws IOException {
+        for(Map.Entry<?, ?> e : map.entrySet()){
+            Object value = e.getValue();
+            if(value != null && isHidden(value, groupName, classNames)) continue;
+            Object key = e.getKey();
+            if(key == null){
+                provider.findNullKeySerializer(provider.constructType(Object.class), null).serialize(null, gen, provider);
+            }
+            else {
+                provider.findKeySerializer(key.getClass(), null).serialize(key, gen, provider);
+            }
+            if(value == null){
+                gen.writeNull();
+            }
+            else if(classNames.contains(value.getClass().getName())){
+                provider.defaultSerializeValue(value, gen);
+            }
+            else {
+                boolean marked = PermissionBeanSerializer.markUnfiltered(provider);
+                try {
+                    provider.defaultSerializeValue(value, gen);
+                } finally {
+                    if(marked) PermissionBeanSerializer.clearUnfiltered(provider);
+                }
+            }
+        }
+    }
+
+    /* Values of a class the group has no access to are left out rather than written as null */
+    private boolean isHidden(Object value, String groupName, Set<String> classNames){
+        return classNames.contains(value.getClass().getName()) && propertyFilter.getReadableFields(value.getClass(), groupName) == null;
+    }
+}
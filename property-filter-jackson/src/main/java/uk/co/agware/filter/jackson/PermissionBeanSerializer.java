@@ -0,0 +1,267 @@
+package uk.co.agware.filter.jackson;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+import com.fasterxml.jackson.databind.ser.BeanPropertyWriter;
+import com.fasterxml.jackson.databind.ser.impl.ObjectIdWriter;
+import com.fasterxml.jackson.databind.ser.std.BeanSerializerBase;
+import uk.co.agware.filter.PropertyFilter;
+import uk.co.agware.filter.data.AccessType;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A bean serializer that only writes out the properties the current group is able
+ * to read, these are the fields from {@link PropertyFilter#getReadableFields(Class, String)} so any
+ * missing permissions are handled by the filter's {@link uk.co.agware.filter.MissingPermissionPolicy}.
+ * The readable writers are worked out once for each group and cached against the list of fields they
+ * were built from, when the groups in the {@link PropertyFilter} are refreshed the list changes and
+ * the cached writers are rebuilt on next use.
+ *
+ * Related objects follow the same rules as {@link PropertyFilter#parseObjectForReturn(Object, String, String)},
+ * when the filter doesn't filter relations on load, or the related class has no access set for the group,
+ * the related object is written out in full. Collections, arrays and maps are handled by {@link FilteredContainerSerializer}.
+ *
+ * Objects of a class the group has {@link AccessType#NO_ACCESS} to are written as {@code null}.
+ * Properties that don't have a permission defined, such as calculated getters, are never written.
+ */
+class PermissionBeanSerializer extends BeanSerializerBase {
+
+    private static final long serialVersionUID = 1L;
+
+    // Set while writing a value that the filter would return without filtering it, covering everything inside it as well
+    private static final String UNFILTERED_ATTRIBUTE = PermissionBeanSerializer.class.getName() + ".unfiltered";
+
+    private final transient PropertyFilter propertyFilter;
+    private final Map<String, String> fieldNames;
+    private final transient Map<String, GroupWriters> writersByGroup = new ConcurrentHashMap<>();
+
+    PermissionBeanSerializer(BeanSerializerBase src, PropertyFilter propertyFilter, Map<String, String> fieldNames) {
+        super(src);
+        this.propertyFilter = propertyFilter;
+        this.fieldNames = fieldNames;
+    }
+
+    private PermissionBeanSerializer(PermissionBeanSerializer src, ObjectIdWriter objectIdWriter, Object filterId) {
+        super(src, objectIdWriter, filterId);
+        this.propertyFilter = src.propertyFilter;
+        this.fieldNames = src.fieldNames;
+    }
+
+    private PermissionBeanSerializer(PermissionBeanSerializer src, Set<String> toIgnore) {
+        super(src, toIgnore);
+        this.propertyFilter = src.propertyFilter;
+        this.fieldNames = src.fieldNames;
+    }
+
+    @Override
+    public void serialize(Object bean, JsonGenerator gen, SerializerProvider provider) throws IOException {
+        BeanPropertyWriter[] writers = getWriters(provider);
+        if(writers == null){
+            gen.writeNull();
+            return;
+        }
+        if(_objectIdWriter != null){
+            gen.setCurrentValue(bean);
+            _serializeWithObjectId(bean, gen, provider, true); // Calls back into serializeFields
+            return;
+        }
+        gen.writeStartObject(bean);
+        if(_propertyFilterId != null){
+            serializeFieldsFiltered(bean, gen, provider);
+        }
+        else {
+            writeFields(bean, writers, gen, provider);
+        }
+        gen.writeEndObject();
+    }
+
+    @Override
+    public void serializeWithType(Object bean, JsonGenerator gen, SerializerProvider provider, TypeSerializer typeSer) throws IOException {
+        if(getWriters(provider) == null){
+            gen.writeNull();
+            return;
+        }
+        super.serializeWithType(bean, gen, provider, typeSer);
+    }
+
+    @Override
+    protected void serializeFields(Object bean, JsonGenerator gen, SerializerProvider provider) throws IOException {
+        BeanPropertyWriter[] writers = getWriters(provider);
+        if(writers != null){
+            writeFields(bean, writers, gen, provider);
+        }
+    }
+
+    @Override
+    protected void serializeFieldsFiltered(Object bean, JsonGenerator gen, SerializerProvider provider) throws IOException {
+        BeanPropertyWriter[] writers = getWriters(provider);
+        com.fasterxml.jackson.databind.ser.PropertyFilter filter = findPropertyFilter(provider, _propertyFilterId, bean);
+        if(writers == null) return;
+        if(filter == null){
+            writeFields(bean, writers, gen, provider);
+            return;
+        }
+        try {
+            Set<String> classNames = isUnfiltered(provider) ? null : propertyFilter.getClassNames(getGroupName(provider, handledType()));
+            for(BeanPropertyWriter writer : writers){
+                writeField(bean, writer, classNames, filter, gen, provider);
+            }
+            if(_anyGetterWriter != null){
+                _anyGetterWriter.getAndFilter(bean, gen, provider, filter);
+            }
+        } catch (Exception e) {
+            wrapAndThrow(provider, e, bean, "[filtered]");
+        }
+    }
+
+    private void writeFields(Object bean, BeanPropertyWriter[] writers, JsonGenerator gen, SerializerProvider provider) throws IOException {
+        String name = "[anySetter]";
+        try {
+            Set<String> classNames = isUnfiltered(provider) ? null : propertyFilter.getClassNames(getGroupName(provider, handledType()));
+            for(BeanPropertyWriter writer : writers){
+                name = writer.getName();
+                writeField(bean, writer, classNames, null, gen, provider);
+            }
+            if(_anyGetterWriter != null){
+                _anyGetterWriter.getAndSerialize(bean, gen, provider);
+            }
+        } catch (Exception e) {
+            wrapAndThrow(provider, e, bean, name);
+        }
+    }
+
+    /*
+     * Writes a single property, a related object is written without filtering when the filter doesn't
+     * filter relations on load or doesn't know its class. classNames is null when already unfiltered.
+     */
+    private void writeField(Object bean, BeanPropertyWriter writer, Set<String> classNames, com.fasterxml.jackson.databind.ser.PropertyFilter filter,
+                            JsonGenerator gen, SerializerProvider provider) throws Exception {
+        boolean marked = classNames != null && isUnfilteredRelation(bean, writer, classNames) && markUnfiltered(provider);
+        try {
+            if(filter == null){
+                writer.serializeAsField(bean, gen, provider);
+            }
+            else {
+                filter.serializeAsField(bean, gen, provider, writer);
+            }
+        } finally {
+            if(marked) clearUnfiltered(provider);
+        }
+    }
+
+    /* Collections, arrays and maps decide for themselves, the value is only read for properties that could hold a related object */
+    private boolean isUnfilteredRelation(Object bean, BeanPropertyWriter writer, Set<String> classNames) throws Exception {
+        Class<?> type = writer.getType().getRawClass();
+        if(type.isPrimitive() || type.isArray() || Collection.class.isAssignableFrom(type) || Map.class.isAssignableFrom(type) || propertyFilter.isIgnoredClass(type)){
+            return false;
+        }
+        if(!propertyFilter.isFilterRelationsOnLoad()) return true;
+        Object value = writer.get(bean);
+        return value != null && !classNames.contains(value.getClass().getName());
+    }
+
+    /* Returns the writers the group can read, or null if the group has no access to the class at all */
+    private BeanPropertyWriter[] getWriters(SerializerProvider provider) throws JsonMappingException {
+        // Views change the set of writers being used, so aren't cached
+        boolean view = provider.getActiveView() != null && _filteredProps != null;
+        if(isUnfiltered(provider)) return view ? _filteredProps : _props;
+
+        String groupName = getGroupName(provider, handledType());
+        List<Field> readableFields = propertyFilter.getReadableFields(handledType(), groupName);
+        if(readableFields == null) return null;
+        if(view) return buildWriters(readableFields, _filteredProps);
+
+        GroupWriters cached = writersByGroup.get(groupName);
+        if(cached == null || cached.readableFields != readableFields){
+            cached = new GroupWriters(readableFields, buildWriters(readableFields, _props));
+            writersByGroup.put(groupName, cached);
+        }
+        return cached.writers;
+    }
+
+    private BeanPropertyWriter[] buildWriters(List<Field> readableFields, BeanPropertyWriter[] allWriters){
+        Set<String> readable = new HashSet<>();
+        for(Field f : readableFields){
+            readable.add(f.getName());
+        }
+        List<BeanPropertyWriter> writers = new ArrayList<>(allWriters.length);
+        for(BeanPropertyWriter writer : allWriters){
+            if(writer == null) continue;
+            String fieldName = fieldNames.getOrDefault(writer.getName(), writer.getName());
+            if(readable.contains(fieldName)){
+                writers.add(writer);
+            }
+        }
+        return writers.toArray(new BeanPropertyWriter[writers.size()]);
+    }
+
+    /* Keep the permission handling when Jackson creates modified copies of the serializer */
+    @Override
+    public BeanSerializerBase withObjectIdWriter(ObjectIdWriter objectIdWriter) {
+        return new PermissionBeanSerializer(this, objectIdWriter, _propertyFilterId);
+    }
+
+    @Override
+    protected BeanSerializerBase withIgnorals(Set<String> toIgnore) {
+        return new PermissionBeanSerializer(this, toIgnore);
+    }
+
+    @Override
+    public BeanSerializerBase withFilterId(Object filterId) {
+        return new PermissionBeanSerializer(this, _objectIdWriter, filterId);
+    }
+
+    /* Array shaped output isn't supported, the bean is always written as an object */
+    @Override
+    protected BeanSerializerBase asArraySerializer() {
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "PermissionBeanSerializer for " + handledType().getName();
+    }
+
+    /* Returns the group being filtered for, failing if one hasn't been set */
+    static String getGroupName(SerializerProvider provider, Class<?> type) throws JsonMappingException {
+        Object group = provider.getAttribute(PropertyFilterModule.GROUP_ATTRIBUTE);
+        if(group == null){
+            throw JsonMappingException.from(provider, String.format("No group set for filtering class %s, use PropertyFilterModule.writerForGroup()", type.getName()));
+        }
+        return group.toString();
+    }
+
+    /* Whether the value being written is one the filter would return without filtering */
+    static boolean isUnfiltered(SerializerProvider provider){
+        return provider.getAttribute(UNFILTERED_ATTRIBUTE) != null;
+    }
+
+    /* Marks everything written until clearUnfiltered as unfiltered, returns false if it already was */
+    static boolean markUnfiltered(SerializerProvider provider){
+        if(isUnfiltered(provider)) return false;
+        provider.setAttribute(UNFILTERED_ATTRIBUTE, Boolean.TRUE);
+        return true;
+    }
+
+    static void clearUnfiltered(SerializerProvider provider){
+        provider.setAttribute(UNFILTERED_ATTRIBUTE, null);
+    }
+
+    /* The readable writers for a group, along with the fields they were built from */
+    private static final class GroupWriters {
+
+        private final List<Field> readableFields;
+        private final BeanPropertyWriter[] writers;
+
+        GroupWriters(List<Field> readableFields, BeanPropertyWriter[] writers) {
+            this.readableFields = readableFields;
+            this.writers = writers;
+        }
+    }
+}
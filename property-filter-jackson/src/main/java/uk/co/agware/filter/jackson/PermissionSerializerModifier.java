@@ -0,0 +1,79 @@
+package uk.co.agware.filter.jackson;
+
+import com.fasterxml.jackson.databind.BeanDescription;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializationConfig;
+import com.fasterxml.jackson.databind.introspect.BeanPropertyDefinition;
+import com.fasterxml.jackson.databind.ser.BeanSerializer;
+import com.fasterxml.jackson.databind.ser.BeanSerializerModifier;
+import com.fasterxml.jackson.databind.ser.std.BeanSerializerBase;
+import com.fasterxml.jackson.databind.type.ArrayType;
+import com.fasterxml.jackson.databind.type.CollectionType;
+import com.fasterxml.jackson.databind.type.MapType;
+import uk.co.agware.filter.PropertyFilter;
+import uk.co.agware.filter.annotations.FilterTarget;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Replaces the standard {@link BeanSerializer} of each {@link FilterTarget} class
+ * with a {@link PermissionBeanSerializer}. Classes that are not filter targets,
+ * or that the {@link PropertyFilter} has been told to ignore, are left alone.
+ * Collections, arrays and maps whose content type is a filter target, or could be one,
+ * are wrapped in a {@link FilteredContainerSerializer}.
+ */
+class PermissionSerializerModifier extends BeanSerializerModifier {
+
+    private final PropertyFilter propertyFilter;
+
+    PermissionSerializerModifier(PropertyFilter propertyFilter) {
+        this.propertyFilter = propertyFilter;
+    }
+
+    @Override
+    public JsonSerializer<?> modifySerializer(SerializationConfig config, BeanDescription beanDesc, JsonSerializer<?> serializer) {
+        Class<?> beanClass = beanDesc.getBeanClass();
+        if(!(serializer instanceof BeanSerializer) || !isFilterTarget(beanClass, propertyFilter)){
+            return serializer;
+        }
+        // Permissions are stored against field names, so map back from any renamed JSON properties
+        Map<String, String> fieldNames = new HashMap<>();
+        for(BeanPropertyDefinition property : beanDesc.findProperties()){
+            fieldNames.put(property.getName(), property.getInternalName());
+        }
+        return new PermissionBeanSerializer((BeanSerializerBase) serializer, propertyFilter, fieldNames);
+    }
+
+    @Override
+    public JsonSerializer<?> modifyCollectionSerializer(SerializationConfig config, CollectionType valueType, BeanDescription beanDesc, JsonSerializer<?> serializer) {
+        return wrapContainer(valueType.getContentType(), serializer);
+    }
+
+    @Override
+    public JsonSerializer<?> modifyArraySerializer(SerializationConfig config, ArrayType valueType, BeanDescription beanDesc, JsonSerializer<?> serializer) {
+        return wrapContainer(valueType.getContentType(), serializer);
+    }
+
+    @Override
+    public JsonSerializer<?> modifyMapSerializer(SerializationConfig config, MapType valueType, BeanDescription beanDesc, JsonSerializer<?> serializer) {
+        return wrapContainer(valueType.getContentType(), serializer);
+    }
+
+    /*
+     * Containers declared as holding Object are wrapped too, as that is all that's known of collections written
+     * directly, they are only filtered when they turn out to hold a filter target
+     */
+    private JsonSerializer<?> wrapContainer(JavaType contentType, JsonSerializer<?> serializer){
+        Class<?> contentClass = contentType.getRawClass();
+        if(contentClass != Object.class && !isFilterTarget(contentClass, propertyFilter)){
+            return serializer;
+        }
+        return new FilteredContainerSerializer(serializer, propertyFilter);
+    }
+
+    static boolean isFilterTarget(Class<?> clazz, PropertyFilter propertyFilter){
+        return clazz.isAnnotationPresent(FilterTarget.class) && !propertyFilter.isIgnoredClass(clazz);
+    }
+}
@@ -0,0 +1,69 @@
+package uk.co.agware.filter.jackson;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import uk.co.agware.filter.PropertyFilter;
+
+/**
+ * Jackson module that applies the rules held in a {@link PropertyFilter} while an object is
+ * being serialized, so unreadable properties are skipped by {@link ObjectMapper#writeValue}
+ * directly rather than needing a filtered copy from {@link PropertyFilter#parseObjectForReturn(Object, String, String)}.
+ *
+ * The group to filter for is passed in as a serialization attribute, the simplest way
+ * to set this is with {@link #writerForGroup(ObjectMapper, String)} or {@link #writerForUser(ObjectMapper, String)}.
+ * Serializing a {@link uk.co.agware.filter.annotations.FilterTarget} class without a group
+ * set will fail rather than writing out every property.
+ *
+ * Created by registering the module on an {@link ObjectMapper}
+ * <pre>{@code
+ *     ObjectMapper mapper = new ObjectMapper().registerModule(new PropertyFilterModule(propertyFilter));
+ *     String json = PropertyFilterModule.writerForUser(mapper, username).writeValueAsString(entity);
+ * }</pre>
+ */
+public class PropertyFilterModule extends SimpleModule {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The serialization attribute holding the name of the group to filter for */
+    public static final String GROUP_ATTRIBUTE = PropertyFilterModule.class.getName() + ".group";
+
+    private final transient PropertyFilter propertyFilter;
+
+    public PropertyFilterModule(PropertyFilter propertyFilter) {
+        super(PropertyFilterModule.class.getSimpleName());
+        this.propertyFilter = propertyFilter;
+        setSerializerModifier(new PermissionSerializerModifier(propertyFilter));
+    }
+
+    /**
+     * Returns the {@link PropertyFilter} that the module gets its rules from
+     *
+     * @return The {@link PropertyFilter} used by the module
+     */
+    public PropertyFilter getPropertyFilter() {
+        return propertyFilter;
+    }
+
+    /**
+     * Returns an {@link ObjectWriter} that will filter values for the given group
+     *
+     * @param mapper The mapper that the module has been registered with
+     * @param groupName The group to filter for
+     * @return An {@link ObjectWriter} with the group attribute set
+     */
+    public static ObjectWriter writerForGroup(ObjectMapper mapper, String groupName) {
+        return mapper.writer().withAttribute(GROUP_ATTRIBUTE, groupName);
+    }
+
+    /**
+     * Finds the group of the user and then returns the result of {@link #writerForGroup(ObjectMapper, String)}
+     *
+     * @param mapper The mapper that the module has been registered with
+     * @param username The name of the user making the request
+     * @return An {@link ObjectWriter} with the group attribute set
+     */
+    public ObjectWriter writerForUser(ObjectMapper mapper, String username) {
+        return writerForGroup(mapper, propertyFilter.getUsersGroup(username));
+    }
+}
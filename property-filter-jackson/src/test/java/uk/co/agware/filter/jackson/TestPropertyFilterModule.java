@@ -0,0 +1,240 @@
+package uk.co.agware.filter.jackson;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.MapperFeature;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import uk.co.agware.filter.MissingPermissionPolicy;
+import uk.co.agware.filter.PropertyFilter;
+import uk.co.agware.filter.PropertyFilterBuilder;
+import uk.co.agware.filter.data.AccessType;
+import uk.co.agware.filter.data.PermissionType;
+import uk.co.agware.filter.exceptions.MissingPermissionException;
+import uk.co.agware.filter.impl.AccessImpl;
+import uk.co.agware.filter.impl.DefaultClassFactory;
+import uk.co.agware.filter.impl.GroupImpl;
+import uk.co.agware.filter.jackson.classes.Account;
+import uk.co.agware.filter.jackson.classes.Customer;
+import uk.co.agware.filter.jackson.classes.Order;
+import uk.co.agware.filter.util.FilterUtil;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+public class TestPropertyFilterModule {
+
+    private FilterUtil filterUtil;
+    private PropertyFilter propertyFilter;
+    private ObjectMapper mapper;
+    private Order order;
+    private String username = "test";
+    private String groupName = "Test Group";
+
+    @Before
+    public void setUp(){
+        filterUtil = new FilterUtil(new DefaultClassFactory());
+        propertyFilter = new PropertyFilterBuilder().filterUtil(filterUtil).build();
+        mapper = new ObjectMapper().registerModule(new PropertyFilterModule(propertyFilter))
+                                   .configure(MapperFeature.SORT_PROPERTIES_ALPHABETICALLY, true);
+        order = new Order("1", BigDecimal.TEN, new Customer("Bob", "1234"), Arrays.asList(new Customer("Alice", "5678")));
+    }
+
+    private void setGroup(AccessType accessType, PermissionType permissionType){
+        filterUtil.setDefaultAccessType(accessType);
+        filterUtil.setDefaultPermissionType(permissionType);
+        List<AccessImpl> accessList = filterUtil.getFullAccessList("uk.co.agware.filter.jackson.classes");
+        GroupImpl group = new GroupImpl();
+        group.setName(groupName);
+        group.setAccess(accessList);
+        group.setMembers(Collections.singletonList(username));
+        propertyFilter.setGroups(Collections.singletonList(group));
+    }
+
+    @Test
+    public void testReadPermission() throws JsonProcessingException {
+        setGroup(AccessType.READ, PermissionType.READ);
+        String json = PropertyFilterModule.writerForGroup(mapper, groupName).writeValueAsString(order);
+        Assert.assertEquals("{\"amount\":10,\"contacts\":[{\"name\":\"Alice\"}],\"customer\":{\"name\":\"Bob\"},\"id\":\"1\"}", json);
+    }
+
+    @Test
+    public void testNoPermission() throws JsonProcessingException {
+        setGroup(AccessType.READ, PermissionType.NO_ACCESS);
+        String json = PropertyFilterModule.writerForGroup(mapper, groupName).writeValueAsString(order);
+        Assert.assertEquals("{\"id\":\"1\"}", json);
+    }
+
+    @Test
+    public void testNoAccess() throws JsonProcessingException {
+        setGroup(AccessType.NO_ACCESS, PermissionType.READ);
+        String json = PropertyFilterModule.writerForGroup(mapper, groupName).writeValueAsString(order);
+        Assert.assertEquals("null", json);
+    }
+
+    @Test
+    public void testRefreshRebuildsWriters() throws JsonProcessingException {
+        PropertyFilterModule module = new PropertyFilterModule(propertyFilter);
+        setGroup(AccessType.READ, PermissionType.NO_ACCESS);
+        Assert.assertEquals("{\"id\":\"1\"}", module.writerForUser(mapper, username).writeValueAsString(order));
+        setGroup(AccessType.READ, PermissionType.READ);
+        Assert.assertEquals("{\"amount\":10,\"contacts\":[{\"name\":\"Alice\"}],\"customer\":{\"name\":\"Bob\"},\"id\":\"1\"}",
+                module.writerForUser(mapper, username).writeValueAsString(order));
+    }
+
+    @Test(expected = JsonMappingException.class)
+    public void testNoGroupSet() throws JsonProcessingException {
+        setGroup(AccessType.READ, PermissionType.READ);
+        mapper.writeValueAsString(order);
+    }
+
+    private PropertyFilter buildFilter(PropertyFilterBuilder builder, AccessType customerAccess, String missingCustomerPermission){
+        PropertyFilter filter = builder.filterUtil(filterUtil).build();
+        filterUtil.setDefaultAccessType(AccessType.READ);
+        filterUtil.setDefaultPermissionType(PermissionType.READ);
+        List<AccessImpl> accessList = filterUtil.getFullAccessList("uk.co.agware.filter.jackson.classes");
+        for(AccessImpl access : accessList){
+            if(access.getObjectClass().equals(Customer.class.getName())){
+                access.setAccess(customerAccess);
+                access.setPermissions(access.getPermissions().stream()
+                        .filter(p -> !p.getPropertyName().equals(missingCustomerPermission))
+                        .collect(Collectors.toList()));
+            }
+        }
+        GroupImpl group = new GroupImpl();
+        group.setName(groupName);
+        group.setAccess(accessList);
+        group.setMembers(Collections.singletonList(username));
+        filter.setGroups(Collections.singletonList(group));
+        return filter;
+    }
+
+    private Account getAccount(){
+        Map<String, Customer> contacts = new LinkedHashMap<>();
+        contacts.put("work", new Customer("Work", "4444"));
+        contacts.put("old", null);
+        return new Account("1", new Customer("Owner", "1111"), Arrays.asList(new Customer("User", "2222"), null),
+                new Customer[]{new Customer("Previous", "3333"), null}, contacts);
+    }
+
+    /*
+     * The module should write the same values as serializing the copy from parseObjectForReturn,
+     * the module leaves out unreadable properties where the copy has them as null so null fields are ignored
+     */
+    private void assertParity(PropertyFilter filter) throws IOException {
+        ObjectMapper filtered = new ObjectMapper().registerModule(new PropertyFilterModule(filter));
+        JsonNode expected = withoutNullFields(new ObjectMapper().valueToTree(filter.parseObjectForReturn(getAccount(), username, groupName)));
+        JsonNode actual = withoutNullFields(filtered.readTree(PropertyFilterModule.writerForGroup(filtered, groupName).writeValueAsString(getAccount())));
+        Assert.assertEquals(expected, actual);
+    }
+
+    private JsonNode withoutNullFields(JsonNode node){
+        if(node.isObject()){
+            Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+            while(fields.hasNext()){
+                Map.Entry<String, JsonNode> field = fields.next();
+                if(field.getValue().isNull()) fields.remove();
+                else withoutNullFields(field.getValue());
+            }
+        }
+        else if(node.isArray()){
+            node.forEach(this::withoutNullFields);
+        }
+        return node;
+    }
+
+    @Test
+    public void testContainers() throws JsonProcessingException {
+        setGroup(AccessType.READ, PermissionType.READ);
+        String json = PropertyFilterModule.writerForGroup(mapper, groupName).writeValueAsString(getAccount());
+        Assert.assertEquals("{\"contacts\":{\"work\":{\"name\":\"Work\"},\"old\":null},\"id\":\"1\"," +
+                "\"owner\":{\"name\":\"Owner\"},\"previousOwners\":[{\"name\":\"Previous\"}],\"users\":[{\"name\":\"User\"}]}", json);
+    }
+
+    @Test
+    public void testParity() throws IOException {
+        assertParity(buildFilter(new PropertyFilterBuilder(), AccessType.READ, null));
+    }
+
+    /* Values the group can't view are left out of collections, arrays and maps rather than written as null */
+    @Test
+    public void testParityNoAccessElements() throws IOException {
+        PropertyFilter filter = buildFilter(new PropertyFilterBuilder(), AccessType.NO_ACCESS, null);
+        assertParity(filter);
+        ObjectMapper filtered = new ObjectMapper().registerModule(new PropertyFilterModule(filter));
+        JsonNode json = filtered.readTree(PropertyFilterModule.writerForGroup(filtered, groupName).writeValueAsString(getAccount()));
+        Assert.assertEquals(0, json.get("users").size());
+        Assert.assertEquals(0, json.get("previousOwners").size());
+        Assert.assertEquals(1, json.get("contacts").size());
+    }
+
+    @Test
+    public void testParityUnfilteredCollections() throws IOException {
+        assertParity(buildFilter(new PropertyFilterBuilder().filterCollectionsOnLoad(false), AccessType.READ, null));
+    }
+
+    @Test
+    public void testParityUnfilteredRelations() throws IOException {
+        PropertyFilter filter = buildFilter(new PropertyFilterBuilder().filterRelationsOnLoad(false), AccessType.READ, null);
+        assertParity(filter);
+        ObjectMapper filtered = new ObjectMapper().registerModule(new PropertyFilterModule(filter));
+        JsonNode json = filtered.readTree(PropertyFilterModule.writerForGroup(filtered, groupName).writeValueAsString(getAccount()));
+        Assert.assertEquals("1111", json.get("owner").get("creditCard").asText());
+        Assert.assertFalse(json.get("users").get(0).has("creditCard"));
+    }
+
+    @Test
+    public void testParityMissingPermissionPolicy() throws IOException {
+        assertParity(buildFilter(new PropertyFilterBuilder().missingPermissionPolicy(MissingPermissionPolicy.DENY), AccessType.READ, "name"));
+        assertParity(buildFilter(new PropertyFilterBuilder().missingPermissionPolicy(MissingPermissionPolicy.DEFAULT), AccessType.READ, "name"));
+    }
+
+    @Test(expected = MissingPermissionException.class)
+    public void testMissingPermissionFails() throws IOException {
+        PropertyFilter filter = buildFilter(new PropertyFilterBuilder(), AccessType.READ, "name");
+        ObjectMapper filtered = new ObjectMapper().registerModule(new PropertyFilterModule(filter));
+        try {
+            PropertyFilterModule.writerForGroup(filtered, groupName).writeValueAsString(getAccount());
+        } catch (JsonMappingException e) {
+            throw (MissingPermissionException) e.getCause();
+        }
+    }
+
+    /* Registering the module mustn't change how values that aren't filter targets are written, or need a group */
+    @Test
+    public void testPlainContainersWithoutGroup() throws JsonProcessingException {
+        setGroup(AccessType.READ, PermissionType.READ);
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("a", 1);
+        map.put("b", null);
+        map.put("c", Arrays.asList("x", null));
+        Assert.assertEquals("{\"a\":1,\"b\":null,\"c\":[\"x\",null]}", mapper.writeValueAsString(map));
+        Assert.assertEquals("[\"a\",\"b\"]", mapper.writeValueAsString(Arrays.asList("a", "b")));
+        Assert.assertEquals("[\"x\"]", mapper.writeValueAsString(new Object[]{"x"}));
+        Assert.assertEquals("[1,2]", mapper.writeValueAsString(new int[]{1, 2}));
+    }
+
+    /* Containers declared as holding Object are filtered once they hold a filter target */
+    @Test
+    public void testObjectContainerHoldingFilterTargets() throws JsonProcessingException {
+        setGroup(AccessType.READ, PermissionType.READ);
+        List<Object> values = Arrays.asList("plain", new Customer("Bob", "1234"));
+        Assert.assertEquals("[\"plain\",{\"name\":\"Bob\"}]", PropertyFilterModule.writerForGroup(mapper, groupName).writeValueAsString(values));
+        try {
+            mapper.writeValueAsString(values);
+            Assert.fail("Expected the missing group to fail");
+        } catch (JsonMappingException e) {
+            Assert.assertTrue(e.getMessage().contains("No group set"));
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package uk.co.agware.filter.jackson.classes;
+
+import uk.co.agware.filter.annotations.FilterTarget;
+import uk.co.agware.filter.annotations.ReadOnly;
+
+import java.util.List;
+import java.util.Map;
+
+@FilterTarget("Account")
+public class Account {
+
+    @ReadOnly private String id;
+    private Customer owner;
+    private List<Customer> users;
+    private Customer[] previousOwners;
+    private Map<String, Customer> contacts;
+
+    public Account() {
+    }
+
+    public Account(String id, Customer owner, List<Customer> users, Customer[] previousOwners, Map<String, Customer> contacts) {
+        this.id = id;
+        this.owner = owner;
+        this.users = users;
+        this.previousOwners = previousOwners;
+        this.contacts = contacts;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public Customer getOwner() {
+        return owner;
+    }
+
+    public void setOwner(Customer owner) {
+        this.owner = owner;
+    }
+
+    public List<Customer> getUsers() {
+        return users;
+    }
+
+    public void setUsers(List<Customer> users) {
+        this.users = users;
+    }
+
+    public Customer[] getPreviousOwners() {
+        return previousOwners;
+    }
+
+    public void setPreviousOwners(Customer[] previousOwners) {
+        this.previousOwners = previousOwners;
+    }
+
+    public Map<String, Customer> getContacts() {
+        return contacts;
+    }
+
+    public void setContacts(Map<String, Customer> contacts) {
+        this.contacts = contacts;
+    }
+}
@@ -0,0 +1,35 @@
+package uk.co.agware.filter.jackson.classes;
+
+import uk.co.agware.filter.annotations.FilterTarget;
+import uk.co.agware.filter.annotations.NoAccess;
+
+@FilterTarget("Customer")
+public class Customer {
+
+    private String name;
+    @NoAccess private String creditCard;
+
+    public Customer() {
+    }
+
+    public Customer(String name, String creditCard) {
+        this.name = name;
+        this.creditCard = creditCard;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getCreditCard() {
+        return creditCard;
+    }
+
+    public void setCreditCard(String creditCard) {
+        this.creditCard = creditCard;
+    }
+}
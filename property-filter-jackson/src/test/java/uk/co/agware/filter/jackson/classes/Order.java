@@ -0,0 +1,64 @@
+package uk.co.agware.filter.jackson.classes;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import uk.co.agware.filter.annotations.FilterTarget;
+import uk.co.agware.filter.annotations.ReadOnly;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+@FilterTarget("Order")
+public class Order {
+
+    @ReadOnly private String id;
+    @JsonProperty("amount") private BigDecimal total;
+    private Customer customer;
+    private List<Customer> contacts;
+
+    public Order() {
+    }
+
+    public Order(String id, BigDecimal total, Customer customer, List<Customer> contacts) {
+        this.id = id;
+        this.total = total;
+        this.customer = customer;
+        this.contacts = contacts;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public BigDecimal getTotal() {
+        return total;
+    }
+
+    public void setTotal(BigDecimal total) {
+        this.total = total;
+    }
+
+    public Customer getCustomer() {
+        return customer;
+    }
+
+    public void setCustomer(Customer customer) {
+        this.customer = customer;
+    }
+
+    public List<Customer> getContacts() {
+        return contacts;
+    }
+
+    public void setContacts(List<Customer> contacts) {
+        this.contacts = contacts;
+    }
+
+    /* Calculated value with no backing field, so has no permission */
+    public String getSummary() {
+        return id + " " + total;
+    }
+}
@@ -0,0 +1,112 @@
+package uk.co.agware.filter;
+
+import uk.co.agware.filter.data.Access;
+import uk.co.agware.filter.data.Permission;
+import uk.co.agware.filter.data.PermissionType;
+import uk.co.agware.filter.exceptions.MissingPermissionException;
+import uk.co.agware.filter.util.FilterUtil;
+
+import java.lang.reflect.Field;
+import java.util.*;
+
+/**
+ * Whether each field of a class can be read or written by a group, worked out once from the
+ * group's {@link Access} so that filtering an object doesn't search the permissions for each field.
+ * Fields with no permission are resolved with the {@link MissingPermissionPolicy} when the plan is
+ * compiled, with the {@code FAIL} policy the exception is created up front and thrown whenever the
+ * field is used. Whatever the policy, the missing fields are logged through the filter's rate limited
+ * log once each time a plan is compiled.
+ */
+final class AccessPlan {
+
+    final Access<? extends Permission> access;
+    // The snapshot version of the groups the access was taken from
+    final long version;
+    // In the order returned by FilterUtil#getAllFields
+    final Field[] fields;
+    final boolean[] readable;
+    final boolean[] writable;
+    // The readable fields sorted by name, for writers that need a stable order
+    final List<Field> readableFields;
+    // The first missing permission with the FAIL policy, null if there aren't any
+    final MissingPermissionException missing;
+    private final MissingPermissionException[] missingFields;
+    private final Map<String, Integer> indexes;
+    private final FilterUtil filterUtil;
+    private final MissingPermissionPolicy policy;
+
+    private AccessPlan(Class<?> clazz, Access<? extends Permission> access, long version, FilterUtil filterUtil, MissingPermissionPolicy policy) {
+        this.access = access;
+        this.version = version;
+        this.filterUtil = filterUtil;
+        this.policy = policy;
+        Set<Field> allFields = filterUtil.getAllFields(clazz);
+        this.fields = allFields.toArray(new Field[allFields.size()]);
+        this.readable = new boolean[fields.length];
+        this.writable = new boolean[fields.length];
+        this.missingFields = new MissingPermissionException[fields.length];
+        this.indexes = new HashMap<>();
+        MissingPermissionException firstMissing = null;
+        List<String> missingNames = new ArrayList<>();
+        for(int i = 0; i < fields.length; i++){
+            String name = fields[i].getName();
+            indexes.put(name, i);
+            Permission permission = filterUtil.findPermission(name, access);
+            PermissionType type;
+            if(permission != null){
+                type = permission.getPermission();
+            }
+            else {
+                missingNames.add(name);
+                if(policy == MissingPermissionPolicy.FAIL){
+                    missingFields[i] = MissingPermissionException.forField(name, access.getObjectClass());
+                    if(firstMissing == null) firstMissing = missingFields[i];
+                    continue;
+                }
+                type = resolveMissing();
+            }
+            readable[i] = isReadable(type);
+            writable[i] = isWritable(type);
+        }
+        this.missing = firstMissing;
+        if(!missingNames.isEmpty()) filterUtil.logMissingPermissions(missingNames, access);
+        List<Field> sorted = new ArrayList<>();
+        for(int i = 0; i < fields.length; i++){
+            if(readable[i]) sorted.add(fields[i]);
+        }
+        sorted.sort(Comparator.comparing(Field::getName));
+        this.readableFields = Collections.unmodifiableList(sorted);
+    }
+
+    static AccessPlan compile(Class<?> clazz, Access<? extends Permission> access, long version, FilterUtil filterUtil, MissingPermissionPolicy policy){
+        return new AccessPlan(clazz, access, version, filterUtil, policy);
+    }
+
+    /* Whether a property can be read, properties without a field are looked up each time */
+    boolean isReadable(String propertyName){
+        Integer index = indexes.get(propertyName);
+        if(index == null) return isReadable(lookup(propertyName));
+        if(missingFields[index] != null) throw missingFields[index];
+        return readable[index];
+    }
+
+    private PermissionType lookup(String propertyName){
+        Permission permission = filterUtil.findPermission(propertyName, access);
+        if(permission != null) return permission.getPermission();
+        filterUtil.logMissingPermissions(Collections.singletonList(propertyName), access);
+        if(policy == MissingPermissionPolicy.FAIL) throw MissingPermissionException.forField(propertyName, access.getObjectClass());
+        return resolveMissing();
+    }
+
+    private PermissionType resolveMissing(){
+        return policy == MissingPermissionPolicy.DEFAULT ? filterUtil.getDefaultPermissionType() : PermissionType.NO_ACCESS;
+    }
+
+    private static boolean isReadable(PermissionType type){
+        return !type.equals(PermissionType.NO_ACCESS);
+    }
+
+    private static boolean isWritable(PermissionType type){
+        return !type.equals(PermissionType.NO_ACCESS) && !type.equals(PermissionType.READ);
+    }
+}
@@ -0,0 +1,13 @@
+package uk.co.agware.filter;
+
+/**
+ * How the {@link PropertyFilter} handles arrays that don't need their values filtered,
+ * such as primitive arrays or arrays of ignored classes. Arrays of filter targets are
+ * always filtered into a new array, the same way collections are.
+ */
+public enum ArrayPolicy {
+    /** The array is copied into a new array of the same type with {@link System#arraycopy} */
+    COPY,
+    /** The same array is used by both objects */
+    SHARE
+}
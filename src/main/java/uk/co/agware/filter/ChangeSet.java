@@ -0,0 +1,169 @@
+package uk.co.agware.filter;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The changes that saving one object over another would make, as found by
+ * {@link PropertyFilter#parseObjectForChangeSet(Object, Object, String, String)}. Each
+ * change has a {@link Type}, the path of the property that changed, and the old and new values.
+ *
+ * Paths follow the same format as {@link PropertyFilter#parseObjectForSavingChanges(Object, Object, String, String)},
+ * properties of related objects are dotted, {@code customer.name}, and properties of values inside
+ * collections include their position in the new collection, {@code lines[2].quantity}. Values being
+ * added to or removed from a collection are recorded against the path of the collection itself, map
+ * entries are recorded against their key, {@code prices[GBP]}.
+ *
+ * Changes are held in parallel arrays and read by index, so recording a change doesn't create
+ * an object for it.
+ */
+public final class ChangeSet {
+
+    /** The kind of change that was made */
+    public enum Type {
+        /** A property was given a new value */
+        SET,
+        /** A value was added to a collection, the new value is the value being added */
+        ADD,
+        /** A value was removed from a collection, the old value is the value being removed */
+        REMOVE
+    }
+
+    private static final Type[] TYPES = Type.values();
+    private static final int DEFAULT_CAPACITY = 8;
+
+    private byte[] types;
+    private String[] paths;
+    private Object[] oldValues;
+    private Object[] newValues;
+    private int size;
+
+    ChangeSet() {
+        this.types = new byte[DEFAULT_CAPACITY];
+        this.paths = new String[DEFAULT_CAPACITY];
+        this.oldValues = new Object[DEFAULT_CAPACITY];
+        this.newValues = new Object[DEFAULT_CAPACITY];
+    }
+
+    void add(Type type, String path, Object oldValue, Object newValue){
+        if(size == paths.length){
+            int capacity = size << 1;
+            types = Arrays.copyOf(types, capacity);
+            paths = Arrays.copyOf(paths, capacity);
+            oldValues = Arrays.copyOf(oldValues, capacity);
+            newValues = Arrays.copyOf(newValues, capacity);
+        }
+        types[size] = (byte) type.ordinal();
+        paths[size] = path;
+        oldValues[size] = oldValue;
+        newValues[size] = newValue;
+        size++;
+    }
+
+    /**
+     * Returns the number of changes in the set
+     *
+     * @return The number of changes
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns whether there are no changes in the set
+     *
+     * @return {@code true} if nothing would be changed
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the kind of change at the given position
+     *
+     * @param index The position of the change, in the order the changes were found
+     * @return The {@link Type} of the change
+     */
+    public Type getType(int index) {
+        checkIndex(index);
+        return TYPES[types[index]];
+    }
+
+    /**
+     * Returns the path of the property changed at the given position
+     *
+     * @param index The position of the change, in the order the changes were found
+     * @return The path of the property
+     */
+    public String getPath(int index) {
+        checkIndex(index);
+        return paths[index];
+    }
+
+    /**
+     * Returns the value of the property before the change at the given position
+     *
+     * @param index The position of the change, in the order the changes were found
+     * @return The old value, {@code null} for {@link Type#ADD} changes
+     */
+    public Object getOldValue(int index) {
+        checkIndex(index);
+        return oldValues[index];
+    }
+
+    /**
+     * Returns the value of the property after the change at the given position
+     *
+     * @param index The position of the change, in the order the changes were found
+     * @return The new value, {@code null} for {@link Type#REMOVE} changes
+     */
+    public Object getNewValue(int index) {
+        checkIndex(index);
+        return newValues[index];
+    }
+
+    /**
+     * Returns the position of the first change made to the given path
+     *
+     * @param path The path of the property
+     * @return The position of the change, or -1 if the property wasn't changed
+     */
+    public int indexOf(String path) {
+        for(int i = 0; i < size; i++){
+            if(paths[i].equals(path)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the paths of every property that has changed, a collection with
+     * values added or removed is only included once
+     *
+     * @return The changed paths, in the order they were found
+     */
+    public Set<String> getPaths() {
+        Set<String> result = new LinkedHashSet<>();
+        for(int i = 0; i < size; i++){
+            result.add(paths[i]);
+        }
+        return result;
+    }
+
+    private void checkIndex(int index){
+        if(index < 0 || index >= size){
+            throw new IndexOutOfBoundsException(String.format("Index %d, size %d", index, size));
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("ChangeSet{");
+        for(int i = 0; i < size; i++){
+            if(i > 0) sb.append(", ");
+            sb.append(TYPES[types[i]]).append(' ').append(paths[i]).append(": ")
+              .append(oldValues[i]).append(" -> ").append(newValues[i]);
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,180 @@
+package uk.co.agware.filter;
+
+/**
+ * A point in time copy of the statistics kept by a {@link PropertyFilter} about the groups
+ * it holds and the lock guarding them, returned by {@link PropertyFilter#getStats()}.
+ *
+ * Readers only wait for the lock while the groups are being changed, so {@link #getReadLockWaits()}
+ * and {@link #getMaxReadLockWaitNanos()} show how much the refreshes are stalling the calls filtering objects.
+ */
+public final class FilterStats {
+
+    private final long readLockWaits;
+    private final long readLockWaitNanos;
+    private final long maxReadLockWaitNanos;
+    private final long writeLocks;
+    private final long writeLockHoldNanos;
+    private final long maxWriteLockHoldNanos;
+    private final long lastWriteLockHoldNanos;
+    private final long refreshCount;
+    private final long snapshotVersion;
+    private final long snapshotAgeMillis;
+    private final long lastRefreshNanos;
+    private final int groupCount;
+    private final int userMappingCount;
+
+    FilterStats(GroupLock lock, long refreshCount, long snapshotVersion, long snapshotAgeMillis,
+                long lastRefreshNanos, int groupCount, int userMappingCount) {
+        this.readLockWaits = lock.getReadWaits();
+        this.readLockWaitNanos = lock.getReadWaitNanos();
+        this.maxReadLockWaitNanos = lock.getMaxReadWaitNanos();
+        this.writeLocks = lock.getWrites();
+        this.writeLockHoldNanos = lock.getWriteHoldNanos();
+        this.maxWriteLockHoldNanos = lock.getMaxWriteHoldNanos();
+        this.lastWriteLockHoldNanos = lock.getLastWriteHoldNanos();
+        this.refreshCount = refreshCount;
+        this.snapshotVersion = snapshotVersion;
+        this.snapshotAgeMillis = snapshotAgeMillis;
+        this.lastRefreshNanos = lastRefreshNanos;
+        this.groupCount = groupCount;
+        this.userMappingCount = userMappingCount;
+    }
+
+    /**
+     * Returns the number of times a reader couldn't take the lock straight away and had to wait for it
+     *
+     * @return The number of waits
+     */
+    public long getReadLockWaits() {
+        return readLockWaits;
+    }
+
+    /**
+     * Returns the total time readers have spent waiting for the lock
+     *
+     * @return The total wait in nanoseconds
+     */
+    public long getReadLockWaitNanos() {
+        return readLockWaitNanos;
+    }
+
+    /**
+     * Returns the longest time a reader has waited for the lock
+     *
+     * @return The longest wait in nanoseconds
+     */
+    public long getMaxReadLockWaitNanos() {
+        return maxReadLockWaitNanos;
+    }
+
+    /**
+     * Returns the number of times the lock has been taken for writing
+     *
+     * @return The number of writes
+     */
+    public long getWriteLocks() {
+        return writeLocks;
+    }
+
+    /**
+     * Returns the total time the lock has been held for writing
+     *
+     * @return The total hold time in nanoseconds
+     */
+    public long getWriteLockHoldNanos() {
+        return writeLockHoldNanos;
+    }
+
+    /**
+     * Returns the longest time the lock has been held for writing
+     *
+     * @return The longest hold time in nanoseconds
+     */
+    public long getMaxWriteLockHoldNanos() {
+        return maxWriteLockHoldNanos;
+    }
+
+    /**
+     * Returns how long the lock was held for the last time it was taken for writing
+     *
+     * @return The last hold time in nanoseconds
+     */
+    public long getLastWriteLockHoldNanos() {
+        return lastWriteLockHoldNanos;
+    }
+
+    /**
+     * Returns the number of times the groups have been replaced with {@link PropertyFilter#setGroups(java.util.List)}
+     *
+     * @return The number of refreshes
+     */
+    public long getRefreshCount() {
+        return refreshCount;
+    }
+
+    /**
+     * Returns the version of the groups currently in use, which goes up each time they are replaced
+     * or a user is added to or removed from a group
+     *
+     * @return The version, 0 if nothing has been set
+     */
+    public long getSnapshotVersion() {
+        return snapshotVersion;
+    }
+
+    /**
+     * Returns how long ago the groups currently in use were set
+     *
+     * @return The age in milliseconds, -1 if no groups have been set
+     */
+    public long getSnapshotAgeMillis() {
+        return snapshotAgeMillis;
+    }
+
+    /**
+     * Returns how long the last call to {@link PropertyFilter#setGroups(java.util.List)} took, including
+     * building the new groups before the lock was taken
+     *
+     * @return The time taken in nanoseconds, 0 if no groups have been set
+     */
+    public long getLastRefreshNanos() {
+        return lastRefreshNanos;
+    }
+
+    /**
+     * Returns the number of groups held by the filter
+     *
+     * @return The number of groups
+     */
+    public int getGroupCount() {
+        return groupCount;
+    }
+
+    /**
+     * Returns the number of users mapped to a group
+     *
+     * @return The number of users
+     */
+    public int getUserMappingCount() {
+        return userMappingCount;
+    }
+
+    @Override
+    public String toString() {
+        return "FilterStats{" +
+                "readLockWaits=" + readLockWaits +
+                ", readLockWaitNanos=" + readLockWaitNanos +
+                ", maxReadLockWaitNanos=" + maxReadLockWaitNanos +
+                ", writeLocks=" + writeLocks +
+                ", writeLockHoldNanos=" + writeLockHoldNanos +
+                ", maxWriteLockHoldNanos=" + maxWriteLockHoldNanos +
+                ", lastWriteLockHoldNanos=" + lastWriteLockHoldNanos +
+                ", refreshCount=" + refreshCount +
+                ", snapshotVersion=" + snapshotVersion +
+                ", snapshotAgeMillis=" + snapshotAgeMillis +
+                ", lastRefreshNanos=" + lastRefreshNanos +
+                ", groupCount=" + groupCount +
+                ", userMappingCount=" + userMappingCount +
+                '}';
+    }
+}
@@ -0,0 +1,91 @@
+package uk.co.agware.filter;
+
+import uk.co.agware.filter.metrics.FilterMetrics;
+import uk.co.agware.filter.metrics.SlowFilterReport;
+
+import java.util.Arrays;
+
+/**
+ * Counts the work done while a single object is filtered, including the related objects and
+ * collection values filtered along with it. There is one for each thread which is reused for every
+ * call, so taking measurements doesn't create any objects once its arrays are big enough for the
+ * deepest object filtered.
+ *
+ * The outermost call to the filter starts the trace and each nested call moves one level deeper,
+ * the measurements are complete once the outermost call exits. The property being filtered at each
+ * level is tracked so that the path to the deepest object can be reported.
+ */
+final class FilterTrace {
+
+    private static final ThreadLocal<FilterTrace> CURRENT = ThreadLocal.withInitial(FilterTrace::new);
+
+    private int depth;
+    private long start;
+    // The number of objects at each level, and the property names leading to the current and deepest objects
+    private int[] levelCounts = new int[8];
+    private String[] path = new String[8];
+    private String[] deepestPath = new String[8];
+    int maxDepth;
+    int fieldsCopied;
+    int objectsInstantiated;
+    int deniedFields;
+
+    private FilterTrace() {
+    }
+
+    /* Enters a level of filtering on the current thread, starting a new trace if this is the outermost one */
+    static FilterTrace enter(){
+        FilterTrace trace = CURRENT.get();
+        if(trace.depth++ == 0){
+            Arrays.fill(trace.levelCounts, 0, trace.maxDepth, 0);
+            trace.maxDepth = 0;
+            trace.fieldsCopied = 0;
+            trace.objectsInstantiated = 0;
+            trace.deniedFields = 0;
+            trace.start = System.nanoTime();
+        }
+        if(trace.depth > trace.levelCounts.length) trace.grow();
+        trace.levelCounts[trace.depth - 1]++;
+        if(trace.depth > trace.maxDepth){
+            trace.maxDepth = trace.depth;
+            System.arraycopy(trace.path, 0, trace.deepestPath, 0, trace.depth - 1);
+        }
+        return trace;
+    }
+
+    /* The level of filtering the current thread is at, 0 when it isn't filtering an object */
+    static int currentDepth(){
+        return CURRENT.get().depth;
+    }
+
+    /* Sets the property being filtered at the current level */
+    void at(String propertyName){
+        path[depth - 1] = propertyName;
+    }
+
+    /* Leaves a level of filtering, returns true once the outermost level has finished */
+    boolean exit(){
+        return --depth == 0;
+    }
+
+    long elapsed(){
+        return System.nanoTime() - start;
+    }
+
+    /* Copies the finished measurements into a report */
+    SlowFilterReport report(FilterMetrics.FilterOperation operation, Class<?> rootClass, String groupName, long durationNanos){
+        StringBuilder deepest = new StringBuilder(rootClass.getSimpleName());
+        for(int i = 0; i < maxDepth - 1; i++){
+            deepest.append('.').append(deepestPath[i]);
+        }
+        return new SlowFilterReport(operation, rootClass, groupName, durationNanos, Arrays.copyOf(levelCounts, maxDepth),
+                deepest.toString(), fieldsCopied, objectsInstantiated);
+    }
+
+    private void grow(){
+        int capacity = levelCounts.length << 1;
+        levelCounts = Arrays.copyOf(levelCounts, capacity);
+        path = Arrays.copyOf(path, capacity);
+        deepestPath = Arrays.copyOf(deepestPath, capacity);
+    }
+}
@@ -0,0 +1,86 @@
+package uk.co.agware.filter;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The read write lock guarding the groups held by the {@link PropertyFilter}, measuring how long
+ * readers wait for it and how long it is held for writing.
+ *
+ * Readers first try to take the lock without waiting, only when that fails is the wait timed,
+ * so uncontended reads don't read the clock at all. {@code tryLock()} barges past any queued
+ * writer, so it is only tried when nothing is queued, otherwise a steady stream of readers
+ * could keep a writer waiting forever.
+ */
+final class GroupLock {
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final LongAdder readWaits = new LongAdder();
+    private final LongAdder readWaitNanos = new LongAdder();
+    private final LongAccumulator maxReadWaitNanos = new LongAccumulator(Math::max, 0);
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder writeHoldNanos = new LongAdder();
+    private final LongAccumulator maxWriteHoldNanos = new LongAccumulator(Math::max, 0);
+    private volatile long lastWriteHoldNanos;
+    // Only used by the thread holding the write lock
+    private long writeStart;
+
+    void lockRead(){
+        if(!lock.hasQueuedThreads() && lock.readLock().tryLock()) return;
+        long start = System.nanoTime();
+        lock.readLock().lock();
+        long waited = System.nanoTime() - start;
+        readWaits.increment();
+        readWaitNanos.add(waited);
+        maxReadWaitNanos.accumulate(waited);
+    }
+
+    void unlockRead(){
+        lock.readLock().unlock();
+    }
+
+    void lockWrite(){
+        lock.writeLock().lock();
+        if(lock.getWriteHoldCount() == 1) writeStart = System.nanoTime();
+    }
+
+    void unlockWrite(){
+        if(lock.getWriteHoldCount() == 1){
+            long held = System.nanoTime() - writeStart;
+            writes.increment();
+            writeHoldNanos.add(held);
+            maxWriteHoldNanos.accumulate(held);
+            lastWriteHoldNanos = held;
+        }
+        lock.writeLock().unlock();
+    }
+
+    long getReadWaits() {
+        return readWaits.sum();
+    }
+
+    long getReadWaitNanos() {
+        return readWaitNanos.sum();
+    }
+
+    long getMaxReadWaitNanos() {
+        return maxReadWaitNanos.get();
+    }
+
+    long getWrites() {
+        return writes.sum();
+    }
+
+    long getWriteHoldNanos() {
+        return writeHoldNanos.sum();
+    }
+
+    long getMaxWriteHoldNanos() {
+        return maxWriteHoldNanos.get();
+    }
+
+    long getLastWriteHoldNanos() {
+        return lastWriteHoldNanos;
+    }
+}
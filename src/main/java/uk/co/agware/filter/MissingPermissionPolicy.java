@@ -0,0 +1,16 @@
+package uk.co.agware.filter;
+
+/**
+ * What the {@link PropertyFilter} does with a field that has no permission defined for it in the
+ * user's group, such as a field added to a class before the groups have been reconciled with it.
+ * The policy is applied once when the filter first works out the permissions of a class for a
+ * group, rather than each time a field is read or written.
+ */
+public enum MissingPermissionPolicy {
+    /** Filtering an object with a missing permission fails with a {@link uk.co.agware.filter.exceptions.MissingPermissionException} */
+    FAIL,
+    /** The field is treated as {@link uk.co.agware.filter.data.PermissionType#NO_ACCESS} */
+    DENY,
+    /** The field is given the default permission type of the {@link uk.co.agware.filter.util.FilterUtil} */
+    DEFAULT
+}
@@ -0,0 +1,77 @@
+package uk.co.agware.filter;
+
+import uk.co.agware.filter.cache.FilterCache;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Holds the compiled {@link AccessPlan} of each class for each group. A plan is only returned
+ * for the snapshot version it was compiled with, so plans for older groups are recompiled one
+ * at a time as they are next used. When the groups are replaced the plans of any group that
+ * no longer exists are dropped, along with any plan compiled for an older version that is put afterwards.
+ */
+final class PlanCache implements FilterCache {
+
+    private final ConcurrentHashMap<String, ConcurrentHashMap<Class<?>, AccessPlan>> plans = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    // Plans compiled before the groups were last replaced are never used, so aren't stored
+    private volatile long retainedVersion;
+
+    /* Returns the plan for the class and group compiled with this version, or null if there isn't one */
+    AccessPlan get(Class<?> clazz, String groupName, long version){
+        Map<Class<?>, AccessPlan> groupPlans = plans.get(groupName);
+        AccessPlan plan = groupPlans == null ? null : groupPlans.get(clazz);
+        if(plan == null || plan.version != version){
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return plan;
+    }
+
+    void put(Class<?> clazz, String groupName, AccessPlan plan){
+        if(plan.version < retainedVersion) return;
+        ConcurrentHashMap<Class<?>, AccessPlan> groupPlans = plans.get(groupName);
+        if(groupPlans == null) groupPlans = plans.computeIfAbsent(groupName, k -> new ConcurrentHashMap<>());
+        groupPlans.merge(clazz, plan, (existing, added) -> existing.version > added.version ? existing : added);
+    }
+
+    /* Drops the plans of groups that aren't in the new set of groups, called when the groups are replaced */
+    void retainGroups(Set<String> groupNames, long version){
+        retainedVersion = version;
+        plans.keySet().retainAll(groupNames);
+    }
+
+    @Override
+    public String getName() {
+        return "plans";
+    }
+
+    @Override
+    public long size() {
+        long size = 0;
+        for(Map<Class<?>, AccessPlan> groupPlans : plans.values()){
+            size += groupPlans.size();
+        }
+        return size;
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public void invalidateAll() {
+        plans.clear();
+    }
+}
@@ -3,25 +3,40 @@ package uk.co.agware.filter;
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
 import org.apache.commons.beanutils.PropertyUtils;
+import org.reactivestreams.Publisher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import uk.co.agware.filter.audit.DenialAuditor;
+import uk.co.agware.filter.audit.DenialEvent;
+import uk.co.agware.filter.cache.FilterCache;
+import uk.co.agware.filter.cache.ResultCache;
 import uk.co.agware.filter.data.*;
 import uk.co.agware.filter.exceptions.FilterException;
 import uk.co.agware.filter.exceptions.GroupNotFoundException;
+import uk.co.agware.filter.exceptions.MissingPermissionException;
 import uk.co.agware.filter.exceptions.PropertyFilterException;
+import uk.co.agware.filter.metrics.FilterMetrics;
+import uk.co.agware.filter.metrics.SlowFilterListener;
+import uk.co.agware.filter.util.AccessCanonicalizer;
 import uk.co.agware.filter.util.ClassFactory;
+import uk.co.agware.filter.util.CollectionFactory;
 import uk.co.agware.filter.util.FilterUtil;
 
+import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.*;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Handles entities that are passed to it using a set of rules that have been created for it.
@@ -42,20 +57,42 @@ import java.util.stream.Collectors;
  *
  * Created by Philip Ward <Philip.Ward@agware.com> on 9/04/2016.
  */
-//TODO Need to worry about arrays as well as collections
 public class PropertyFilter {
 
     private final Logger logger = LoggerFactory.getLogger(PropertyFilter.class);
-    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final GroupLock lock = new GroupLock();
     private final Set<Class<?>> ignoredClasses= new HashSet<>(Arrays.asList(String.class, Integer.class, int.class, Double.class, double.class, Float.class, float.class, BigDecimal.class, Boolean.class, boolean.class, Byte.class, byte.class, Date.class, LocalDate.class, LocalDateTime.class, BigInteger.class, Long.class, long.class)); // Not efficient, but a lazy way to do it in one line
 
-    private final BiMap<String, String> displayToClassNames = HashBiMap.create();
-    private final Map<String, Map<String, Access<? extends Permission>>> groups = new HashMap<>();
-    private final Map<String, String> userToGroup = new HashMap<>();
+    // Replaced as a whole by setGroups, only read or changed while holding the lock
+    private BiMap<String, String> displayToClassNames = HashBiMap.create();
+    private Map<String, Map<String, Access<? extends Permission>>> groups = new HashMap<>();
+    // The Access objects as they were passed in, handed back to callers so any entity state on them is kept
+    private Map<String, Map<String, Access<? extends Permission>>> suppliedGroups = new HashMap<>();
+    private Map<String, String> userToGroup = new HashMap<>();
+    // Changed while holding the write lock, volatile so the stats can be read without it
+    private volatile long refreshCount;
+    // Goes up each time the groups or the user mappings change, caches compare it to the version their entries were made with
+    private volatile long snapshotVersion;
+    private volatile long snapshotNanos;
+    private volatile long lastRefreshNanos;
     private boolean filterCollectionsOnSave;
     private boolean filterRelationsOnSave;
     private boolean filterCollectionOnLoad;
     private boolean filterRelationsOnLoad;
+    private BiPredicate<Object, Object> valueEquality;
+    private ArrayPolicy arrayPolicy;
+    private CollectionFactory collectionFactory;
+    private FilterMetrics metrics;
+    private long slowFilterNanos;
+    private double slowFilterSampleRate;
+    private SlowFilterListener slowFilterListener;
+    private DenialAuditor denialAuditor;
+    private MissingPermissionPolicy missingPermissionPolicy;
+    private final PlanCache planCache = new PlanCache();
+    private final ResultCache resultCache = new ResultCache();
+    private final List<FilterCache> caches = new CopyOnWriteArrayList<>(Arrays.asList(planCache, resultCache));
+    // Whether each call needs a FilterTrace, either for the metrics or to find slow calls
+    private boolean tracing;
 
     private FilterUtil filterUtil;
 
@@ -65,13 +102,32 @@ public class PropertyFilter {
                    boolean filterCollectionOnLoad,
                    boolean filterRelationsOnLoad,
                    boolean filterCollectionsOnSave,
-                   boolean filterRelationsOnSave) {
+                   boolean filterRelationsOnSave,
+                   BiPredicate<Object, Object> valueEquality,
+                   ArrayPolicy arrayPolicy,
+                   CollectionFactory collectionFactory,
+                   FilterMetrics metrics,
+                   long slowFilterNanos,
+                   double slowFilterSampleRate,
+                   SlowFilterListener slowFilterListener,
+                   DenialAuditor denialAuditor,
+                   MissingPermissionPolicy missingPermissionPolicy) {
         this.filterUtil = filterUtil;
         this.ignoredClasses.addAll(ignoredClasses);
         this.filterCollectionOnLoad = filterCollectionOnLoad;
         this.filterRelationsOnLoad = filterRelationsOnLoad;
         this.filterCollectionsOnSave = filterCollectionsOnSave;
         this.filterRelationsOnSave = filterRelationsOnSave;
+        this.valueEquality = valueEquality;
+        this.arrayPolicy = arrayPolicy;
+        this.collectionFactory = collectionFactory;
+        this.metrics = metrics;
+        this.slowFilterNanos = slowFilterNanos;
+        this.slowFilterSampleRate = slowFilterSampleRate;
+        this.slowFilterListener = slowFilterListener;
+        this.denialAuditor = denialAuditor;
+        this.missingPermissionPolicy = missingPermissionPolicy;
+        this.tracing = metrics != FilterMetrics.NOOP || slowFilterNanos > 0;
     }
 
     /**
@@ -83,6 +139,15 @@ public class PropertyFilter {
         return filterUtil;
     }
 
+    /**
+     * Returns the {@link FilterMetrics} that measurements are recorded to
+     *
+     * @return The metrics in use, {@link FilterMetrics#NOOP} if none were set
+     */
+    public FilterMetrics getMetrics() {
+        return metrics;
+    }
+
     /**
      * Adds a new class to the set of ignored classes.
      *
@@ -92,17 +157,46 @@ public class PropertyFilter {
         return ignoredClasses.add(clazz);
     }
 
+    /**
+     * Returns whether or not the given class is one that the filter
+     * will not try to filter the fields of.
+     *
+     * @param clazz The class to check
+     * @return Whether the class is ignored
+     */
+    public boolean isIgnoredClass(Class<?> clazz){
+        return ignoredClasses.contains(clazz);
+    }
+
+    /**
+     * Returns whether entities in collections are filtered when parsing for return
+     *
+     * @return The filter rule value
+     */
+    public boolean isFilterCollectionOnLoad() {
+        return filterCollectionOnLoad;
+    }
+
+    /**
+     * Returns whether related entities are filtered when parsing for return
+     *
+     * @return The filter rule value
+     */
+    public boolean isFilterRelationsOnLoad() {
+        return filterRelationsOnLoad;
+    }
+
     /**
      * Returns the current mapping of users to groups
      * @return The map of users in groups
      */
     public Map<String, String> getUserToGroupMap(){
-        lock.readLock().lock();
+        lock.lockRead();
         try {
             return new HashMap<>(userToGroup);
         }
         finally {
-            lock.readLock().unlock();
+            lock.unlockRead();
         }
     }
 
@@ -112,56 +206,279 @@ public class PropertyFilter {
      * @return A map with the group names as keys and the users as a list
      */
     public Map<String, List<String>> getGroupMembership(){
-        lock.readLock().lock();
+        lock.lockRead();
         try {
             return userToGroup.keySet().stream().collect(Collectors.groupingBy(userToGroup::get));
         } finally {
-            lock.readLock().unlock();
+            lock.unlockRead();
         }
     }
 
     /**
      * Refreshes the current group mapping, will overwrite the
-     * exiting set of mappings with the new set.
+     * exiting set of mappings with the new set. The {@link Access}
+     * objects are loaded through an {@link AccessCanonicalizer}, so groups
+     * with identical settings for a class share a single copy of them when
+     * filtering. The objects passed in are kept as they are and are the ones
+     * returned by {@link #getGroup(String)} and {@link #getAccessForGroup(String, String)}.
+     *
+     * The new mappings are built before the write lock is taken, the lock is
+     * only held while they replace the old ones, so calls filtering objects
+     * carry on using the previous groups until the new ones are ready.
      *
      * @param GroupList The groups to add to the mapping
      */
     public void setGroups(List<? extends Group<? extends Access>> GroupList) {
-        lock.writeLock().lock();
-        groups.clear();
-        userToGroup.clear();
-        displayToClassNames.clear();
+        setGroups(GroupList, Collections.emptyMap());
+    }
+
+    /**
+     * Refreshes the current group mapping in the same way as {@link #setGroups(List)}, with extra
+     * users added to groups as part of the same change. These override any membership from the groups
+     * themselves and are in place as soon as the new groups are, rather than being added afterwards
+     * with {@link #addUserToGroup(String, String)}.
+     *
+     * @param GroupList The groups to add to the mapping
+     * @param userAllocations Usernames mapped to the name of the group they belong to
+     */
+    public void setGroups(List<? extends Group<? extends Access>> GroupList, Map<String, String> userAllocations) {
+        long start = System.nanoTime();
+        AccessCanonicalizer accessCanonicalizer = new AccessCanonicalizer(filterUtil.getClassFactory());
+        BiMap<String, String> newDisplayToClassNames = HashBiMap.create();
+        Map<String, Map<String, Access<? extends Permission>>> newGroups = new HashMap<>();
+        Map<String, Map<String, Access<? extends Permission>>> newSuppliedGroups = new HashMap<>();
+        Map<String, String> newUserToGroup = new HashMap<>();
         for (Group<? extends Access> g : FilterUtil.nullSafe(GroupList)) {
             Map<String, Access<? extends Permission>> accessMap = new HashMap<>();
-            for (Access<? extends Permission> a : FilterUtil.nullSafe(g.getAccess())) {
+            Map<String, Access<? extends Permission>> suppliedMap = new HashMap<>();
+            for (Access<? extends Permission> groupAccess : FilterUtil.nullSafe(g.getAccess())) {
+                Access<? extends Permission> a = accessCanonicalizer.canonicalize(groupAccess);
                 accessMap.put(a.getObjectClass(), a);
+                suppliedMap.put(a.getObjectClass(), groupAccess);
                 String displayName = a.getDisplayName() == null || "".equals(a.getDisplayName()) ? a.getObjectClass() : a.getDisplayName();
-                displayToClassNames.put(displayName, a.getObjectClass());
+                newDisplayToClassNames.put(displayName, a.getObjectClass());
             }
-            groups.put(g.getName(), accessMap);
+            newGroups.put(g.getName(), accessMap);
+            newSuppliedGroups.put(g.getName(), suppliedMap);
             for (String s : FilterUtil.nullSafe(g.getMembers())) {
-                userToGroup.put(s.toUpperCase(), g.getName());
+                newUserToGroup.put(s.toUpperCase(), g.getName());
             }
         }
-        lock.writeLock().unlock();
+        userAllocations.forEach((username, group) -> newUserToGroup.put(username.toUpperCase(), group));
+        lock.lockWrite();
+        try {
+            groups = newGroups;
+            suppliedGroups = newSuppliedGroups;
+            userToGroup = newUserToGroup;
+            displayToClassNames = newDisplayToClassNames;
+            refreshCount++;
+            snapshotVersion++;
+            snapshotNanos = System.nanoTime();
+            planCache.retainGroups(newGroups.keySet(), snapshotVersion);
+        } finally {
+            lock.unlockWrite();
+        }
+        lastRefreshNanos = System.nanoTime() - start;
+        metrics.recordGroupRefresh(lastRefreshNanos, newGroups.size());
     }
 
     /**
-     * Returns the class mapping for a given group
-     * @param key The group name
-     * @return The class mapping for the given group
+     * Returns the current statistics on the groups held by the filter, including how long
+     * calls have waited for the groups while they were being changed and how long ago they were last set.
+     *
+     * @return A copy of the current statistics
      */
-    public Map<String, Access<? extends Permission>> getGroup(String key){
-        lock.readLock().lock();
+    public FilterStats getStats(){
+        int groupCount;
+        int userCount;
+        lock.lockRead();
         try {
-            Map<String, Access<? extends Permission>> group = groups.get(key);
-            if(group != null){
-                return new HashMap<>(group);
+            groupCount = groups.size();
+            userCount = userToGroup.size();
+        } finally {
+            lock.unlockRead();
+        }
+        long refreshes = refreshCount;
+        long age = refreshes == 0 ? -1 : (System.nanoTime() - snapshotNanos) / 1_000_000;
+        return new FilterStats(lock, refreshes, snapshotVersion, age, lastRefreshNanos, groupCount, userCount);
+    }
+
+    /**
+     * Returns the version of the groups and user mappings currently in use, which goes up each time
+     * {@link #setGroups(List)}, {@link #addUserToGroup(String, String)} or {@link #removeUserFromGroup(String)}
+     * is called. Caches of values worked out from the groups can store this with each entry and treat
+     * the entry as missing once it has changed.
+     *
+     * @return The current version, 0 if nothing has been set
+     */
+    public long getSnapshotVersion(){
+        return snapshotVersion;
+    }
+
+    /**
+     * Registers a cache of values worked out from the groups, so it is included in
+     * {@link #getCaches()} and emptied by {@link #clearCaches()}. The cache is responsible for
+     * comparing its entries against {@link #getSnapshotVersion()}, it isn't told when the groups change.
+     *
+     * @param cache The cache to register
+     */
+    public void registerCache(FilterCache cache){
+        caches.add(cache);
+    }
+
+    /**
+     * Removes a cache added with {@link #registerCache(FilterCache)}
+     *
+     * @param cache The cache to remove
+     * @return Whether the cache was registered
+     */
+    public boolean unregisterCache(FilterCache cache){
+        return caches.remove(cache);
+    }
+
+    /**
+     * Returns the caches used while filtering, the access plans and results held by the filter
+     * followed by any registered with {@link #registerCache(FilterCache)}
+     *
+     * @return An unmodifiable list of the caches
+     */
+    public List<FilterCache> getCaches(){
+        return Collections.unmodifiableList(caches);
+    }
+
+    /**
+     * Empties the caches used while filtering, they are filled again as objects are filtered.
+     * The groups themselves are left as they are.
+     */
+    public void clearCaches(){
+        filterUtil.clearFieldCache();
+        for(FilterCache cache : caches){
+            cache.invalidateAll();
+        }
+    }
+
+    /**
+     * Returns the cache holding the compiled permissions of each class for each group
+     *
+     * @return The plan cache
+     */
+    public FilterCache getPlanCache(){
+        return planCache;
+    }
+
+    /**
+     * Returns the cache holding the filtered copies of classes marked with
+     * {@link uk.co.agware.filter.annotations.CacheResult}
+     *
+     * @return The result cache
+     */
+    public ResultCache getResultCache(){
+        return resultCache;
+    }
+
+    /**
+     * Returns the fields of a class that a group is able to read, sorted by name. These are the same
+     * fields {@link #parseObjectForReturn(Object, String, String)} copies, with any missing permissions
+     * resolved by the {@link MissingPermissionPolicy}.
+     *
+     * @param clazz The class to get the readable fields of
+     * @param groupName The group to get the readable fields for
+     * @return An unmodifiable list of the readable fields, or null if the group has no access to the class
+     */
+    public List<Field> getReadableFields(Class<?> clazz, String groupName){
+        AccessPlan plan = getPlan(clazz, groupName);
+        if(plan.access.getAccess().equals(AccessType.NO_ACCESS)) return null;
+        if(plan.missing != null) throw plan.missing;
+        return plan.readableFields;
+    }
+
+    /**
+     * Returns the same fields as {@link #getReadableFields(Class, String)}, recording the class or the fields
+     * that the user can't read to the {@link DenialAuditor} in the same way as
+     * {@link #parseObjectForReturn(Object, String, String)}. For code that writes out objects itself rather
+     * than filtering a copy of them.
+     *
+     * @param clazz The class to get the readable fields of
+     * @param username The user making the request
+     * @param groupName The group that the user belongs to
+     * @return An unmodifiable list of the readable fields, or null if the group has no access to the class
+     */
+    public List<Field> getReadableFields(Class<?> clazz, String username, String groupName){
+        AccessPlan plan = getPlan(clazz, groupName);
+        Access<? extends Permission> access = plan.access;
+        if(access.getAccess().equals(AccessType.NO_ACCESS)){
+            if(denialAuditor != null) denialAuditor.record(username, groupName, access.getObjectClass(), null, DenialEvent.Direction.READ);
+            return null;
+        }
+        if(plan.missing != null) throw plan.missing;
+        if(denialAuditor != null){
+            for(int i = 0; i < plan.fields.length; i++){
+                if(!plan.readable[i]) denialAuditor.record(username, groupName, access.getObjectClass(), plan.fields[i].getName(), DenialEvent.Direction.READ);
             }
-            throw new GroupNotFoundException(key);
         }
-        finally {
-            lock.readLock().unlock();
+        return plan.readableFields;
+    }
+
+    /**
+     * Returns the names of the classes a group has access set for, whatever that access is.
+     * These are the classes that are filtered when they are found as relations or in collections.
+     *
+     * @param groupName The group to get the class names for
+     * @return An unmodifiable set of the class names
+     */
+    public Set<String> getClassNames(String groupName){
+        return Collections.unmodifiableSet(groupAccess(groupName).keySet());
+    }
+
+    /* Returns the plan for filtering a class with the given group, compiling it if the groups have changed since the last one */
+    AccessPlan getPlan(Class<?> clazz, String groupName){
+        AccessPlan plan = planCache.get(clazz, groupName, snapshotVersion);
+        if(plan != null) return plan;
+        Access<? extends Permission> access;
+        long version;
+        lock.lockRead();
+        try { // The version and the access are read together so the plan is never stored against the wrong version
+            version = snapshotVersion;
+            Map<String, Access<? extends Permission>> accessMap = groups.get(groupName);
+            if(accessMap == null) throw new GroupNotFoundException(groupName);
+            access = accessMap.get(clazz.getName());
+        } finally {
+            lock.unlockRead();
+        }
+        if(access == null) throw MissingPermissionException.forClass(groupName, clazz.getName());
+        plan = AccessPlan.compile(clazz, access, version, filterUtil, missingPermissionPolicy);
+        planCache.put(clazz, groupName, plan);
+        return plan;
+    }
+
+    /* Returns the access held for a group without copying it, the maps are replaced by setGroups rather than changed so this is safe to read */
+    private Map<String, Access<? extends Permission>> groupAccess(String groupName){
+        lock.lockRead();
+        try {
+            Map<String, Access<? extends Permission>> accessMap = groups.get(groupName);
+            if(accessMap == null) throw new GroupNotFoundException(groupName);
+            return accessMap;
+        } finally {
+            lock.unlockRead();
+        }
+    }
+
+    /**
+     * Returns the class mapping for a given group, holding the {@link Access} objects that were passed
+     * to {@link #setGroups(List)}. The filter works from its own copies of them, so changing the
+     * returned objects has no effect until the groups are set again.
+     *
+     * @param key The group name
+     * @return A copy of the class mapping for the given group
+     */
+    public Map<String, Access<? extends Permission>> getGroup(String key){
+        lock.lockRead();
+        try {
+            Map<String, Access<? extends Permission>> group = suppliedGroups.get(key);
+            if(group == null) throw new GroupNotFoundException(key);
+            return new HashMap<>(group);
+        } finally {
+            lock.unlockRead();
         }
     }
 
@@ -174,11 +491,12 @@ public class PropertyFilter {
      * @param group The name of the group
      */
     public String addUserToGroup(String username, String group){
-        lock.writeLock().lock();
+        lock.lockWrite();
         try {
+            snapshotVersion++;
             return userToGroup.put(username.toUpperCase(), group);
         } finally {
-            lock.writeLock().unlock();
+            lock.unlockWrite();
         }
     }
 
@@ -189,7 +507,13 @@ public class PropertyFilter {
      * @return The name of the group the user was in, or null if the user did not have a mapping
      */
     public String removeUserFromGroup(String username){
-        return userToGroup.remove(username);
+        lock.lockWrite();
+        try {
+            snapshotVersion++;
+            return userToGroup.remove(username.toUpperCase());
+        } finally {
+            lock.unlockWrite();
+        }
     }
 
     /**
@@ -199,15 +523,15 @@ public class PropertyFilter {
      * @throws PropertyFilterException if the user does not have a group
      */
     public String getUsersGroup(String username) {
-        lock.readLock().lock();
+        lock.lockRead();
         try {
             String group = userToGroup.get(username.toUpperCase());
             if(group == null){
-                throw new FilterException(String.format("User %s has no group assigned", username));
+                throw MissingPermissionException.forUser(username);
             }
             return group;
         } finally {
-            lock.readLock().unlock();
+            lock.unlockRead();
         }
     }
 
@@ -219,21 +543,10 @@ public class PropertyFilter {
      * @return Whether the user has read access or not
      */
     public boolean hasWriteAccess(String className, String username){
-        try {
-            Access<? extends Permission> access = getAccess(className, username);
-            return access.getAccess() == AccessType.CREATE || access.getAccess() == AccessType.UPDATE;
-        }
+        Access<? extends Permission> access = findAccess(className, username);
         // Simply return false instead of an error
-        catch (FilterException e){
-            String fullName = displayToClassNames.get(className);
-            if(fullName == null) fullName = className;
-            try {
-                return ignoredClasses.contains(Class.forName(fullName));
-            }
-            catch (ClassNotFoundException e1) {
-                return false;
-            }
-        }
+        if(access == null) return isIgnoredClass(className);
+        return access.getAccess() == AccessType.CREATE || access.getAccess() == AccessType.UPDATE;
     }
 
     /**
@@ -244,19 +557,36 @@ public class PropertyFilter {
      * @return Whether the user has read access or not
      */
     public boolean hasReadAccess(String className, String username){
-        try {
-            Access<? extends Permission> access = getAccess(className, username);
-            return access.getAccess() != AccessType.NO_ACCESS;}
+        Access<? extends Permission> access = findAccess(className, username);
         // Simply return false instead of an error
-        catch (FilterException e){
-            String fullName = displayToClassNames.get(className);
-            if(fullName == null) fullName = className;
-            try {
-                return ignoredClasses.contains(Class.forName(fullName));
-            }
-            catch (ClassNotFoundException e1) {
-                return false;
-            }
+        if(access == null) return isIgnoredClass(className);
+        return access.getAccess() != AccessType.NO_ACCESS;
+    }
+
+    /* Looks up the access a user has to a class, returning null rather than throwing if either has nothing set */
+    private Access<? extends Permission> findAccess(String className, String username){
+        lock.lockRead();
+        try {
+            String group = userToGroup.get(username.toUpperCase());
+            if(group == null) return null;
+            Map<String, Access<? extends Permission>> accessMap = groups.get(group);
+            if(accessMap == null) throw new GroupNotFoundException(group);
+            Access<? extends Permission> access = accessMap.get(className);
+            if(access == null) access = accessMap.get(displayToClassNames.get(className));
+            return access;
+        } finally {
+            lock.unlockRead();
+        }
+    }
+
+    private boolean isIgnoredClass(String className){
+        String fullName = displayToClassNames.get(className);
+        if(fullName == null) fullName = className;
+        try {
+            return ignoredClasses.contains(Class.forName(fullName));
+        }
+        catch (ClassNotFoundException e) {
+            return false;
         }
     }
 
@@ -267,16 +597,16 @@ public class PropertyFilter {
      * @return The list of accessible class names
      */
     public List<String> getAccessibleClasses(String group){
-        lock.readLock().lock();
+        lock.lockRead();
         try {
-            Map<String, Access<? extends Permission>> accessMap = getGroup(group);
+            Map<String, Access<? extends Permission>> accessMap = groupAccess(group);
             // filters out classes with NO_ACCESS and then returns the class name from the map key
             return accessMap.entrySet().stream()
                     .filter(e -> !e.getValue().getAccess().equals(AccessType.NO_ACCESS))
                     .map(Map.Entry::getKey)
                     .collect(Collectors.toList());
         } finally {
-            lock.readLock().unlock();
+            lock.unlockRead();
         }
     }
 
@@ -289,20 +619,69 @@ public class PropertyFilter {
      * @return A list of {@link Permission} entities for the class
      */
     public List<? extends Permission> getAccessibleFields(String className, String group){
-        lock.readLock().lock();
+        Access<? extends Permission> access = getAccessForGroup(className, group);
+        ClassFactory classFactory = filterUtil.getClassFactory();
+        return FilterUtil.nullSafeStream(access.getPermissions())
+                .filter(p -> p.getPermission() != PermissionType.NO_ACCESS)
+                .map(p -> classFactory.copyPermissionClass(p)) // Cannot be changed, too much generics
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Returns the set of property paths that a group is able to read on a class, this
+     * can be used to only fetch the values from the data layer that will survive
+     * {@link #parseObjectForReturn(Object, String, String)}.
+     * Paths for related entities and collections of entities are expanded into
+     * dotted paths, for example {@code customer.name}, following the same rules as
+     * {@link #parseObjectForReturn(Object, String, String)} uses for filtering them. If related
+     * values aren't being filtered then only the path of the relation itself is included.
+     * Relations are worked out from the declared type of the field, or the generic type
+     * of a collection, and are only followed once on each path to avoid cycles.
+     *
+     * @param clazz The class to get the readable properties of
+     * @param groupName The group to get the readable properties for
+     * @return A sorted set of the readable property paths, empty if the group has no access to the class
+     */
+    public Set<String> getReadableProperties(Class<?> clazz, String groupName){
+        lock.lockRead();
         try {
-            Access<? extends Permission> access = getAccessForGroup(className, group);
-            if(access == null) throw new FilterException(String.format("Group %s does not have Access defined for class %s", group, className));
-            ClassFactory classFactory = filterUtil.getClassFactory();
-            return FilterUtil.nullSafeStream(access.getPermissions())
-                    .filter(p -> p.getPermission() != PermissionType.NO_ACCESS)
-                    .map(p -> classFactory.copyPermissionClass(p)) // Cannot be changed, too much generics
-                    .collect(Collectors.toList());
+            Map<String, Access<? extends Permission>> accessMap = groups.get(groupName);
+            if(accessMap == null) throw new GroupNotFoundException(groupName);
+            Set<String> result = new TreeSet<>();
+            addReadableProperties(clazz, "", groupName, accessMap, new HashSet<>(), result);
+            return result;
         } finally {
-            lock.readLock().unlock();
+            lock.unlockRead();
         }
     }
 
+    private void addReadableProperties(Class<?> clazz, String prefix, String groupName, Map<String, Access<? extends Permission>> accessMap, Set<Class<?>> path, Set<String> result){
+        AccessPlan plan = getPlan(clazz, groupName);
+        if(plan.access.getAccess().equals(AccessType.NO_ACCESS)) return;
+        if(plan.missing != null) throw plan.missing;
+        path.add(clazz);
+        for(int i = 0; i < plan.fields.length; i++){
+            Field f = plan.fields[i];
+            if(Modifier.isStatic(f.getModifiers()) || !plan.readable[i]) continue;
+            String name = prefix + f.getName();
+            boolean isArray = f.getType().isArray();
+            boolean isCollection = isArray || Collection.class.isAssignableFrom(f.getType());
+            Class<?> related = isArray ? f.getType().getComponentType() : isCollection ? FilterUtil.getCollectionType(f) : f.getType();
+            Access<? extends Permission> relatedAccess = related == null || ignoredClasses.contains(related) ? null : accessMap.get(related.getName());
+            boolean filtered = isCollection ? filterCollectionOnLoad : filterRelationsOnLoad;
+            if(relatedAccess == null || !filtered){
+                result.add(name);
+            }
+            else if(!relatedAccess.getAccess().equals(AccessType.NO_ACCESS)){ // Relations with no access are always returned as null
+                result.add(name);
+                if(!path.contains(related)){
+                    addReadableProperties(related, name + ".", groupName, accessMap, path, result);
+                }
+            }
+        }
+        path.remove(clazz);
+    }
+
     /**
      * Returns a user's access for a given class, first gets the users group
      * before calling to {@link #getAccessForGroup(String, String)} to retrieve
@@ -325,21 +704,21 @@ public class PropertyFilter {
      *
      * @param className The name of the class to get the access for
      * @param groupName The name of the group to get the access for
-     * @return The {@link Access} object for the given class for the given group
+     * @return The {@link Access} object passed to {@link #setGroups(List)} for the given class for the given group
      */
-    @SuppressWarnings("unchecked")
     public Access<? extends Permission> getAccessForGroup(String className, String groupName){
-        lock.readLock().lock();
+        lock.lockRead();
         try {
-            Map<String, Access<? extends Permission>> accessMap = getGroup(groupName);
+            Map<String, Access<? extends Permission>> accessMap = suppliedGroups.get(groupName); // No need for the copy made by getGroup here
+            if(accessMap == null) throw new GroupNotFoundException(groupName);
             Access<? extends Permission> access = accessMap.get(className);
             if (access == null) {
                 access = accessMap.get(displayToClassNames.get(className));
             }
-            if(access == null) throw new FilterException(String.format("Group %s does not have any access set for class %s", groupName, className));
+            if(access == null) throw MissingPermissionException.forClass(groupName, className);
             return access;
         } finally {
-            lock.readLock().unlock();
+            lock.unlockRead();
         }
     }
 
@@ -360,6 +739,8 @@ public class PropertyFilter {
      * Parses a supplied object, removing the values from it that
      * the user does not have access to view, instantiates a blank object
      * to achieve this, only moving over the values that are required.
+     * Classes marked with {@link uk.co.agware.filter.annotations.CacheResult} return the
+     * copy made the last time the object was parsed for the group, if the groups haven't changed since.
      *
      * @param object The object to be parsed
      * @param username The user making the request
@@ -367,30 +748,86 @@ public class PropertyFilter {
      * @param <T> The type of the object being parsed
      * @return The parsed object
      */
-    @SuppressWarnings("unchecked")
     public <T> T parseObjectForReturn(T object, String username, String groupName) {
         if(object == null) return null;
         if(ignoredClasses.contains(object.getClass())) return object; // If it's a class we're ignoring then just return the value
+        if(!resultCache.isCached(object.getClass())) return filterForReturn(object, username, groupName);
+
+        long version = snapshotVersion; // Read first, so a copy made while the groups change is stored against the old version
+        T cached = resultCache.get(object, groupName, version);
+        if(cached != null) return cached;
+        T result = filterForReturn(object, username, groupName);
+        if(result != null) resultCache.put(object, groupName, version, result);
+        return result;
+    }
+
+    private <T> T filterForReturn(T object, String username, String groupName) {
+        if(!tracing) return returnObject(object, username, groupName, null);
+
+        FilterTrace trace = FilterTrace.enter();
+        try {
+            return returnObject(object, username, groupName, trace);
+        } finally {
+            if(trace.exit()) recordTrace(FilterMetrics.FilterOperation.RETURN, object.getClass(), groupName, trace);
+        }
+    }
+
+    /* Records a finished trace to the metrics, and reports it if it was slow and is picked by the sampling */
+    private void recordTrace(FilterMetrics.FilterOperation operation, Class<?> clazz, String groupName, FilterTrace trace){
+        long elapsed = trace.elapsed();
+        metrics.recordFilter(operation, clazz, groupName, elapsed, trace.maxDepth, trace.fieldsCopied, trace.objectsInstantiated, trace.deniedFields);
+        if(slowFilterNanos <= 0 || elapsed < slowFilterNanos) return;
+        if(slowFilterSampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= slowFilterSampleRate) return;
+        try {
+            slowFilterListener.onSlowFilter(trace.report(operation, clazz, groupName, elapsed));
+        } catch (RuntimeException e) {
+            logger.warn("Slow filter listener failed", e);
+        }
+    }
 
-        Set<Field> fields = filterUtil.getAllFields(object);
-        Map<String, Access<? extends Permission>> accessMap = getGroup(groupName);
+    /* Copies the readable values into a blank object, counting the work done when trace is not null */
+    @SuppressWarnings("unchecked")
+    private <T> T returnObject(T object, String username, String groupName, FilterTrace trace) {
+        Map<String, Access<? extends Permission>> accessMap = groupAccess(groupName);
+        AccessPlan plan = getPlan(object.getClass(), groupName);
+        Access<? extends Permission> access = plan.access;
+        Field[] fields = plan.fields;
 
         T obj = (T) FilterUtil.instantiateObject(object.getClass()); // Create a blank object to fill with values
+        if(trace != null) trace.objectsInstantiated++;
         try {
-            Access<? extends Permission> access = accessMap.get(object.getClass().getName());
-            if(access == null) throw new FilterException("Access missing for class of type " +object.getClass().getName());
-            if(access.getAccess().equals(AccessType.NO_ACCESS)) return null; // If they don't have access then return null so they can't view the data at all
+            if(access.getAccess().equals(AccessType.NO_ACCESS)){ // If they don't have access then return null so they can't view the data at all
+                if(trace != null) trace.deniedFields += fields.length;
+                if(denialAuditor != null) denialAuditor.record(username, groupName, access.getObjectClass(), null, DenialEvent.Direction.READ);
+                return null;
+            }
+            if(plan.missing != null) throw plan.missing;
 
-            for (Field f : fields) {
-                if (filterUtil.isFieldReadable(f.getName(), access) ) {
+            for (int i = 0; i < fields.length; i++) {
+                Field f = fields[i];
+                if (!plan.readable[i]) {
+                    if(trace != null) trace.deniedFields++;
+                    if(denialAuditor != null) denialAuditor.record(username, groupName, access.getObjectClass(), f.getName(), DenialEvent.Direction.READ);
+                }
+                else {
+                    if(trace != null){
+                        trace.fieldsCopied++;
+                        trace.at(f.getName());
+                    }
                     Object value = PropertyUtils.getProperty(object, f.getName());
                     // For null values, simply write them across
                     if(value == null){
                         PropertyUtils.setProperty(obj, f.getName(), null);
                         continue;
                     }
+                    if(value.getClass().isArray()){
+                        PropertyUtils.setProperty(obj, f.getName(), handleArrayForReturn(value, username, groupName));
+                    }
+                    else if(value instanceof Map){
+                        PropertyUtils.setProperty(obj, f.getName(), filterCollectionOnLoad ? handleMapForReturn((Map<?, ?>) value, username, groupName) : value);
+                    }
                     // If it isn't a collection
-                    if (!Collection.class.isAssignableFrom(f.getType())) {
+                    else if (!Collection.class.isAssignableFrom(f.getType())) {
                         // If it's a class we know about, and we aren't ignoring related values for parsing
                         if(accessMap.keySet().contains(value.getClass().getName()) && filterRelationsOnLoad){
                             // Parse down sub values, will escape on ignored classes
@@ -427,21 +864,203 @@ public class PropertyFilter {
      */
     @SuppressWarnings("unchecked")
     public <T> Collection<T> handleCollectionForReturn(Collection<T> collection, String username, String groupName) {
-        Collection<T> result = FilterUtil.instantiateCollection(collection.getClass());
+        long start = metrics == FilterMetrics.NOOP ? 0L : System.nanoTime();
+        Collection<T> result = collectionFactory.newCollection(collection);
         for(T o : collection){
-            if(ignoredClasses.contains(o.getClass())){
-                result.add(o);
+            T parsed = parseElementForReturn(o, username, groupName);
+            if(parsed != null) {
+                result.add(parsed);
             }
-            else {
-                T parsed = parseObjectForReturn(o, username, groupName);
-                if(parsed != null) {
-                    result.add(parsed);
-                }
+        }
+        if(start != 0L) recordCollectionFilter(FilterMetrics.FilterOperation.RETURN, collection, groupName, start);
+        return result;
+    }
+
+    /**
+     * Parses an array for return, arrays of classes being filtered are filtered into a new
+     * array of the same type with any values the user can't view removed. Primitive arrays,
+     * and arrays that aren't being filtered, are copied or shared depending on the {@link ArrayPolicy}.
+     *
+     * @param array The array to be parsed
+     * @param username The name of the user making the call
+     * @param groupName The group of the user making the call
+     * @return The parsed array
+     */
+    public Object handleArrayForReturn(Object array, String username, String groupName) {
+        Class<?> componentType = array.getClass().getComponentType();
+        if(componentType.isPrimitive() || ignoredClasses.contains(componentType) || !filterCollectionOnLoad){
+            return copyArray(array);
+        }
+        Object[] values = (Object[]) array;
+        Object[] result = (Object[]) Array.newInstance(componentType, values.length);
+        int size = 0;
+        for(Object o : values){
+            Object parsed = parseElementForReturn(o, username, groupName);
+            if(parsed != null) {
+                result[size++] = parsed;
             }
         }
+        return size == result.length ? result : Arrays.copyOf(result, size);
+    }
+
+    /**
+     * Parses the values of a map for return into a new map created by the {@link CollectionFactory}. Values of classes being filtered are parsed, and any the user can't view are
+     * removed along with their keys. Keys are never filtered and null values are copied across.
+     *
+     * @param map The map to be parsed
+     * @param username The name of the user making the call
+     * @param groupName The group of the user making the call
+     * @param <K> The type of the keys
+     * @param <V> The type of the values
+     * @return A map of the parsed values
+     */
+    public <K, V> Map<K, V> handleMapForReturn(Map<K, V> map, String username, String groupName) {
+        Map<String, Access<? extends Permission>> accessMap = groupAccess(groupName);
+        Map<K, V> result = collectionFactory.newMap(map);
+        for(Map.Entry<K, V> e : map.entrySet()){
+            V value = e.getValue();
+            if(value != null && accessMap.containsKey(value.getClass().getName())){
+                value = parseObjectForReturn(value, username, groupName);
+                if(value == null) continue;
+            }
+            result.put(e.getKey(), value);
+        }
         return result;
     }
 
+    /* Copies an array into a new one of the same type, unless arrays are being shared */
+    private Object copyArray(Object array){
+        if(arrayPolicy == ArrayPolicy.SHARE) return array;
+        int length = Array.getLength(array);
+        Object copy = Array.newInstance(array.getClass().getComponentType(), length);
+        System.arraycopy(array, 0, copy, 0, length);
+        return copy;
+    }
+
+    /**
+     * Lazily parses the values of an {@link Iterator} for return, each value is only
+     * parsed when it is requested from the returned {@link Iterator}, any values the user
+     * does not have access to are skipped over.
+     *
+     * @param iterator The iterator providing the objects to be parsed
+     * @param username The name of the user making the call
+     * @param groupName The group of the user making the call
+     * @param <T> The type of the objects in the iterator
+     * @return An {@link Iterator} over the parsed values
+     */
+    public <T> Iterator<T> handleIteratorForReturn(Iterator<T> iterator, String username, String groupName) {
+        Spliterator<T> source = Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED);
+        return Spliterators.iterator(handleSpliteratorForReturn(source, username, groupName));
+    }
+
+    /**
+     * Lazily parses the values of a {@link Stream} for return, values are parsed as the
+     * returned {@link Stream} is consumed and any values the user does not have access to
+     * are removed from it. Closing the returned {@link Stream} will close the source.
+     *
+     * @param stream The stream of objects to be parsed
+     * @param username The name of the user making the call
+     * @param groupName The group of the user making the call
+     * @param <T> The type of the objects in the stream
+     * @return A {@link Stream} of the parsed values
+     */
+    public <T> Stream<T> handleStreamForReturn(Stream<T> stream, String username, String groupName) {
+        return stream.map(o -> parseElementForReturn(o, username, groupName))
+                     .filter(Objects::nonNull);
+    }
+
+    /**
+     * Wraps a {@link Spliterator} so that each value is parsed for return as it is
+     * traversed, any values the user does not have access to are skipped over.
+     * As values can be removed the returned {@link Spliterator} never reports
+     * itself as being {@link Spliterator#SIZED}.
+     *
+     * @param spliterator The spliterator providing the objects to be parsed
+     * @param username The name of the user making the call
+     * @param groupName The group of the user making the call
+     * @param <T> The type of the objects in the spliterator
+     * @return A {@link Spliterator} over the parsed values
+     */
+    public <T> Spliterator<T> handleSpliteratorForReturn(Spliterator<T> spliterator, String username, String groupName) {
+        return new ReturnSpliterator<>(spliterator, username, groupName);
+    }
+
+    /**
+     * Gets the group of a user and then returns the
+     * result of {@link #handlePublisherForReturn(Publisher, String, String)}, the group
+     * is only looked up once for the whole stream.
+     *
+     * @param publisher The publisher of the objects to be parsed
+     * @param username The name of the user making the call
+     * @param <T> The type of the objects being published
+     * @return A {@link Publisher} of the parsed values
+     */
+    public <T> Publisher<T> handlePublisherForReturn(Publisher<T> publisher, String username) {
+        return handlePublisherForReturn(publisher, username, getUsersGroup(username));
+    }
+
+    /**
+     * Wraps a Reactive Streams {@link Publisher} so that each value is parsed for return as it
+     * is emitted. Demand from subscribers is honoured, any values the user does not have access to
+     * are dropped and another value is requested from the source in their place.
+     *
+     * @param publisher The publisher of the objects to be parsed
+     * @param username The name of the user making the call
+     * @param groupName The group of the user making the call
+     * @param <T> The type of the objects being published
+     * @return A {@link Publisher} of the parsed values
+     */
+    public <T> Publisher<T> handlePublisherForReturn(Publisher<T> publisher, String username, String groupName) {
+        return new ReturnPublisher<>(publisher, this, username, groupName);
+    }
+
+    /**
+     * Gets the group of a user and then returns the
+     * result of {@link #createReturnView(Object, Class, String, String)}
+     *
+     * @param object The object to create a view of
+     * @param viewType The interface the view implements
+     * @param username The name of the user making the request
+     * @param <I> The type of the view
+     * @return A view of the object
+     */
+    public <I> I createReturnView(Object object, Class<I> viewType, String username){
+        return createReturnView(object, viewType, username, getUsersGroup(username));
+    }
+
+    /**
+     * An alternative to {@link #parseObjectForReturn(Object, String, String)} for large objects
+     * where only a few values are read. Rather than copying the readable values into a new object,
+     * returns a proxy implementing the {@code viewType} interface that checks the permission of each
+     * getter as it is called and reads the value from {@code object}. Values that can't be read are
+     * returned as {@code null}. Related objects, collections and maps are only filtered when their
+     * getter is first called, relations returned as an interface are wrapped in another view.
+     *
+     * The getters on the interface must match the property names of the object, which doesn't have to
+     * implement the interface itself. Only getters can be called on the view. The group's permissions
+     * for the object are taken when the view is created, related values are filtered with the group's
+     * permissions at the time their getter is first called.
+     *
+     * @param object The object to create a view of
+     * @param viewType The interface the view implements
+     * @param username The user making the request
+     * @param groupName The group that the user belongs to
+     * @param <I> The type of the view
+     * @return A view of the object, or null if the object is null or the group has no access to its class
+     */
+    public <I> I createReturnView(Object object, Class<I> viewType, String username, String groupName){
+        if(object == null) return null;
+        if(!viewType.isInterface()) throw new IllegalArgumentException(String.format("Views can only be created for interfaces, %s is not an interface", viewType.getName()));
+        return ReturnView.create(this, object, viewType, groupAccess(groupName), username, groupName);
+    }
+
+    /* Parses a single value from a collection or stream, values of ignored classes are returned as they are */
+    <T> T parseElementForReturn(T o, String username, String groupName) {
+        if(o == null) return null;
+        if(ignoredClasses.contains(o.getClass())) return o;
+        return parseObjectForReturn(o, username, groupName);
+    }
+
     /**
      * Finds the group of the given user and then runs {@link #parseObjectForSaving(Object, Object, String, String)}
      *
@@ -468,58 +1087,197 @@ public class PropertyFilter {
      * @param <T> The type of the object to be returned
      * @return The {@code existingObject} with new values copied over into it
      */
-    //TODO Worry about maps
-    @SuppressWarnings("unchecked")
     public <T> T parseObjectForSaving(T newObject, T existingObject, String username, String groupName) {
+        return saveObject(newObject, existingObject, username, groupName, "", null, true);
+    }
+
+    /**
+     * Finds the group of the given user and then runs {@link #parseObjectForSavingChanges(Object, Object, String, String)}
+     *
+     * @param newObject The object containing the new values
+     * @param existingObject The object containing the currently stored values
+     * @param username The name of the user making the request
+     * @param <T> The type of the objects being saved
+     * @return The paths of the properties that were changed on {@code existingObject}
+     */
+    public <T> Set<String> parseObjectForSavingChanges(T newObject, T existingObject, String username){
+        return parseObjectForSavingChanges(newObject, existingObject, username, getUsersGroup(username));
+    }
+
+    /**
+     * Works in the same way as {@link #parseObjectForSaving(Object, Object, String, String)}, except that
+     * each writable value is first compared against the value on the {@code existingObject} using the
+     * value equality set on the {@link PropertyFilterBuilder}, and is only set if it has changed. This
+     * stops unchanged properties being marked as dirty by an ORM.
+     *
+     * The paths of the changed properties are returned, related entities are given as dotted paths,
+     * for example {@code customer.name}, and values inside collections are given with their position
+     * in the new collection, for example {@code lines[2].quantity}. A collection that has had values
+     * added or removed is returned by its own path.
+     *
+     * @param newObject The object containing new values to be saved into the database
+     * @param existingObject The object with the existing values from the database, cannot be null
+     * @param username The name of the user making the request
+     * @param groupName The group of the user making the request
+     * @param <T> The type of the objects being saved
+     * @return The paths of the properties that were changed on {@code existingObject}, in the order they were changed
+     */
+    public <T> Set<String> parseObjectForSavingChanges(T newObject, T existingObject, String username, String groupName) {
+        if(existingObject == null) {
+            throw new IllegalArgumentException("An existing object is needed to track changes against");
+        }
+        ChangeSet changes = new ChangeSet();
+        saveObject(newObject, existingObject, username, groupName, "", changes, true);
+        return changes.getPaths();
+    }
+
+    /**
+     * Finds the group of the given user and then runs {@link #parseObjectForChangeSet(Object, Object, String, String)}
+     *
+     * @param newObject The object containing the new values
+     * @param existingObject The object containing the currently stored values
+     * @param username The name of the user making the request
+     * @param <T> The type of the objects being compared
+     * @return The changes that saving {@code newObject} would make
+     */
+    public <T> ChangeSet parseObjectForChangeSet(T newObject, T existingObject, String username){
+        return parseObjectForChangeSet(newObject, existingObject, username, getUsersGroup(username));
+    }
+
+    /**
+     * Works out the changes that {@link #parseObjectForSavingChanges(Object, Object, String, String)} would make
+     * without changing the {@code existingObject}, so that they can be used to build a partial update or be
+     * published as an event. The same rules are followed, values that aren't writable by the group are never
+     * part of the result.
+     *
+     * Values added to a collection are filtered copies of the new values. When there is no existing object,
+     * or no existing related object, every writable value of the new object is recorded with an old value of
+     * {@code null}.
+     *
+     * @param newObject The object containing the new values
+     * @param existingObject The object with the existing values from the database, can be null
+     * @param username The name of the user making the request
+     * @param groupName The group of the user making the request
+     * @param <T> The type of the objects being compared
+     * @return The changes that saving {@code newObject} would make
+     */
+    public <T> ChangeSet parseObjectForChangeSet(T newObject, T existingObject, String username, String groupName) {
+        ChangeSet changes = new ChangeSet();
+        saveObject(newObject, existingObject, username, groupName, "", changes, false);
+        return changes;
+    }
+
+    /* Copies the writable values onto the existing object, when changes is not null only changed values are
+     * recorded and copied, and when apply is false nothing is copied at all */
+    private <T> T saveObject(T newObject, T existingObject, String username, String groupName, String path, ChangeSet changes, boolean apply) {
         if(newObject == null) {
             throw new IllegalArgumentException("Null value passed into the filter save method");
         }
 
         if(ignoredClasses.contains(newObject.getClass())) return newObject; // If we're ignoring the value, just return the new one
+        if(!tracing) return saveValues(newObject, existingObject, username, groupName, path, changes, apply, null);
 
-        Set<Field> fields = filterUtil.getAllFields(newObject);
-        Map<String, Access<? extends Permission>> accessMap = getGroup(groupName);
+        FilterTrace trace = FilterTrace.enter();
+        try {
+            return saveValues(newObject, existingObject, username, groupName, path, changes, apply, trace);
+        } finally {
+            if(trace.exit()) recordTrace(FilterMetrics.FilterOperation.SAVE, newObject.getClass(), groupName, trace);
+        }
+    }
 
-        if(existingObject == null) existingObject = (T) FilterUtil.instantiateObject(newObject.getClass());
+    @SuppressWarnings("unchecked")
+    private <T> T saveValues(T newObject, T existingObject, String username, String groupName, String path, ChangeSet changes, boolean apply, FilterTrace trace) {
+        Map<String, Access<? extends Permission>> accessMap = groupAccess(groupName);
+        AccessPlan plan = getPlan(newObject.getClass(), groupName);
+        Access<? extends Permission> access = plan.access;
+        Field[] fields = plan.fields;
 
-        Access<? extends Permission> access = accessMap.get(newObject.getClass().getName());
-        if(access == null) throw new FilterException(String.format("No access defined for class %s and group %s", newObject.getClass().getName(), groupName));
         // If the user doesn't have access to change things, return the object that was there before they started
-        if (access.getAccess().equals(AccessType.NO_ACCESS) || access.getAccess().equals(AccessType.READ)) return existingObject;
+        if (access.getAccess().equals(AccessType.NO_ACCESS) || access.getAccess().equals(AccessType.READ)){
+            if(trace != null) trace.deniedFields += fields.length;
+            if(denialAuditor != null) denialAuditor.record(username, groupName, access.getObjectClass(), null, DenialEvent.Direction.WRITE);
+            return existingObject;
+        }
+        if(plan.missing != null) throw plan.missing;
+
+        if(existingObject == null && apply){
+            existingObject = (T) FilterUtil.instantiateObject(newObject.getClass());
+            if(trace != null) trace.objectsInstantiated++;
+        }
         try {
-            for (Field f : fields) {
-                if(filterUtil.isFieldWritable(f.getName(), access)) {
-                    Object newValue = PropertyUtils.getProperty(newObject, f.getName());
-                    if (!Collection.class.isAssignableFrom(f.getType())) {
-                        // If it's a normal class then we filter again, ignored classes will return full value
-                        if(newValue != null) {
-                            Object existingValue = PropertyUtils.getProperty(newObject, f.getName());
-                            // Check if it's a known class and if we're filtering relations on save
-                            if(accessMap.keySet().contains(newValue.getClass().getName()) && filterRelationsOnSave) {
-                                newValue = parseObjectForSaving(newValue, existingValue, username, groupName);
-                            }
-                            PropertyUtils.setProperty(existingObject, f.getName(), newValue);
-                        }
+            for (int i = 0; i < fields.length; i++) {
+                Field f = fields[i];
+                if(!plan.writable[i]){
+                    if(trace != null) trace.deniedFields++;
+                    if(denialAuditor != null) denialAuditor.record(username, groupName, access.getObjectClass(), f.getName(), DenialEvent.Direction.WRITE);
+                    continue;
+                }
+                if(trace != null){
+                    trace.fieldsCopied++;
+                    trace.at(f.getName());
+                }
+                // Each property is read at most once from each side, paths are only built when changes are being recorded
+                String name = f.getName();
+                String fieldPath = changes == null ? null : path + name;
+                Object newValue = PropertyUtils.getProperty(newObject, name);
+                if (!Collection.class.isAssignableFrom(f.getType())) {
+                    // If it's a normal class then we filter again, ignored classes will return full value
+                    if(newValue == null) continue;
+                    // Plain values are just set over the top, the existing value is only needed to merge into or to record a change
+                    boolean relation = filterRelationsOnSave && accessMap.containsKey(newValue.getClass().getName());
+                    boolean merge = relation || newValue.getClass().isArray() || newValue instanceof Map;
+                    Object existingValue = merge || changes != null ? getExistingValue(existingObject, name) : null;
+                    if(newValue.getClass().isArray()){
+                        Object resultingArray = saveArray(existingValue, newValue, username, groupName, fieldPath, changes, apply);
+                        if(resultingArray != existingValue && apply) PropertyUtils.setProperty(existingObject, name, resultingArray);
+                        continue;
                     }
-                    else {
-                        if(newValue == null){ // Null collection can be ignored
-                            PropertyUtils.setProperty(existingObject, f.getName(), newValue);
+                    if(newValue instanceof Map){
+                        Map<Object, Object> existingMap = (Map<Object, Object>) existingValue;
+                        Map<Object, Object> resultingMap = saveMap(existingMap, (Map<Object, Object>) newValue, username, groupName, fieldPath, changes, apply);
+                        if(resultingMap != existingMap && apply) PropertyUtils.setProperty(existingObject, name, resultingMap);
+                        continue;
+                    }
+                    // Check if it's a known class and if we're filtering relations on save, the values are merged into the existing related object
+                    if(relation) {
+                        newValue = saveObject(newValue, existingValue, username, groupName, changes == null ? null : fieldPath + ".", changes, apply);
+                    }
+                    if(newValue == existingValue) continue; // Merged in place, or already holds the value
+                    if(changes == null) {
+                        PropertyUtils.setProperty(existingObject, name, newValue);
+                    }
+                    else if(!valueEquality.test(existingValue, newValue)) {
+                        changes.add(ChangeSet.Type.SET, fieldPath, existingValue, newValue);
+                        if(apply) PropertyUtils.setProperty(existingObject, name, newValue);
+                    }
+                }
+                else {
+                    // Get the old and new collection, the old one isn't needed to clear a collection without recording it
+                    Collection existingCollection = newValue == null && changes == null ? null : (Collection) getExistingValue(existingObject, name);
+                    if(newValue == null){ // Null collection can be ignored
+                        if(changes == null) {
+                            PropertyUtils.setProperty(existingObject, name, null);
                         }
-                        else {
-                            // Get the old and new collection
-                            Collection newCollection = (Collection)newValue;
-                            Collection existingCollection = (Collection) PropertyUtils.getProperty(existingObject, f.getName());
-                            // Parse the collection and get one containing all the new values
-                            Collection<?> resultingCollection = handleCollectionsForSaving(existingCollection, newCollection, username, groupName);
-                            if(existingCollection == null){ // If the collection was null then we need to instantiate it
-                                existingCollection = FilterUtil.instantiateCollection(f.getType());
-                                PropertyUtils.setProperty(existingObject, f.getName(), existingCollection);
-                            }
-                            // Clear the current contents of the collection and add all the results of the filtering
-                            existingCollection.clear();
-                            existingCollection.addAll(resultingCollection);
+                        else if(existingCollection != null) {
+                            changes.add(ChangeSet.Type.SET, fieldPath, existingCollection, null);
+                            if(apply) PropertyUtils.setProperty(existingObject, name, null);
                         }
+                        continue;
+                    }
+                    Collection newCollection = (Collection)newValue;
+                    // Parse the collection and get one containing all the new values
+                    Collection<?> resultingCollection = saveCollection(existingCollection, newCollection, username, groupName, fieldPath, changes, apply);
+                    // Nothing added or removed, any changes inside the values have already been recorded
+                    if(changes != null && !recordCollectionChanges(fieldPath, existingCollection, resultingCollection, changes)) continue;
+                    if(!apply) continue;
+                    if(existingCollection == null){ // If the collection was null then we need to instantiate it
+                        existingCollection = collectionFactory.newCollection(newCollection);
+                        if(!f.getType().isInstance(existingCollection)) existingCollection = FilterUtil.instantiateCollection(f.getType());
+                        PropertyUtils.setProperty(existingObject, name, existingCollection);
                     }
+                    // Clear the current contents of the collection and add all the results of the filtering
+                    existingCollection.clear();
+                    existingCollection.addAll(resultingCollection);
                 }
             }
         } catch (NoSuchMethodException | InvocationTargetException | IllegalAccessException e) {
@@ -528,6 +1286,10 @@ public class PropertyFilter {
         return existingObject;
     }
 
+    private static Object getExistingValue(Object existingObject, String name) throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
+        return existingObject == null ? null : PropertyUtils.getProperty(existingObject, name);
+    }
+
     /**
      * Parses a collection of objects and returns a new collection containing the values
      * from {@code existingCollection} with the values from {@code newCollection} copied over
@@ -541,14 +1303,39 @@ public class PropertyFilter {
      * @return A collection containing all the objects from {@code existingCollection} with the
      * values from the matching object in {@code newCollection} copied over into them
      */
-    @SuppressWarnings("unchecked")
     public  <T> Collection<T> handleCollectionsForSaving(Collection<T> exitingCollection, Collection<T> newCollection, String username, String groupName) {
-        Collection<T> resultingCollection = FilterUtil.instantiateCollection(newCollection.getClass());
+        return saveCollection(exitingCollection, newCollection, username, groupName, "", null, true);
+    }
+
+    /**
+     * Works out the changes that {@link #handleCollectionsForSaving(Collection, Collection, String, String)}
+     * would make without changing any of the values in {@code exitingCollection}. Values added and removed
+     * are recorded with an empty path, changes to the values inside the collection are given with their
+     * position in the new collection, for example {@code [2].quantity}.
+     *
+     * @param exitingCollection A collection containing the values stored in the database, can be null
+     * @param newCollection A collection containing the new values
+     * @param username The name of the user making the call
+     * @param groupName The group of the user
+     * @return The changes that saving {@code newCollection} would make
+     */
+    public <T> ChangeSet handleCollectionsForChangeSet(Collection<T> exitingCollection, Collection<T> newCollection, String username, String groupName) {
+        ChangeSet changes = new ChangeSet();
+        Collection<T> resultingCollection = saveCollection(exitingCollection, newCollection, username, groupName, "", changes, false);
+        recordCollectionChanges("", exitingCollection, resultingCollection, changes);
+        return changes;
+    }
+
+    private <T> Collection<T> saveCollection(Collection<T> exitingCollection, Collection<T> newCollection, String username, String groupName, String path, ChangeSet changes, boolean apply) {
+        Collection<T> resultingCollection = collectionFactory.newCollection(newCollection);
         if(!filterCollectionsOnSave){ // If we're not filtering collections then we just add all the new ones to the existing ones
             resultingCollection.addAll(newCollection);
             return resultingCollection;
         }
+        long start = metrics == FilterMetrics.NOOP ? 0L : System.nanoTime();
+        int index = 0;
         for(T newVal : newCollection){
+            if(newVal == null) continue;
             T existingVal = null;
             if(exitingCollection != null){ // If there was no collection before, we don't need to check for the existence of the object before filtering
                 for(T o : exitingCollection){
@@ -558,17 +1345,168 @@ public class PropertyFilter {
                     }
                 }
             }
-            // If it's a class type we aren't filtering, and it wasn't found before, then add it to the resulting collection
+            // If it's a class type we aren't filtering then keep the existing value, or add the new one if it wasn't there before
             if(ignoredClasses.contains(newVal.getClass())){
-                if(existingVal == null) {
-                    resultingCollection.add(newVal);
-                }
+                resultingCollection.add(existingVal == null ? newVal : existingVal);
+            }
+            else if(existingVal == null) { // New values are filtered into a new object, adding it is recorded against the collection
+                resultingCollection.add(saveNewObject(newVal, username, groupName));
             }
             else { // Filter the object and add to the result
-                T parsedObject = parseObjectForSaving(newVal, existingVal, username, groupName);
+                T parsedObject = saveObject(newVal, existingVal, username, groupName, changes == null ? null : path + "[" + index + "].", changes, apply);
                 resultingCollection.add(parsedObject);
             }
+            index++;
         }
+        if(start != 0L) recordCollectionFilter(FilterMetrics.FilterOperation.SAVE, newCollection, groupName, start);
         return resultingCollection;
     }
+
+    private void recordCollectionFilter(FilterMetrics.FilterOperation operation, Collection<?> collection, String groupName, long start){
+        metrics.recordCollectionFilter(operation, collection.getClass(), groupName, System.nanoTime() - start, collection.size(), FilterTrace.currentDepth());
+    }
+
+    /* Saves the values of a map in place, entries are matched by key and values of known classes are merged into the
+     * existing value for the key, returns a new map if there was no existing one. Entry paths include their key, {@code prices[GBP]} */
+    private Map<Object, Object> saveMap(Map<Object, Object> existingMap, Map<Object, Object> newMap, String username, String groupName, String path, ChangeSet changes, boolean apply) {
+        Map<String, Access<? extends Permission>> accessMap = groupAccess(groupName);
+        Map<Object, Object> resultingMap = existingMap == null && apply ? collectionFactory.newMap(newMap) : existingMap;
+        int recorded = changes == null ? 0 : changes.size();
+        for(Map.Entry<Object, Object> e : newMap.entrySet()){
+            Object key = e.getKey();
+            Object newVal = e.getValue();
+            Object existingVal = existingMap == null ? null : existingMap.get(key);
+            String entryPath = changes == null ? null : path + "[" + key + "]";
+            if(newVal != null && filterCollectionsOnSave && accessMap.containsKey(newVal.getClass().getName())){
+                newVal = existingVal == null
+                        ? saveNewObject(newVal, username, groupName) // New values are filtered into a new object
+                        : saveObject(newVal, existingVal, username, groupName, entryPath + ".", changes, apply);
+            }
+            if(changes != null){
+                if(existingVal == null && (existingMap == null || !existingMap.containsKey(key))){
+                    changes.add(ChangeSet.Type.ADD, entryPath, null, newVal);
+                }
+                else if(newVal == existingVal || valueEquality.test(existingVal, newVal)){
+                    continue;
+                }
+                else {
+                    changes.add(ChangeSet.Type.SET, entryPath, existingVal, newVal);
+                }
+            }
+            if(apply && newVal != existingVal) resultingMap.put(key, newVal);
+        }
+        if(existingMap != null){
+            Iterator<Map.Entry<Object, Object>> existingEntries = existingMap.entrySet().iterator();
+            while(existingEntries.hasNext()){
+                Map.Entry<Object, Object> e = existingEntries.next();
+                if(newMap.containsKey(e.getKey())) continue;
+                if(changes != null) changes.add(ChangeSet.Type.REMOVE, path + "[" + e.getKey() + "]", e.getValue(), null);
+                if(apply) existingEntries.remove();
+            }
+        }
+        // A map that was missing is only created if something has been put in it
+        if(existingMap == null && changes != null && changes.size() == recorded) return null;
+        return resultingMap;
+    }
+
+    /* Saves the values of an array, arrays of known classes are matched and filtered in the same way as collections,
+     * returns the existing array if nothing has changed */
+    /* New values in a collection are filtered into a new object, which is left blank when the group can't change the class */
+    @SuppressWarnings("unchecked")
+    private <T> T saveNewObject(T newVal, String username, String groupName){
+        T saved = saveObject(newVal, null, username, groupName, null, null, true);
+        return saved != null ? saved : (T) FilterUtil.instantiateObject(newVal.getClass());
+    }
+
+    private Object saveArray(Object existingArray, Object newArray, String username, String groupName, String path, ChangeSet changes, boolean apply) {
+        Class<?> componentType = newArray.getClass().getComponentType();
+        if(componentType.isPrimitive() || ignoredClasses.contains(componentType) || !filterCollectionsOnSave){
+            if(changes == null) return copyArray(newArray);
+            if(Objects.deepEquals(existingArray, newArray)) return existingArray; // Compares primitive arrays without boxing
+            Object resultingArray = apply ? copyArray(newArray) : newArray;
+            changes.add(ChangeSet.Type.SET, path, existingArray, resultingArray);
+            return resultingArray;
+        }
+        List<Object> existingValues = existingArray == null ? null : Arrays.asList((Object[]) existingArray);
+        Collection<Object> resultingValues = saveCollection(existingValues, Arrays.asList((Object[]) newArray), username, groupName, path, changes, apply);
+        if(changes != null && !recordCollectionChanges(path, existingValues, resultingValues, changes)) return existingArray;
+        return resultingValues.toArray((Object[]) Array.newInstance(componentType, resultingValues.size()));
+    }
+
+    /* Records the values added to and removed from a collection, returns false if the collections hold the same values in the same order */
+    private boolean recordCollectionChanges(String path, Collection<?> existing, Collection<?> result, ChangeSet changes){
+        if(existing == null){
+            for(Object o : result){
+                changes.add(ChangeSet.Type.ADD, path, null, o);
+            }
+            return true;
+        }
+        int recorded = changes.size();
+        for(Object o : existing){
+            if(!result.contains(o)) changes.add(ChangeSet.Type.REMOVE, path, o, null);
+        }
+        for(Object o : result){
+            if(!existing.contains(o)) changes.add(ChangeSet.Type.ADD, path, null, o);
+        }
+        if(changes.size() > recorded) return true;
+        if(existing.size() == result.size() && (!(existing instanceof List) || sameOrder(existing, result))) return false;
+        // Same values but reordered or duplicated, record the whole collection as being replaced
+        changes.add(ChangeSet.Type.SET, path, new ArrayList<>(existing), result);
+        return true;
+    }
+
+    private boolean sameOrder(Collection<?> existing, Collection<?> result){
+        Iterator<?> existingValues = existing.iterator();
+        for(Object o : result){
+            Object existingValue = existingValues.next();
+            if(o != existingValue && !valueEquality.test(existingValue, o)) return false;
+        }
+        return true;
+    }
+
+    /* Spliterator that parses values for return as they are traversed */
+    private class ReturnSpliterator<T> implements Spliterator<T> {
+
+        private final Spliterator<T> source;
+        private final String username;
+        private final String groupName;
+        private T current;
+
+        ReturnSpliterator(Spliterator<T> source, String username, String groupName) {
+            this.source = source;
+            this.username = username;
+            this.groupName = groupName;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            // Keep pulling from the source until there is a value the user can see, or it runs out
+            while(source.tryAdvance(o -> current = parseElementForReturn(o, username, groupName))){
+                T parsed = current;
+                current = null;
+                if(parsed != null){
+                    action.accept(parsed);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            Spliterator<T> split = source.trySplit();
+            return split == null ? null : new ReturnSpliterator<>(split, username, groupName);
+        }
+
+        @Override
+        public long estimateSize() {
+            return source.estimateSize();
+        }
+
+        @Override
+        public int characteristics() {
+            // Values can be dropped and are replaced with copies, so only these characteristics still hold
+            return (source.characteristics() & (ORDERED | CONCURRENT | IMMUTABLE)) | NONNULL;
+        }
+    }
 }
@@ -1,11 +1,19 @@
 package uk.co.agware.filter;
 
+import uk.co.agware.filter.audit.DenialAuditor;
 import uk.co.agware.filter.impl.DefaultClassFactory;
+import uk.co.agware.filter.impl.DefaultCollectionFactory;
+import uk.co.agware.filter.metrics.FilterMetrics;
+import uk.co.agware.filter.metrics.SlowFilterListener;
+import uk.co.agware.filter.util.CollectionFactory;
 import uk.co.agware.filter.util.FilterUtil;
 
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiPredicate;
 
 /**
  * Used for building a PropertyFilter object, comes with default values set which can be overridden.
@@ -22,6 +30,15 @@ public class PropertyFilterBuilder {
     private boolean filterRelationsOnLoad = true;
     private boolean filterCollectionsOnSave = true;
     private boolean filterRelationsOnSave = true;
+    private BiPredicate<Object, Object> valueEquality = Objects::equals;
+    private ArrayPolicy arrayPolicy = ArrayPolicy.COPY;
+    private CollectionFactory collectionFactory = new DefaultCollectionFactory();
+    private FilterMetrics metrics = FilterMetrics.NOOP;
+    private long slowFilterNanos = 0;
+    private double slowFilterSampleRate = 1;
+    private SlowFilterListener slowFilterListener = SlowFilterListener.LOG;
+    private DenialAuditor denialAuditor = null;
+    private MissingPermissionPolicy missingPermissionPolicy = MissingPermissionPolicy.FAIL;
 
     /** Default Constructor */
     public PropertyFilterBuilder(){}
@@ -126,6 +143,119 @@ public class PropertyFilterBuilder {
         return this;
     }
 
+    /**
+     * Sets how the {@link PropertyFilter} decides whether a value has changed when
+     * only copying changed values with {@link PropertyFilter#parseObjectForSavingChanges(Object, Object, String, String)},
+     * the predicate is passed the existing value followed by the new value and should return {@code true}
+     * if they are the same. Defaults to {@link Objects#equals(Object, Object)}.
+     *
+     * @param valueEquality The equality check to use
+     * @return Returns itself
+     */
+    public PropertyFilterBuilder valueEquality(BiPredicate<Object, Object> valueEquality){
+        this.valueEquality = valueEquality;
+        return this;
+    }
+
+    /**
+     * Sets whether arrays that don't need their values filtering, such as primitive arrays, are
+     * copied or shared between the source and resulting objects. Defaults to {@link ArrayPolicy#COPY}.
+     *
+     * @param arrayPolicy The policy to use
+     * @return Returns itself
+     */
+    public PropertyFilterBuilder arrayPolicy(ArrayPolicy arrayPolicy){
+        this.arrayPolicy = arrayPolicy;
+        return this;
+    }
+
+    /**
+     * Sets the {@link CollectionFactory} used to create the collections and maps that
+     * filtered values are copied into. Defaults to a {@link DefaultCollectionFactory}.
+     *
+     * @param collectionFactory The factory to use
+     * @return Returns itself
+     */
+    public PropertyFilterBuilder collectionFactory(CollectionFactory collectionFactory){
+        this.collectionFactory = collectionFactory;
+        return this;
+    }
+
+    /**
+     * Sets the {@link FilterMetrics} that the {@link PropertyFilter} records its measurements to,
+     * such as an {@link uk.co.agware.filter.metrics.InMemoryFilterMetrics}. Defaults to
+     * {@link FilterMetrics#NOOP}, in which case no measurements are taken.
+     *
+     * @param metrics The metrics to record to
+     * @return Returns itself
+     */
+    public PropertyFilterBuilder metrics(FilterMetrics metrics){
+        this.metrics = metrics == null ? FilterMetrics.NOOP : metrics;
+        return this;
+    }
+
+    /**
+     * Sets how long filtering a single object can take before it is reported to the
+     * {@link SlowFilterListener}, along with the shape of the object filtered. Slow calls
+     * aren't looked for unless a threshold is set.
+     *
+     * @param threshold The time a call can take before it is reported, 0 to turn the reports off
+     * @param unit The unit of {@code threshold}
+     * @return Returns itself
+     */
+    public PropertyFilterBuilder slowFilterThreshold(long threshold, TimeUnit unit){
+        this.slowFilterNanos = unit.toNanos(threshold);
+        return this;
+    }
+
+    /**
+     * Sets the fraction of slow calls that are reported, so that a burst of slow calls doesn't
+     * create a report for each one. Defaults to 1, reporting every slow call.
+     *
+     * @param sampleRate The fraction of slow calls to report, between 0 and 1
+     * @return Returns itself
+     */
+    public PropertyFilterBuilder slowFilterSampleRate(double sampleRate){
+        if(sampleRate < 0 || sampleRate > 1) throw new IllegalArgumentException("The sample rate must be between 0 and 1");
+        this.slowFilterSampleRate = sampleRate;
+        return this;
+    }
+
+    /**
+     * Sets the {@link SlowFilterListener} told about slow calls. Defaults to {@link SlowFilterListener#LOG}.
+     *
+     * @param listener The listener to report slow calls to
+     * @return Returns itself
+     */
+    public PropertyFilterBuilder slowFilterListener(SlowFilterListener listener){
+        this.slowFilterListener = listener;
+        return this;
+    }
+
+    /**
+     * Sets a {@link DenialAuditor} to record each field that a user is stopped from reading or writing.
+     * Denials aren't recorded unless an auditor is set.
+     *
+     * @param denialAuditor The auditor to record denials to
+     * @return Returns itself
+     */
+    public PropertyFilterBuilder denialAuditor(DenialAuditor denialAuditor){
+        this.denialAuditor = denialAuditor;
+        return this;
+    }
+
+    /**
+     * Sets what the {@link PropertyFilter} does with fields that have no permission defined for them
+     * in the user's group. Defaults to {@link MissingPermissionPolicy#FAIL}.
+     *
+     * @param missingPermissionPolicy The policy to use
+     * @return Returns itself
+     */
+    public PropertyFilterBuilder missingPermissionPolicy(MissingPermissionPolicy missingPermissionPolicy){
+        this.missingPermissionPolicy = missingPermissionPolicy;
+        return this;
+    }
+
     /**
      * Returns a {@link PropertyFilter} built with the values defined in this builder
      * @return An initialized {@link PropertyFilter}
@@ -136,6 +266,15 @@ public class PropertyFilterBuilder {
                 filterCollectionsOnLoad,
                 filterRelationsOnLoad,
                 filterCollectionsOnSave,
-                filterRelationsOnSave);
+                filterRelationsOnSave,
+                valueEquality,
+                arrayPolicy,
+                collectionFactory,
+                metrics,
+                slowFilterNanos,
+                slowFilterSampleRate,
+                slowFilterListener,
+                denialAuditor,
+                missingPermissionPolicy);
     }
 }
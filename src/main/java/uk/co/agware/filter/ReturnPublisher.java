@@ -0,0 +1,104 @@
+package uk.co.agware.filter;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * A {@link Publisher} that parses each value emitted by a source {@link Publisher}
+ * for return using a {@link PropertyFilter}. Demand from the subscriber is passed
+ * straight through to the source, any values the user does not have access to are dropped
+ * and replaced by requesting another value from the source, so the subscriber never
+ * receives more values than it asked for.
+ *
+ * The group of the user is resolved once when the publisher is created and is used
+ * for every value in the stream.
+ *
+ * Created through {@link PropertyFilter#handlePublisherForReturn(Publisher, String, String)}.
+ */
+class ReturnPublisher<T> implements Publisher<T> {
+
+    private final Publisher<T> source;
+    private final PropertyFilter propertyFilter;
+    private final String username;
+    private final String groupName;
+
+    ReturnPublisher(Publisher<T> source, PropertyFilter propertyFilter, String username, String groupName) {
+        this.source = source;
+        this.propertyFilter = propertyFilter;
+        this.username = username;
+        this.groupName = groupName;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super T> subscriber) {
+        if(subscriber == null) throw new NullPointerException("Subscriber cannot be null");
+        source.subscribe(new ReturnSubscriber(subscriber));
+    }
+
+    /* Sits between the source and the real subscriber, filtering each value as it passes through */
+    private class ReturnSubscriber implements Subscriber<T>, Subscription {
+
+        private final Subscriber<? super T> downstream;
+        private Subscription upstream;
+        private boolean done;
+
+        ReturnSubscriber(Subscriber<? super T> downstream) {
+            this.downstream = downstream;
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            if(upstream != null){ // Only a single subscription is allowed
+                subscription.cancel();
+                return;
+            }
+            upstream = subscription;
+            downstream.onSubscribe(this);
+        }
+
+        @Override
+        public void onNext(T value) {
+            if(done) return;
+            T parsed;
+            try {
+                parsed = propertyFilter.parseElementForReturn(value, username, groupName);
+            }
+            catch (RuntimeException e){
+                upstream.cancel();
+                onError(e);
+                return;
+            }
+            if(parsed == null){ // Nothing to emit, so replace the demand that the dropped value used up
+                upstream.request(1);
+            }
+            else {
+                downstream.onNext(parsed);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            if(done) return;
+            done = true;
+            downstream.onError(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            if(done) return;
+            done = true;
+            downstream.onComplete();
+        }
+
+        @Override
+        public void request(long n) {
+            upstream.request(n);
+        }
+
+        @Override
+        public void cancel() {
+            upstream.cancel();
+        }
+    }
+}
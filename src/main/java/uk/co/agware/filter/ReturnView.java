@@ -0,0 +1,143 @@
+package uk.co.agware.filter;
+
+import com.google.common.base.Defaults;
+import org.apache.commons.beanutils.PropertyUtils;
+import uk.co.agware.filter.data.Access;
+import uk.co.agware.filter.data.AccessType;
+import uk.co.agware.filter.data.Permission;
+import uk.co.agware.filter.exceptions.FilterException;
+
+import java.beans.Introspector;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Handler behind the interface proxies returned by {@link PropertyFilter#createReturnView(Object, Class, String, String)}.
+ * Nothing is copied when the view is created, each getter checks the permission for its property
+ * when it is called and then reads the value straight from the original object. Properties the
+ * group can't read return {@code null}, or the default value for primitives.
+ *
+ * Related objects are filtered the first time their getter is called, either into another view if
+ * the getter returns an interface or with {@link PropertyFilter#parseObjectForReturn(Object, String, String)}
+ * if it doesn't. Collections, maps and arrays are parsed in the same way as the eager filtering. The
+ * filtered values are kept so that later calls return the same object. The permissions of the target
+ * itself are taken when the view is created, related values are filtered with the group's permissions
+ * at the time their getter is first called.
+ *
+ * A related object that isn't being filtered is returned as it is, unless the getter returns an interface
+ * the object doesn't implement, in which case it is wrapped in a view as that is the only way to return it.
+ *
+ * Only getters can be called on a view, any other method throws an {@link UnsupportedOperationException}.
+ */
+class ReturnView implements InvocationHandler {
+
+    private static final Object NULL = new Object();
+    // Property names of the getter methods of each interface, methods that aren't getters map to an empty string
+    private static final ClassValue<Map<Method, String>> PROPERTY_NAMES = new ClassValue<Map<Method, String>>() {
+        @Override
+        protected Map<Method, String> computeValue(Class<?> type) {
+            Map<Method, String> names = new HashMap<>();
+            for(Method method : type.getDeclaredMethods()){
+                names.put(method, findPropertyName(method));
+            }
+            return names;
+        }
+    };
+
+    private final PropertyFilter propertyFilter;
+    private final Object target;
+    private final AccessPlan plan;
+    private final Map<String, Access<? extends Permission>> accessMap;
+    private final String username;
+    private final String groupName;
+    private final Map<Method, Object> filteredValues = new ConcurrentHashMap<>();
+
+    private ReturnView(PropertyFilter propertyFilter, Object target, AccessPlan plan, Map<String, Access<? extends Permission>> accessMap, String username, String groupName) {
+        this.propertyFilter = propertyFilter;
+        this.target = target;
+        this.plan = plan;
+        this.accessMap = accessMap;
+        this.username = username;
+        this.groupName = groupName;
+    }
+
+    /* Returns a view of the target, or null if the group has no access to its class */
+    static <I> I create(PropertyFilter propertyFilter, Object target, Class<I> viewType, Map<String, Access<? extends Permission>> accessMap, String username, String groupName){
+        AccessPlan plan = propertyFilter.getPlan(target.getClass(), groupName);
+        if(plan.access.getAccess().equals(AccessType.NO_ACCESS)) return null;
+        ReturnView handler = new ReturnView(propertyFilter, target, plan, accessMap, username, groupName);
+        return viewType.cast(Proxy.newProxyInstance(viewType.getClassLoader(), new Class<?>[]{viewType}, handler));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if(method.getDeclaringClass() == Object.class){
+            switch (method.getName()){
+                case "equals": return proxy == args[0];
+                case "hashCode": return System.identityHashCode(proxy);
+                default: return "View of " + target.getClass().getName() + "@" + Integer.toHexString(System.identityHashCode(target));
+            }
+        }
+        String property = PROPERTY_NAMES.get(method.getDeclaringClass()).getOrDefault(method, "");
+        if(property.isEmpty()){
+            throw new UnsupportedOperationException(String.format("Method %s is not a getter, only getters can be called on a view", method.getName()));
+        }
+        if(!plan.isReadable(property)){
+            return Defaults.defaultValue(method.getReturnType());
+        }
+        Object filtered = filteredValues.get(method);
+        if(filtered != null) return filtered == NULL ? null : filtered;
+
+        Object value;
+        try {
+            value = PropertyUtils.getProperty(target, property);
+        } catch (NoSuchMethodException | InvocationTargetException | IllegalAccessException e) {
+            throw new FilterException(e.getMessage(), e);
+        }
+        if(value == null || propertyFilter.isIgnoredClass(value.getClass())) return value;
+        Class<?> returnType = method.getReturnType();
+        boolean needsView = returnType.isInterface() && !returnType.isInstance(value);
+        if(!(value instanceof Collection || value instanceof Map || value.getClass().isArray()) && !isFilteredRelation(value) && !needsView) return value;
+
+        // Only values that need filtering are kept, everything else is read from the target on each call
+        filtered = filter(value, returnType);
+        Object existing = filteredValues.putIfAbsent(method, filtered == null ? NULL : filtered);
+        if(existing != null) return existing == NULL ? null : existing;
+        return filtered;
+    }
+
+    private boolean isFilteredRelation(Object value){
+        return propertyFilter.isFilterRelationsOnLoad() && accessMap.containsKey(value.getClass().getName());
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object filter(Object value, Class<?> returnType){
+        if(value instanceof Collection){
+            return propertyFilter.isFilterCollectionOnLoad() ? propertyFilter.handleCollectionForReturn((Collection<Object>) value, username, groupName) : value;
+        }
+        if(value instanceof Map){
+            return propertyFilter.isFilterCollectionOnLoad() ? propertyFilter.handleMapForReturn((Map<Object, Object>) value, username, groupName) : value;
+        }
+        if(value.getClass().isArray()){
+            return propertyFilter.handleArrayForReturn(value, username, groupName);
+        }
+        if(returnType.isInterface()){
+            return create(propertyFilter, value, returnType, accessMap, username, groupName);
+        }
+        return propertyFilter.parseObjectForReturn(value, username, groupName);
+    }
+
+    private static String findPropertyName(Method method){
+        if(method.getParameterCount() != 0 || method.getReturnType() == void.class) return "";
+        String name = method.getName();
+        if(name.startsWith("get") && name.length() > 3) return Introspector.decapitalize(name.substring(3));
+        if(name.startsWith("is") && name.length() > 2 && method.getReturnType() == boolean.class) return Introspector.decapitalize(name.substring(2));
+        return "";
+    }
+}
@@ -0,0 +1,35 @@
+package uk.co.agware.filter.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Marks a {@link FilterTarget} whose filtered copies can be reused, for reference data that doesn't
+ * change once it has been loaded. The {@link uk.co.agware.filter.PropertyFilter} keeps the copy made
+ * for each group and returns it again the next time the same object is filtered for that group,
+ * until the groups are changed.
+ *
+ * The same copy is returned to every caller so it must not be changed, and the metrics and denial
+ * audit only see the call that made the copy.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE})
+public @interface CacheResult {
+
+    /**
+     * The property identifying the object, such as an id or version. If not set the object itself
+     * is the key and copies are dropped once the object is no longer used.
+     */
+    String key() default "";
+
+    /** The most objects of this class to keep copies for */
+    long maximumSize() default 1000;
+
+    /** How long copies are kept after they are made, 0 keeps them until they are evicted by size */
+    long expireAfterWrite() default 0;
+
+    TimeUnit unit() default TimeUnit.SECONDS;
+}
@@ -0,0 +1,200 @@
+package uk.co.agware.filter.audit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records the fields that users were denied access to, set on a filter with
+ * {@link uk.co.agware.filter.PropertyFilterBuilder#denialAuditor(DenialAuditor)}.
+ *
+ * Denials are written into a ring buffer that is created up front, so recording one doesn't create
+ * any objects or take any locks. A daemon thread drains the buffer and passes each denial on to the
+ * {@link DenialConsumer}. If denials are recorded faster than they are drained and the buffer fills up,
+ * new denials are dropped and counted in {@link #getDropped()} rather than making the filter wait.
+ *
+ * The buffer follows the bounded queue design by Dmitry Vyukov, each slot has a sequence number saying
+ * whether it is free to be written or ready to be read.
+ */
+public class DenialAuditor implements AutoCloseable {
+
+    private static final DenialEvent.Direction[] DIRECTIONS = DenialEvent.Direction.values();
+
+    private final Logger logger = LoggerFactory.getLogger(DenialAuditor.class);
+
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final long[] timestamps;
+    private final String[] usernames;
+    private final String[] groupNames;
+    private final String[] classNames;
+    private final String[] fieldNames;
+    private final byte[] directions;
+    private final AtomicLong tail = new AtomicLong();
+    private long head; // Only used by the drain thread
+    private final LongAdder recorded = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    private final DenialConsumer consumer;
+    private final long drainIntervalNanos;
+    private final Thread drainer;
+    private volatile boolean running = true;
+
+    /**
+     * Creates the auditor and starts its drain thread, which checks the buffer every 10 milliseconds
+     *
+     * @param capacity The number of denials the buffer can hold, rounded up to a power of two
+     * @param consumer Receives each denial
+     */
+    public DenialAuditor(int capacity, DenialConsumer consumer) {
+        this(capacity, consumer, 10, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates the auditor and starts its drain thread
+     *
+     * @param capacity The number of denials the buffer can hold, rounded up to a power of two
+     * @param consumer Receives each denial
+     * @param drainInterval How long the drain thread waits when the buffer is empty
+     * @param unit The unit of {@code drainInterval}
+     */
+    public DenialAuditor(int capacity, DenialConsumer consumer, long drainInterval, TimeUnit unit) {
+        if(capacity < 1 || capacity > 1 << 30) throw new IllegalArgumentException("The capacity must be between 1 and 2^30");
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        if(size == 0) size = 1;
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        for(int i = 0; i < size; i++){
+            sequences.set(i, i);
+        }
+        this.timestamps = new long[size];
+        this.usernames = new String[size];
+        this.groupNames = new String[size];
+        this.classNames = new String[size];
+        this.fieldNames = new String[size];
+        this.directions = new byte[size];
+        this.consumer = consumer;
+        this.drainIntervalNanos = unit.toNanos(drainInterval);
+        this.drainer = new Thread(this::drainLoop, "property-filter-audit");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * Records a denial, returning straight away. The denial is dropped if the buffer is full.
+     *
+     * @param username The user making the call
+     * @param groupName The group of the user
+     * @param className The class of the object being filtered
+     * @param fieldName The field that was denied, or {@code null} if the whole class was
+     * @param direction Whether the field was being read or written
+     * @return Whether the denial was added to the buffer
+     */
+    public boolean record(String username, String groupName, String className, String fieldName, DenialEvent.Direction direction) {
+        long pos = tail.get();
+        while(true){
+            int index = (int) pos & mask;
+            long difference = sequences.get(index) - pos;
+            if(difference == 0){
+                if(tail.compareAndSet(pos, pos + 1)) {
+                    timestamps[index] = System.currentTimeMillis();
+                    usernames[index] = username;
+                    groupNames[index] = groupName;
+                    classNames[index] = className;
+                    fieldNames[index] = fieldName;
+                    directions[index] = (byte) direction.ordinal();
+                    sequences.set(index, pos + 1); // Publishes the values written above to the drain thread
+                    recorded.increment();
+                    return true;
+                }
+                pos = tail.get();
+            }
+            else if(difference < 0){ // The slot hasn't been drained since the last time round the buffer
+                dropped.increment();
+                return false;
+            }
+            else { // Another thread has claimed this slot
+                pos = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of denials added to the buffer
+     *
+     * @return The number of denials recorded
+     */
+    public long getRecorded() {
+        return recorded.sum();
+    }
+
+    /**
+     * Returns the number of denials dropped because the buffer was full
+     *
+     * @return The number of denials dropped
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Returns the number of denials the buffer can hold
+     *
+     * @return The capacity of the buffer
+     */
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Stops the drain thread once it has passed on the denials already in the buffer,
+     * denials recorded after this are not passed on.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(drainer);
+        try {
+            drainer.join(TimeUnit.NANOSECONDS.toMillis(drainIntervalNanos) + 1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drainLoop() {
+        while(running){
+            if(drain() == 0){
+                LockSupport.parkNanos(this, drainIntervalNanos);
+            }
+        }
+        drain();
+    }
+
+    /* Passes on everything that is ready in the buffer, returns how many were passed on */
+    private int drain() {
+        int count = 0;
+        while(true){
+            int index = (int) head & mask;
+            if(sequences.get(index) != head + 1) return count;
+            DenialEvent event = new DenialEvent(timestamps[index], usernames[index], groupNames[index],
+                    classNames[index], fieldNames[index], DIRECTIONS[directions[index]]);
+            usernames[index] = null;
+            groupNames[index] = null;
+            classNames[index] = null;
+            fieldNames[index] = null;
+            sequences.set(index, head + mask + 1); // Frees the slot for the next time round
+            head++;
+            count++;
+            try {
+                consumer.accept(event);
+            } catch (RuntimeException e) {
+                logger.error("Denial consumer failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package uk.co.agware.filter.audit;
+
+/**
+ * Receives the denials recorded by a {@link DenialAuditor}, on the auditor's drain thread
+ * rather than the thread doing the filtering, so it is free to write to a log or send the
+ * events somewhere else.
+ */
+@FunctionalInterface
+public interface DenialConsumer {
+
+    void accept(DenialEvent event);
+}
@@ -0,0 +1,68 @@
+package uk.co.agware.filter.audit;
+
+/**
+ * A property, or a whole class, that a user was stopped from reading or writing,
+ * recorded by a {@link DenialAuditor}.
+ */
+public final class DenialEvent {
+
+    /** Whether the value was being read for return, or written while saving */
+    public enum Direction {
+        READ,
+        WRITE
+    }
+
+    private final long timestamp;
+    private final String username;
+    private final String groupName;
+    private final String className;
+    private final String fieldName;
+    private final Direction direction;
+
+    public DenialEvent(long timestamp, String username, String groupName, String className, String fieldName, Direction direction) {
+        this.timestamp = timestamp;
+        this.username = username;
+        this.groupName = groupName;
+        this.className = className;
+        this.fieldName = fieldName;
+        this.direction = direction;
+    }
+
+    /** @return The time of the denial in milliseconds since the epoch */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getGroupName() {
+        return groupName;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    /** @return The name of the field, or {@code null} if the group has no access to the whole class */
+    public String getFieldName() {
+        return fieldName;
+    }
+
+    public Direction getDirection() {
+        return direction;
+    }
+
+    @Override
+    public String toString() {
+        return "DenialEvent{" +
+                "timestamp=" + timestamp +
+                ", username='" + username + '\'' +
+                ", groupName='" + groupName + '\'' +
+                ", className='" + className + '\'' +
+                ", fieldName='" + fieldName + '\'' +
+                ", direction=" + direction +
+                '}';
+    }
+}
@@ -0,0 +1,44 @@
+package uk.co.agware.filter.cache;
+
+/**
+ * A cache of values worked out from the groups held by a {@link uk.co.agware.filter.PropertyFilter},
+ * registered with {@link uk.co.agware.filter.PropertyFilter#registerCache(FilterCache)} so it can be
+ * monitored and emptied along with the filter's own caches.
+ *
+ * Caches aren't told when the groups change. Each entry should be stored with the
+ * {@link uk.co.agware.filter.PropertyFilter#getSnapshotVersion()} read before it was worked out, and
+ * treated as missing once the version has moved on, {@link SnapshotCache} does this for simple keys.
+ */
+public interface FilterCache {
+
+    /**
+     * Returns the name the cache is shown with
+     *
+     * @return The name of the cache
+     */
+    String getName();
+
+    /**
+     * Returns the number of entries held, including any made with older groups that haven't been replaced yet
+     *
+     * @return The number of entries
+     */
+    long size();
+
+    /**
+     * Returns the number of lookups that found an entry for the current groups
+     *
+     * @return The number of hits
+     */
+    long getHits();
+
+    /**
+     * Returns the number of lookups that had to work the value out again
+     *
+     * @return The number of misses
+     */
+    long getMisses();
+
+    /** Drops every entry held */
+    void invalidateAll();
+}
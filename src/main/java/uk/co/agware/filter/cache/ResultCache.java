@@ -0,0 +1,175 @@
+package uk.co.agware.filter.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.commons.beanutils.PropertyUtils;
+import uk.co.agware.filter.annotations.CacheResult;
+import uk.co.agware.filter.exceptions.FilterException;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Holds the filtered copies of classes marked with {@link CacheResult}, so filtering the same
+ * object again for the same group returns the copy made the first time.
+ *
+ * Each copy is stored with the version of the groups it was made with, a copy made with older
+ * groups is treated as missing and replaced the next time the object is filtered. Nothing has to
+ * be cleared when the groups change, the old copies are replaced as they are used or evicted.
+ */
+public class ResultCache implements FilterCache {
+
+    private final ConcurrentHashMap<Class<?>, Optional<ClassCache>> classCaches = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Returns whether copies of a class are cached, which is whether it is marked with {@link CacheResult}
+     *
+     * @param clazz The class to check
+     * @return Whether the class is cached
+     */
+    public boolean isCached(Class<?> clazz){
+        return classCache(clazz) != null;
+    }
+
+    /**
+     * Returns the copy of an object made for a group with the given version of the groups
+     *
+     * @param object The object being filtered
+     * @param groupName The group it is being filtered for
+     * @param version The version of the groups in use
+     * @param <T> The type of the object
+     * @return The filtered copy, or null if there isn't one for this version of the groups
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(T object, String groupName, long version){
+        ClassCache classCache = classCache(object.getClass());
+        Object key = classCache == null ? null : classCache.keyOf(object);
+        ConcurrentMap<String, Entry> groupCopies = key == null ? null : classCache.cache.getIfPresent(key);
+        Entry entry = groupCopies == null ? null : groupCopies.get(groupName);
+        if(entry == null || entry.version != version){
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return (T) entry.value;
+    }
+
+    /**
+     * Stores the copy of an object made for a group, unless a copy made with newer groups is already held
+     *
+     * @param object The object that was filtered
+     * @param groupName The group it was filtered for
+     * @param version The version of the groups the copy was made with
+     * @param filtered The filtered copy
+     * @param <T> The type of the object
+     */
+    public <T> void put(T object, String groupName, long version, T filtered){
+        ClassCache classCache = classCache(object.getClass());
+        Object key = classCache == null ? null : classCache.keyOf(object);
+        if(key == null) return;
+        ConcurrentMap<String, Entry> groupCopies = classCache.cache.asMap().computeIfAbsent(key, k -> new ConcurrentHashMap<>(4));
+        groupCopies.merge(groupName, new Entry(version, filtered), (existing, added) -> existing.version > added.version ? existing : added);
+    }
+
+    @Override
+    public String getName() {
+        return "results";
+    }
+
+    /**
+     * Returns the number of objects with copies held, across all classes
+     *
+     * @return The number of objects
+     */
+    @Override
+    public long size(){
+        long size = 0;
+        for(Optional<ClassCache> classCache : classCaches.values()){
+            if(classCache.isPresent()) size += classCache.get().cache.size();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of times a copy was found for the current groups
+     *
+     * @return The number of hits
+     */
+    @Override
+    public long getHits(){
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of times there was no copy for the current groups
+     *
+     * @return The number of misses
+     */
+    @Override
+    public long getMisses(){
+        return misses.sum();
+    }
+
+    /** Drops every copy held */
+    @Override
+    public void invalidateAll(){
+        for(Optional<ClassCache> classCache : classCaches.values()){
+            if(classCache.isPresent()) classCache.get().cache.invalidateAll();
+        }
+    }
+
+    private ClassCache classCache(Class<?> clazz){
+        Optional<ClassCache> classCache = classCaches.get(clazz);
+        if(classCache == null){
+            classCache = classCaches.computeIfAbsent(clazz, ResultCache::createClassCache);
+        }
+        return classCache.orElse(null);
+    }
+
+    private static Optional<ClassCache> createClassCache(Class<?> clazz){
+        CacheResult cacheResult = clazz.getAnnotation(CacheResult.class);
+        if(cacheResult == null) return Optional.empty();
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder().maximumSize(cacheResult.maximumSize());
+        if(cacheResult.key().isEmpty()) builder.weakKeys(); // Compares keys by identity
+        if(cacheResult.expireAfterWrite() > 0) builder.expireAfterWrite(cacheResult.expireAfterWrite(), cacheResult.unit());
+        String keyProperty = cacheResult.key().isEmpty() ? null : cacheResult.key();
+        return Optional.of(new ClassCache(keyProperty, builder.build()));
+    }
+
+    private static final class ClassCache {
+
+        private final String keyProperty;
+        private final Cache<Object, ConcurrentMap<String, Entry>> cache;
+
+        private ClassCache(String keyProperty, Cache<Object, ConcurrentMap<String, Entry>> cache) {
+            this.keyProperty = keyProperty;
+            this.cache = cache;
+        }
+
+        /* The object itself, or the value of its key property which may be null */
+        private Object keyOf(Object object){
+            if(keyProperty == null) return object;
+            try {
+                return PropertyUtils.getProperty(object, keyProperty);
+            } catch (NoSuchMethodException | InvocationTargetException | IllegalAccessException e) {
+                throw new FilterException(e.getMessage(), e);
+            }
+        }
+    }
+
+    private static final class Entry {
+
+        private final long version;
+        private final Object value;
+
+        private Entry(long version, Object value) {
+            this.version = version;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package uk.co.agware.filter.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * A {@link FilterCache} that stores each value with the snapshot version it was worked out with.
+ * A value is only returned for the same version, older values are replaced one at a time as they
+ * are looked up, so changing the groups doesn't rebuild everything at once.
+ *
+ * The version passed in must be read from {@link uk.co.agware.filter.PropertyFilter#getSnapshotVersion()}
+ * before anything the value is worked out from, so a value is never stored against a newer version
+ * than the groups it came from.
+ *
+ * @param <K> The type of the keys
+ * @param <V> The type of the values
+ */
+public class SnapshotCache<K, V> implements FilterCache {
+
+    private final String name;
+    private final ConcurrentHashMap<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public SnapshotCache(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the value for a key worked out with the given version, working it out
+     * with {@code loader} if there isn't one.
+     *
+     * @param key The key of the value
+     * @param version The current snapshot version
+     * @param loader Works out the value if there isn't one for this version
+     * @return The value
+     */
+    public V get(K key, long version, Function<? super K, ? extends V> loader){
+        Entry<V> entry = entries.get(key);
+        if(entry != null && entry.version == version){
+            hits.increment();
+            return entry.value;
+        }
+        misses.increment();
+        V value = loader.apply(key);
+        // Another thread may have stored a value at the same time, a newer version is never replaced by an older one
+        Entry<V> stored = entries.merge(key, new Entry<>(version, value), (existing, added) -> existing.version > added.version ? existing : added);
+        return stored.version == version ? stored.value : value;
+    }
+
+    /**
+     * Removes the value for a key
+     *
+     * @param key The key to remove
+     */
+    public void invalidate(K key){
+        entries.remove(key);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long size() {
+        return entries.size();
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+    private static final class Entry<V> {
+
+        private final long version;
+        private final V value;
+
+        private Entry(long version, V value) {
+            this.version = version;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package uk.co.agware.filter.exceptions;
+
+/**
+ * Thrown when a user, class or field has nothing defined for it in the groups held by the filter.
+ *
+ * These are expected whenever the groups are incomplete and can be thrown at the rate objects are
+ * filtered, so no stack trace is filled in and the message is only built if it is asked for.
+ */
+public class MissingPermissionException extends FilterException {
+
+    private final String template;
+    private final String first;
+    private final String second;
+    private String message;
+
+    private MissingPermissionException(String template, String first, String second) {
+        super(null, null, false, false);
+        this.template = template;
+        this.first = first;
+        this.second = second;
+    }
+
+    public static MissingPermissionException forField(String fieldName, String className){
+        return new MissingPermissionException("No permission defined for field %s on object %s", fieldName, className);
+    }
+
+    public static MissingPermissionException forClass(String groupName, String className){
+        return new MissingPermissionException("Group %s does not have any access set for class %s", groupName, className);
+    }
+
+    public static MissingPermissionException forUser(String username){
+        return new MissingPermissionException("User %s has no group assigned", username, null);
+    }
+
+    @Override
+    public String getMessage() {
+        if(message == null){
+            message = String.format(template, first, second);
+        }
+        return message;
+    }
+}
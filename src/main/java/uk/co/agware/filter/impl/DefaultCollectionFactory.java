@@ -0,0 +1,86 @@
+package uk.co.agware.filter.impl;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import uk.co.agware.filter.util.CollectionFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Creates collections and maps based on the interfaces implemented by the source rather
+ * than copying its class, so that ORM wrapper collections such as lazy loading bags and
+ * sets are replaced with their standard equivalents. Sorted collections keep their comparator,
+ * {@link EnumSet} and {@link EnumMap} keep their key type, and hash based collections are
+ * created with enough capacity for the values of the source.
+ */
+public class DefaultCollectionFactory implements CollectionFactory {
+
+    @Override
+    public <T> Collection<T> newCollection(Collection<T> source) {
+        int size = source.size();
+        // The most common types are checked first
+        Class<?> type = source.getClass();
+        if(type == ArrayList.class) return new ArrayList<>(size);
+        if(type == ArrayDeque.class) return new ArrayDeque<>(size);
+        if(source instanceof Set){
+            if(source instanceof EnumSet){
+                // Safe as the copy has the same element type as the source, which holds T
+                @SuppressWarnings("unchecked") Collection<T> copy = (Collection<T>) emptyEnumSet((EnumSet<?>) source);
+                return copy;
+            }
+            if(source instanceof SortedSet){
+                Comparator<? super T> comparator = ((SortedSet<T>) source).comparator();
+                return source instanceof ConcurrentSkipListSet ? new ConcurrentSkipListSet<>(comparator) : new TreeSet<>(comparator);
+            }
+            if(source instanceof LinkedHashSet) return Sets.newLinkedHashSetWithExpectedSize(size);
+            if(source instanceof ConcurrentHashMap.KeySetView) return ConcurrentHashMap.newKeySet(size);
+            return Sets.newHashSetWithExpectedSize(size);
+        }
+        if(source instanceof List){
+            return source instanceof LinkedList ? new LinkedList<>() : new ArrayList<>(size);
+        }
+        if(source instanceof PriorityQueue){
+            return new PriorityQueue<>(Math.max(size, 1), ((PriorityQueue<T>) source).comparator());
+        }
+        if(source instanceof Queue){
+            return new ArrayDeque<>(size);
+        }
+        return new ArrayList<>(size);
+    }
+
+    @Override
+    public <K, V> Map<K, V> newMap(Map<K, V> source) {
+        if(source instanceof EnumMap){
+            // Safe as the copy has the same key type as the source, which maps K to V
+            @SuppressWarnings("unchecked") Map<K, V> copy = (Map<K, V>) emptyEnumMap((EnumMap<?, ?>) source);
+            return copy;
+        }
+        if(source instanceof SortedMap){
+            Comparator<? super K> comparator = ((SortedMap<K, V>) source).comparator();
+            return source instanceof ConcurrentNavigableMap ? new ConcurrentSkipListMap<>(comparator) : new TreeMap<>(comparator);
+        }
+        if(source instanceof LinkedHashMap) return Maps.newLinkedHashMapWithExpectedSize(source.size());
+        if(source instanceof ConcurrentMap) return new ConcurrentHashMap<>(source.size());
+        if(source instanceof IdentityHashMap) return new IdentityHashMap<>(source.size());
+        return Maps.newHashMapWithExpectedSize(source.size());
+    }
+
+    /* The element type can only be taken from an existing EnumSet */
+    private static <E extends Enum<E>> EnumSet<E> emptyEnumSet(EnumSet<E> source){
+        EnumSet<E> copy = EnumSet.copyOf(source);
+        copy.clear();
+        return copy;
+    }
+
+    /* The key type can only be taken from an existing EnumMap */
+    private static <K extends Enum<K>, V> EnumMap<K, V> emptyEnumMap(EnumMap<K, V> source){
+        EnumMap<K, V> copy = new EnumMap<>(source);
+        copy.clear();
+        return copy;
+    }
+}
@@ -0,0 +1,27 @@
+package uk.co.agware.filter.jmx;
+
+/**
+ * Management interface of a {@link uk.co.agware.filter.service.FilterService}, registered with
+ * {@link FilterServiceMonitor#register(uk.co.agware.filter.service.FilterService, String)}.
+ */
+public interface FilterServiceMXBean {
+
+    /** @return Whether the groups are being refreshed in the background */
+    boolean isRefreshScheduled();
+
+    /** @return The version of the groups last loaded by {@code refreshIfChanged()}, null if none has been loaded */
+    String getLoadedVersion();
+
+    /** @return How long the last refresh took in nanoseconds, including loading the groups from the repository */
+    long getLastRefreshNanos();
+
+    /** Reloads the groups from the repository */
+    void refresh();
+
+    /**
+     * Reloads the groups from the repository if their version has changed
+     *
+     * @return Whether the groups were reloaded
+     */
+    boolean refreshIfChanged();
+}
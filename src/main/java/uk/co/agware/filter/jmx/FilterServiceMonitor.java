@@ -0,0 +1,57 @@
+package uk.co.agware.filter.jmx;
+
+import uk.co.agware.filter.service.FilterService;
+
+import javax.management.ObjectName;
+import java.util.Objects;
+
+/**
+ * Exposes a {@link FilterService} through JMX as a {@link FilterServiceMXBean}, so the groups can be
+ * refreshed on a running node. Nothing is registered unless {@link #register(FilterService, String)} is called.
+ */
+public class FilterServiceMonitor implements FilterServiceMXBean {
+
+    private final FilterService filterService;
+
+    public FilterServiceMonitor(FilterService filterService) {
+        this.filterService = filterService;
+    }
+
+    /**
+     * Registers a monitor for the service with the platform MBean server, it can be removed
+     * again with {@link PropertyFilterMonitor#unregister(ObjectName)}
+     *
+     * @param filterService The service to monitor
+     * @param name Identifies the service when there is more than one in the JVM
+     * @return The name the MBean was registered under, {@code uk.co.agware.filter:type=FilterService,name=<name>}
+     * @throws uk.co.agware.filter.exceptions.FilterException If the MBean couldn't be registered
+     */
+    public static ObjectName register(FilterService filterService, String name){
+        return PropertyFilterMonitor.registerBean(new FilterServiceMonitor(filterService), "FilterService", name);
+    }
+
+    @Override
+    public boolean isRefreshScheduled() {
+        return filterService.isRefreshScheduled();
+    }
+
+    @Override
+    public String getLoadedVersion() {
+        return Objects.toString(filterService.getLoadedVersion(), null);
+    }
+
+    @Override
+    public long getLastRefreshNanos() {
+        return filterService.getLastRefreshNanos();
+    }
+
+    @Override
+    public void refresh() {
+        filterService.refresh();
+    }
+
+    @Override
+    public boolean refreshIfChanged() {
+        return filterService.refreshIfChanged();
+    }
+}
@@ -0,0 +1,90 @@
+package uk.co.agware.filter.jmx;
+
+import uk.co.agware.filter.FilterStats;
+
+import java.util.List;
+
+/**
+ * Management interface of a {@link uk.co.agware.filter.PropertyFilter}, registered with
+ * {@link PropertyFilterMonitor#register(uk.co.agware.filter.PropertyFilter, String)}. Most of the attributes
+ * are the values of {@link FilterStats}, along with the state of the caches used while filtering.
+ */
+public interface PropertyFilterMXBean {
+
+    /** @return See {@link FilterStats#getReadLockWaits()} */
+    long getReadLockWaits();
+
+    /** @return See {@link FilterStats#getReadLockWaitNanos()} */
+    long getReadLockWaitNanos();
+
+    /** @return See {@link FilterStats#getMaxReadLockWaitNanos()} */
+    long getMaxReadLockWaitNanos();
+
+    /** @return See {@link FilterStats#getWriteLocks()} */
+    long getWriteLocks();
+
+    /** @return See {@link FilterStats#getWriteLockHoldNanos()} */
+    long getWriteLockHoldNanos();
+
+    /** @return See {@link FilterStats#getMaxWriteLockHoldNanos()} */
+    long getMaxWriteLockHoldNanos();
+
+    /** @return See {@link FilterStats#getLastWriteLockHoldNanos()} */
+    long getLastWriteLockHoldNanos();
+
+    /** @return See {@link FilterStats#getRefreshCount()} */
+    long getRefreshCount();
+
+    /** @return See {@link FilterStats#getSnapshotVersion()} */
+    long getSnapshotVersion();
+
+    /** @return See {@link FilterStats#getSnapshotAgeMillis()} */
+    long getSnapshotAgeMillis();
+
+    /** @return See {@link FilterStats#getLastRefreshNanos()} */
+    long getLastRefreshNanos();
+
+    /** @return See {@link FilterStats#getGroupCount()} */
+    int getGroupCount();
+
+    /** @return See {@link FilterStats#getUserMappingCount()} */
+    int getUserMappingCount();
+
+    /** @return The number of classes with their fields cached */
+    int getFieldCacheSize();
+
+    /** @return The fraction of field lookups found in the cache, 0 if nothing has been looked up */
+    double getFieldCacheHitRate();
+
+    /** @return The number of compiled access plans held, see {@link uk.co.agware.filter.PropertyFilter#getPlanCache()} */
+    long getPlanCacheSize();
+
+    /** @return The fraction of access plans found already compiled, 0 if none have been looked up */
+    double getPlanCacheHitRate();
+
+    /** @return The number of objects with filtered copies held, see {@link uk.co.agware.filter.cache.ResultCache#size()} */
+    long getResultCacheSize();
+
+    /** @return The fraction of cached classes filtered that had a copy for the current groups, 0 if none have been filtered */
+    double getResultCacheHitRate();
+
+    /**
+     * Describes each cache returned by {@link uk.co.agware.filter.PropertyFilter#getCaches()},
+     * including those registered by other code, one line for each with its size and hit rate
+     *
+     * @return The lines describing the caches
+     */
+    List<String> describeCaches();
+
+    /** Empties the caches used while filtering, see {@link uk.co.agware.filter.PropertyFilter#clearCaches()} */
+    void clearCaches();
+
+    /**
+     * Describes the access a group has, one line for each class with its access type followed
+     * by the permission for each of its properties
+     *
+     * @param groupName The name of the group
+     * @return The lines describing the group, sorted by class name
+     */
+    List<String> dumpGroup(String groupName);
+}
@@ -0,0 +1,201 @@
+package uk.co.agware.filter.jmx;
+
+import uk.co.agware.filter.PropertyFilter;
+import uk.co.agware.filter.cache.FilterCache;
+import uk.co.agware.filter.data.Access;
+import uk.co.agware.filter.data.Permission;
+import uk.co.agware.filter.exceptions.FilterException;
+import uk.co.agware.filter.util.FilterUtil;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+
+/**
+ * Exposes a {@link PropertyFilter} through JMX as a {@link PropertyFilterMXBean}. Registering is
+ * optional, nothing is registered unless {@link #register(PropertyFilter, String)} is called.
+ */
+public class PropertyFilterMonitor implements PropertyFilterMXBean {
+
+    /** The domain the filter MBeans are registered under */
+    public static final String DOMAIN = "uk.co.agware.filter";
+
+    private final PropertyFilter propertyFilter;
+
+    public PropertyFilterMonitor(PropertyFilter propertyFilter) {
+        this.propertyFilter = propertyFilter;
+    }
+
+    /**
+     * Registers a monitor for the filter with the platform {@link MBeanServer}
+     *
+     * @param propertyFilter The filter to monitor
+     * @param name Identifies the filter when there is more than one in the JVM
+     * @return The name the MBean was registered under, {@code uk.co.agware.filter:type=PropertyFilter,name=<name>}
+     * @throws FilterException If the MBean couldn't be registered, such as when the name is already in use
+     */
+    public static ObjectName register(PropertyFilter propertyFilter, String name){
+        return registerBean(new PropertyFilterMonitor(propertyFilter), "PropertyFilter", name);
+    }
+
+    /**
+     * Removes an MBean registered by this class, does nothing if it isn't registered
+     *
+     * @param objectName The name returned when it was registered
+     */
+    public static void unregister(ObjectName objectName){
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if(server.isRegistered(objectName)) server.unregisterMBean(objectName);
+        } catch (JMException e) {
+            throw new FilterException(String.format("Unable to unregister MBean %s", objectName), e);
+        }
+    }
+
+    static ObjectName registerBean(Object bean, String type, String name){
+        try {
+            ObjectName objectName = new ObjectName(String.format("%s:type=%s,name=%s", DOMAIN, type, ObjectName.quote(name)));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(bean, objectName);
+            return objectName;
+        } catch (JMException e) {
+            throw new FilterException(String.format("Unable to register %s MBean %s", type, name), e);
+        }
+    }
+
+    @Override
+    public long getReadLockWaits() {
+        return propertyFilter.getStats().getReadLockWaits();
+    }
+
+    @Override
+    public long getReadLockWaitNanos() {
+        return propertyFilter.getStats().getReadLockWaitNanos();
+    }
+
+    @Override
+    public long getMaxReadLockWaitNanos() {
+        return propertyFilter.getStats().getMaxReadLockWaitNanos();
+    }
+
+    @Override
+    public long getWriteLocks() {
+        return propertyFilter.getStats().getWriteLocks();
+    }
+
+    @Override
+    public long getWriteLockHoldNanos() {
+        return propertyFilter.getStats().getWriteLockHoldNanos();
+    }
+
+    @Override
+    public long getMaxWriteLockHoldNanos() {
+        return propertyFilter.getStats().getMaxWriteLockHoldNanos();
+    }
+
+    @Override
+    public long getLastWriteLockHoldNanos() {
+        return propertyFilter.getStats().getLastWriteLockHoldNanos();
+    }
+
+    @Override
+    public long getRefreshCount() {
+        return propertyFilter.getStats().getRefreshCount();
+    }
+
+    @Override
+    public long getSnapshotVersion() {
+        return propertyFilter.getStats().getSnapshotVersion();
+    }
+
+    @Override
+    public long getSnapshotAgeMillis() {
+        return propertyFilter.getStats().getSnapshotAgeMillis();
+    }
+
+    @Override
+    public long getLastRefreshNanos() {
+        return propertyFilter.getStats().getLastRefreshNanos();
+    }
+
+    @Override
+    public int getGroupCount() {
+        return propertyFilter.getStats().getGroupCount();
+    }
+
+    @Override
+    public int getUserMappingCount() {
+        return propertyFilter.getStats().getUserMappingCount();
+    }
+
+    @Override
+    public int getFieldCacheSize() {
+        return propertyFilter.getFilterUtil().getFieldCacheSize();
+    }
+
+    @Override
+    public double getFieldCacheHitRate() {
+        FilterUtil filterUtil = propertyFilter.getFilterUtil();
+        return hitRate(filterUtil.getFieldCacheHits(), filterUtil.getFieldCacheMisses());
+    }
+
+    @Override
+    public long getPlanCacheSize() {
+        return propertyFilter.getPlanCache().size();
+    }
+
+    @Override
+    public double getPlanCacheHitRate() {
+        return hitRate(propertyFilter.getPlanCache());
+    }
+
+    @Override
+    public long getResultCacheSize() {
+        return propertyFilter.getResultCache().size();
+    }
+
+    @Override
+    public double getResultCacheHitRate() {
+        return hitRate(propertyFilter.getResultCache());
+    }
+
+    @Override
+    public List<String> describeCaches() {
+        return propertyFilter.getCaches().stream()
+                             .map(c -> String.format(Locale.ROOT, "%s size=%d hits=%d misses=%d hitRate=%.3f", c.getName(), c.size(), c.getHits(), c.getMisses(), hitRate(c)))
+                             .collect(Collectors.toList());
+    }
+
+    @Override
+    public void clearCaches() {
+        propertyFilter.clearCaches();
+    }
+
+    @Override
+    public List<String> dumpGroup(String groupName) {
+        return propertyFilter.getGroup(groupName).values().stream()
+                             .sorted(Comparator.comparing(Access::getObjectClass))
+                             .map(PropertyFilterMonitor::describe)
+                             .collect(Collectors.toList());
+    }
+
+    private static String describe(Access<? extends Permission> access){
+        return FilterUtil.nullSafeStream(access.getPermissions())
+                         .sorted(Comparator.comparing(Permission::getPropertyName))
+                         .map(p -> p.getPropertyName() + "=" + p.getPermission())
+                         .collect(Collectors.joining(", ", access.getObjectClass() + " " + access.getAccess() + " {", "}"));
+    }
+
+    private static double hitRate(FilterCache cache){
+        return hitRate(cache.getHits(), cache.getMisses());
+    }
+
+    static double hitRate(long hits, long misses){
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+}
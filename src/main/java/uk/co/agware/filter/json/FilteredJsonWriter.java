@@ -0,0 +1,421 @@
+package uk.co.agware.filter.json;
+
+import org.apache.commons.beanutils.PropertyUtils;
+import uk.co.agware.filter.PropertyFilter;
+import uk.co.agware.filter.exceptions.FilterException;
+import uk.co.agware.filter.metrics.FilterMetrics;
+
+import java.beans.PropertyDescriptor;
+import java.io.*;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Writes entities straight out as JSON using the rules held in a {@link PropertyFilter}, rather
+ * than creating a filtered copy with {@link PropertyFilter#parseObjectForReturn(Object, String, String)}
+ * and then serializing that copy. The original object is walked once and only the properties the
+ * group is able to read are written out.
+ *
+ * Related entities and collections are handled in the same way as they are by
+ * {@link PropertyFilter#parseObjectForReturn(Object, String, String)}, they are only filtered
+ * if the filter was built with {@code filterRelationsOnLoad} and {@code filterCollectionsOnLoad}
+ * respectively, otherwise they are written out in full. Entities the group has no access to are
+ * written as {@code null}, or left out entirely when they are part of a filtered collection.
+ *
+ * Properties are written in name order and are the same ones that
+ * {@link PropertyFilter#parseObjectForReturn(Object, String, String)} copies, see
+ * {@link PropertyFilter#getReadableFields(Class, String)}.
+ *
+ * Values of the filter's ignored classes are written as JSON strings, numbers or booleans, dates are
+ * written in ISO-8601 format. An object that refers back to one it is already inside of, such as the
+ * two sides of a relation that isn't being filtered, is written as {@code null} the second time.
+ *
+ * Classes and fields the user can't read are recorded to the filter's {@link uk.co.agware.filter.audit.DenialAuditor},
+ * and each filtered object written is recorded to its {@link FilterMetrics}, in the same way as they are by
+ * {@link PropertyFilter#parseObjectForReturn(Object, String, String)}.
+ */
+public class FilteredJsonWriter {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final PropertyFilter propertyFilter;
+
+    public FilteredJsonWriter(PropertyFilter propertyFilter) {
+        this.propertyFilter = propertyFilter;
+    }
+
+    /**
+     * Gets the group of the user and then returns the result of
+     * {@link #write(Object, String, String, Writer)}
+     *
+     * @param object The object to write out
+     * @param username The name of the user making the request
+     * @param writer The writer to write the JSON to
+     * @throws IOException If the writer throws an exception
+     */
+    public void write(Object object, String username, Writer writer) throws IOException {
+        write(object, username, propertyFilter.getUsersGroup(username), writer);
+    }
+
+    /**
+     * Writes out the object as UTF-8 encoded JSON to the {@link OutputStream}, the stream
+     * is flushed but not closed once the object has been written.
+     *
+     * @param object The object to write out
+     * @param username The name of the user making the request
+     * @param groupName The group that the user belongs to
+     * @param outputStream The stream to write the JSON to
+     * @throws IOException If the stream throws an exception
+     */
+    public void write(Object object, String username, String groupName, OutputStream outputStream) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+        write(object, username, groupName, writer);
+        writer.flush();
+    }
+
+    /**
+     * Writes out the object as JSON, only including the values that the group
+     * is able to read. The writer is not flushed or closed.
+     *
+     * @param object The object to write out
+     * @param username The name of the user making the request
+     * @param groupName The group that the user belongs to
+     * @param writer The writer to write the JSON to
+     * @throws IOException If the writer throws an exception
+     */
+    public void write(Object object, String username, String groupName, Writer writer) throws IOException {
+        WriteContext context = new WriteContext(username, groupName, propertyFilter.getClassNames(groupName), propertyFilter.getMetrics());
+        if(object instanceof Collection){
+            long start = context.measured ? System.nanoTime() : 0L;
+            writeCollection((Collection<?>) object, context, writer);
+            if(context.measured){
+                context.metrics.recordCollectionFilter(FilterMetrics.FilterOperation.RETURN, object.getClass(), groupName,
+                        System.nanoTime() - start, ((Collection<?>) object).size(), 0);
+            }
+        }
+        else {
+            writeValue(object, context, writer);
+        }
+    }
+
+    /**
+     * Returns the result of {@link #write(Object, String, String, Writer)} as a String
+     *
+     * @param object The object to write out
+     * @param username The name of the user making the request
+     * @param groupName The group that the user belongs to
+     * @return The JSON for the object
+     */
+    public String writeToString(Object object, String username, String groupName) {
+        StringWriter writer = new StringWriter();
+        try {
+            write(object, username, groupName, writer);
+        } catch (IOException e) { // StringWriter doesn't throw these
+            throw new FilterException(e.getMessage(), e);
+        }
+        return writer.toString();
+    }
+
+    /* Writes an object that may or may not be a filter target */
+    private void writeValue(Object value, WriteContext context, Writer writer) throws IOException {
+        if(value == null || propertyFilter.isIgnoredClass(value.getClass())){
+            writeRaw(value, context, writer);
+            return;
+        }
+        boolean root = context.depth == 0;
+        long start = root && context.measured ? System.nanoTime() : 0L;
+        if(root) context.reset();
+        context.enter();
+        try {
+            writeFields(value, context, writer);
+        } finally {
+            context.exit();
+        }
+        if(root && context.measured){
+            context.metrics.recordFilter(FilterMetrics.FilterOperation.RETURN, value.getClass(), context.groupName, System.nanoTime() - start,
+                    context.maxDepth, context.fieldsWritten, 0, context.deniedFields);
+        }
+    }
+
+    private void writeFields(Object value, WriteContext context, Writer writer) throws IOException {
+        List<Field> fields = propertyFilter.getReadableFields(value.getClass(), context.username, context.groupName);
+        if(context.measured){
+            int fieldCount = propertyFilter.getFilterUtil().getAllFields(value.getClass()).size();
+            context.deniedFields += fields == null ? fieldCount : fieldCount - fields.size();
+        }
+        if(fields == null || !context.visiting.add(value)){ // No access to the class, or already being written further up
+            writer.write("null");
+            return;
+        }
+        writer.write('{');
+        boolean first = true;
+        try {
+            for(Field f : fields){
+                Object fieldValue = PropertyUtils.getProperty(value, f.getName());
+                if(!first) writer.write(',');
+                first = false;
+                writeString(f.getName(), writer);
+                writer.write(':');
+                writeProperty(fieldValue, f, context, writer);
+                context.fieldsWritten++;
+            }
+        } catch (NoSuchMethodException | InvocationTargetException | IllegalAccessException e) {
+            throw new FilterException(e.getMessage(), e);
+        } finally {
+            context.visiting.remove(value);
+        }
+        writer.write('}');
+    }
+
+    /* Writes a property of a filter target, following the same rules as parseObjectForReturn */
+    private void writeProperty(Object value, Field field, WriteContext context, Writer writer) throws IOException {
+        if(value == null){
+            writer.write("null");
+        }
+        else if(value.getClass().isArray()){
+            writeArray(value, context, writer);
+        }
+        else if(value instanceof Map){
+            if(propertyFilter.isFilterCollectionOnLoad()){
+                writeMap((Map<?, ?>) value, context, writer);
+            }
+            else {
+                writeRaw(value, context, writer);
+            }
+        }
+        else if(!Collection.class.isAssignableFrom(field.getType())){
+            // Only known classes are filtered, and only if relations are being filtered
+            if(context.classNames.contains(value.getClass().getName()) && propertyFilter.isFilterRelationsOnLoad()){
+                writeValue(value, context, writer);
+            }
+            else {
+                writeRaw(value, context, writer);
+            }
+        }
+        else if(propertyFilter.isFilterCollectionOnLoad()){
+            writeCollection((Collection<?>) value, context, writer);
+        }
+        else {
+            writeRaw(value, context, writer);
+        }
+    }
+
+    /* Writes out a collection of filter targets, leaving out any the group has no access to */
+    private void writeCollection(Iterable<?> values, WriteContext context, Writer writer) throws IOException {
+        writer.write('[');
+        boolean first = true;
+        for(Object o : values){
+            if(o == null) continue;
+            if(!propertyFilter.isIgnoredClass(o.getClass()) && isHidden(o.getClass(), context)) continue;
+            if(!first) writer.write(',');
+            first = false;
+            writeValue(o, context, writer);
+        }
+        writer.write(']');
+    }
+
+    /* Same rule as handleArrayForReturn, arrays are only filtered when they hold values that can be */
+    private void writeArray(Object array, WriteContext context, Writer writer) throws IOException {
+        Class<?> componentType = array.getClass().getComponentType();
+        if(componentType.isPrimitive() || propertyFilter.isIgnoredClass(componentType) || !propertyFilter.isFilterCollectionOnLoad()){
+            writeRaw(array, context, writer);
+        }
+        else {
+            writeCollection(Arrays.asList((Object[]) array), context, writer);
+        }
+    }
+
+    /* Same rule as handleMapForReturn, values of known classes are filtered and entries the group can't view are left out */
+    private void writeMap(Map<?, ?> map, WriteContext context, Writer writer) throws IOException {
+        writer.write('{');
+        boolean first = true;
+        for(Map.Entry<?, ?> e : map.entrySet()){
+            Object value = e.getValue();
+            boolean known = value != null && context.classNames.contains(value.getClass().getName());
+            if(known && isHidden(value.getClass(), context)) continue;
+            if(!first) writer.write(',');
+            first = false;
+            writeString(String.valueOf(e.getKey()), writer);
+            writer.write(':');
+            if(known){
+                writeValue(value, context, writer);
+            }
+            else {
+                writeRaw(value, context, writer);
+            }
+        }
+        writer.write('}');
+    }
+
+    /* Values of a class the group has no access to are left out, the denial is recorded here as they are never written */
+    private boolean isHidden(Class<?> clazz, WriteContext context){
+        if(propertyFilter.getReadableFields(clazz, context.groupName) != null) return false;
+        propertyFilter.getReadableFields(clazz, context.username, context.groupName);
+        return true;
+    }
+
+    /* Writes out a value without applying any filtering */
+    private void writeRaw(Object value, WriteContext context, Writer writer) throws IOException {
+        if(value == null){
+            writer.write("null");
+        }
+        else if(value instanceof Number){
+            writeNumber((Number) value, writer);
+        }
+        else if(value instanceof Boolean){
+            writer.write(value.toString());
+        }
+        else if(value instanceof CharSequence || value instanceof Character || value instanceof Enum){
+            writeString(value.toString(), writer);
+        }
+        else if(value instanceof java.sql.Date){ // Has no time, so toInstant isn't supported
+            writeString(((java.sql.Date) value).toLocalDate().toString(), writer);
+        }
+        else if(value instanceof java.sql.Time){ // Has no date, so toInstant isn't supported
+            writeString(((java.sql.Time) value).toLocalTime().toString(), writer);
+        }
+        else if(value instanceof Date){
+            writeString(((Date) value).toInstant().toString(), writer);
+        }
+        else if(value instanceof Collection){
+            writer.write('[');
+            boolean first = true;
+            for(Object o : (Collection<?>) value){
+                if(!first) writer.write(',');
+                first = false;
+                writeRaw(o, context, writer);
+            }
+            writer.write(']');
+        }
+        else if(value instanceof Map){
+            writer.write('{');
+            boolean first = true;
+            for(Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()){
+                if(!first) writer.write(',');
+                first = false;
+                writeString(String.valueOf(e.getKey()), writer);
+                writer.write(':');
+                writeRaw(e.getValue(), context, writer);
+            }
+            writer.write('}');
+        }
+        else if(value.getClass().isArray()){
+            writer.write('[');
+            int length = Array.getLength(value);
+            for(int i = 0; i < length; i++){
+                if(i > 0) writer.write(',');
+                writeRaw(Array.get(value, i), context, writer);
+            }
+            writer.write(']');
+        }
+        else if(value.getClass().getName().startsWith("java.")){ // Other JDK values such as the java.time classes
+            writeString(value.toString(), writer);
+        }
+        else {
+            writeBean(value, context, writer);
+        }
+    }
+
+    /* Writes out all the readable properties of an object that isn't being filtered */
+    private void writeBean(Object value, WriteContext context, Writer writer) throws IOException {
+        if(!context.visiting.add(value)){ // Refers back to an object it is inside of, such as the other side of a relation
+            writer.write("null");
+            return;
+        }
+        writer.write('{');
+        boolean first = true;
+        try {
+            for(PropertyDescriptor descriptor : PropertyUtils.getPropertyDescriptors(value)){
+                if(descriptor.getReadMethod() == null || "class".equals(descriptor.getName())) continue;
+                if(!first) writer.write(',');
+                first = false;
+                writeString(descriptor.getName(), writer);
+                writer.write(':');
+                writeRaw(descriptor.getReadMethod().invoke(value), context, writer);
+            }
+        } catch (InvocationTargetException | IllegalAccessException e) {
+            throw new FilterException(e.getMessage(), e);
+        } finally {
+            context.visiting.remove(value);
+        }
+        writer.write('}');
+    }
+
+    private void writeNumber(Number number, Writer writer) throws IOException {
+        if((number instanceof Double && (((Double) number).isNaN() || ((Double) number).isInfinite()))
+                || (number instanceof Float && (((Float) number).isNaN() || ((Float) number).isInfinite()))){
+            writeString(number.toString(), writer); // Not valid JSON numbers
+        }
+        else {
+            writer.write(number.toString());
+        }
+    }
+
+    private void writeString(String value, Writer writer) throws IOException {
+        writer.write('"');
+        for(int i = 0; i < value.length(); i++){
+            char c = value.charAt(i);
+            switch (c){
+                case '"': writer.write("\\\""); break;
+                case '\\': writer.write("\\\\"); break;
+                case '\n': writer.write("\\n"); break;
+                case '\r': writer.write("\\r"); break;
+                case '\t': writer.write("\\t"); break;
+                case '\b': writer.write("\\b"); break;
+                case '\f': writer.write("\\f"); break;
+                default:
+                    if(c < 0x20){
+                        writer.write("\\u00");
+                        writer.write(HEX[c >> 4]);
+                        writer.write(HEX[c & 0xF]);
+                    }
+                    else {
+                        writer.write(c);
+                    }
+            }
+        }
+        writer.write('"');
+    }
+
+    /* The state of a single call to write, counting the work done when there are metrics to record it to */
+    private static final class WriteContext {
+
+        private final String username;
+        private final String groupName;
+        private final Set<String> classNames;
+        private final FilterMetrics metrics;
+        private final boolean measured;
+        // The objects currently being written, compared by identity
+        private final Set<Object> visiting = Collections.newSetFromMap(new IdentityHashMap<>());
+        private int depth;
+        private int maxDepth;
+        private int fieldsWritten;
+        private int deniedFields;
+
+        private WriteContext(String username, String groupName, Set<String> classNames, FilterMetrics metrics) {
+            this.username = username;
+            this.groupName = groupName;
+            this.classNames = classNames;
+            this.metrics = metrics;
+            this.measured = metrics != FilterMetrics.NOOP;
+        }
+
+        private void reset(){
+            maxDepth = 0;
+            fieldsWritten = 0;
+            deniedFields = 0;
+        }
+
+        private void enter(){
+            depth++;
+            if(depth > maxDepth) maxDepth = depth;
+        }
+
+        private void exit(){
+            depth--;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package uk.co.agware.filter.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The measurements recorded by an {@link InMemoryFilterMetrics} for objects of one class
+ * filtered in one direction. The values are live and carry on changing as more objects are filtered.
+ */
+public final class ClassMetrics {
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder fieldsCopied = new LongAdder();
+    private final LongAdder objectsInstantiated = new LongAdder();
+    private final LongAdder deniedFields = new LongAdder();
+    private final LongAccumulator maxDepth = new LongAccumulator(Math::max, 0);
+
+    ClassMetrics() {
+    }
+
+    void record(long durationNanos, int depth, int fieldsCopied, int objectsInstantiated, int deniedFields) {
+        latency.record(durationNanos);
+        this.fieldsCopied.add(fieldsCopied);
+        this.objectsInstantiated.add(objectsInstantiated);
+        this.deniedFields.add(deniedFields);
+        maxDepth.accumulate(depth);
+    }
+
+    /**
+     * Returns the number of objects of the class that have been filtered
+     *
+     * @return The number of calls
+     */
+    public long getCalls() {
+        return latency.getCount();
+    }
+
+    /**
+     * Returns the time taken to filter each object
+     *
+     * @return The latency histogram
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Returns the total number of values copied across
+     *
+     * @return The number of values copied
+     */
+    public long getFieldsCopied() {
+        return fieldsCopied.sum();
+    }
+
+    /**
+     * Returns the total number of blank objects created to copy values into
+     *
+     * @return The number of objects created
+     */
+    public long getObjectsInstantiated() {
+        return objectsInstantiated.sum();
+    }
+
+    /**
+     * Returns the total number of fields that the groups weren't able to access
+     *
+     * @return The number of denied fields
+     */
+    public long getDeniedFields() {
+        return deniedFields.sum();
+    }
+
+    /**
+     * Returns the deepest level of related objects reached when filtering an object of the class
+     *
+     * @return The deepest level, 1 if no related objects were ever filtered
+     */
+    public long getMaxDepth() {
+        return maxDepth.get();
+    }
+
+    void reset() {
+        latency.reset();
+        fieldsCopied.reset();
+        objectsInstantiated.reset();
+        deniedFields.reset();
+        maxDepth.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "ClassMetrics{" +
+                "latency=" + latency +
+                ", fieldsCopied=" + getFieldsCopied() +
+                ", objectsInstantiated=" + getObjectsInstantiated() +
+                ", deniedFields=" + getDeniedFields() +
+                ", maxDepth=" + getMaxDepth() +
+                '}';
+    }
+}
@@ -0,0 +1,51 @@
+package uk.co.agware.filter.metrics;
+
+/**
+ * Passes every measurement on to each of a fixed set of {@link FilterMetrics}, created by
+ * {@link FilterMetrics#combine(FilterMetrics...)}
+ */
+final class CompositeFilterMetrics implements FilterMetrics {
+
+    private final FilterMetrics[] targets;
+
+    CompositeFilterMetrics(FilterMetrics[] targets) {
+        this.targets = targets;
+    }
+
+    @Override
+    public void recordFilter(FilterOperation operation, Class<?> clazz, String groupName, long durationNanos,
+                             int maxDepth, int fieldsCopied, int objectsInstantiated, int deniedFields) {
+        for(FilterMetrics target : targets){
+            target.recordFilter(operation, clazz, groupName, durationNanos, maxDepth, fieldsCopied, objectsInstantiated, deniedFields);
+        }
+    }
+
+    @Override
+    public void recordCollectionFilter(FilterOperation operation, Class<?> collectionClass, String groupName, long durationNanos,
+                                       int elementCount, int depth) {
+        for(FilterMetrics target : targets){
+            target.recordCollectionFilter(operation, collectionClass, groupName, durationNanos, elementCount, depth);
+        }
+    }
+
+    @Override
+    public void recordGroupRefresh(long durationNanos, int groupCount) {
+        for(FilterMetrics target : targets){
+            target.recordGroupRefresh(durationNanos, groupCount);
+        }
+    }
+
+    @Override
+    public void recordServiceCall(ServiceOperation operation, long durationNanos, int groupCount) {
+        for(FilterMetrics target : targets){
+            target.recordServiceCall(operation, durationNanos, groupCount);
+        }
+    }
+
+    @Override
+    public void recordReconcile(String groupName, long durationNanos, int classCount) {
+        for(FilterMetrics target : targets){
+            target.recordReconcile(groupName, durationNanos, classCount);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package uk.co.agware.filter.metrics;
+
+import java.util.Arrays;
+
+/**
+ * Receives measurements from the {@link uk.co.agware.filter.PropertyFilter} and the
+ * {@link uk.co.agware.filter.service.FilterService}. Every method has an empty default so
+ * implementations only need to override the ones they are interested in, {@link #NOOP} records nothing
+ * and is used when no metrics have been set. {@link #jfr()} turns the measurements into Java Flight Recorder
+ * events, and {@link #combine(FilterMetrics...)} sends them to more than one recorder.
+ *
+ * The methods are called on the thread doing the filtering, once for each object passed into the filter,
+ * so they should be cheap and shouldn't block. Values are passed as primitives so calling them doesn't
+ * create any objects.
+ */
+public interface FilterMetrics {
+
+    /** Records nothing, the filter skips taking any measurements when this is in use */
+    FilterMetrics NOOP = new FilterMetrics() {};
+
+    /** The direction an object was filtered in */
+    enum FilterOperation {
+        /** Filtered for return, see {@link uk.co.agware.filter.PropertyFilter#parseObjectForReturn(Object, String, String)} */
+        RETURN,
+        /** Filtered for saving, see {@link uk.co.agware.filter.PropertyFilter#parseObjectForSaving(Object, Object, String, String)} */
+        SAVE
+    }
+
+    /** The calls made on the {@link uk.co.agware.filter.service.FilterService} that are measured */
+    enum ServiceOperation {
+        INIT,
+        REFRESH,
+        SAVE_GROUP
+    }
+
+    /**
+     * Records an object passed into the filter, including any related objects and collection
+     * values that were filtered along with it.
+     *
+     * @param operation The direction the object was filtered in
+     * @param clazz The class of the object passed in
+     * @param groupName The group it was filtered for
+     * @param durationNanos How long the filtering took
+     * @param maxDepth The deepest level of related objects reached, 1 if only the object itself was filtered
+     * @param fieldsCopied The number of values copied across
+     * @param objectsInstantiated The number of blank objects created to copy values into
+     * @param deniedFields The number of fields the group wasn't able to read or write
+     */
+    default void recordFilter(FilterOperation operation, Class<?> clazz, String groupName, long durationNanos,
+                              int maxDepth, int fieldsCopied, int objectsInstantiated, int deniedFields) {
+    }
+
+    /**
+     * Records a collection being filtered, either on its own or as a value of an object being filtered,
+     * in which case the collection is also included in the measurements of the object.
+     *
+     * @param operation The direction the collection was filtered in
+     * @param collectionClass The class of the collection passed in
+     * @param groupName The group it was filtered for
+     * @param durationNanos How long the filtering took
+     * @param elementCount The number of values in the collection
+     * @param depth The level of the object holding the collection, 0 if it was passed in on its own
+     */
+    default void recordCollectionFilter(FilterOperation operation, Class<?> collectionClass, String groupName, long durationNanos,
+                                        int elementCount, int depth) {
+    }
+
+    /**
+     * Records the groups in the filter being replaced by {@link uk.co.agware.filter.PropertyFilter#setGroups(java.util.List)}
+     *
+     * @param durationNanos How long building and setting the groups took
+     * @param groupCount The number of groups set
+     */
+    default void recordGroupRefresh(long durationNanos, int groupCount) {
+    }
+
+    /**
+     * Records a call made on the {@link uk.co.agware.filter.service.FilterService}
+     *
+     * @param operation The call that was made
+     * @param durationNanos How long the call took, including the calls to the repository
+     * @param groupCount The number of groups loaded from the repository
+     */
+    default void recordServiceCall(ServiceOperation operation, long durationNanos, int groupCount) {
+    }
+
+    /**
+     * Records a saved group being brought up to date with the classes found when the
+     * {@link uk.co.agware.filter.service.FilterService} is initialized, and saved again.
+     *
+     * @param groupName The name of the group
+     * @param durationNanos How long updating and saving the group took
+     * @param classCount The number of classes the group has access settings for
+     */
+    default void recordReconcile(String groupName, long durationNanos, int classCount) {
+    }
+
+    /**
+     * Returns a {@link FilterMetrics} that records each measurement as a Java Flight Recorder event, so
+     * they can be lined up against GC and lock events in the same recording. Events are only created
+     * while a recording has them enabled.
+     *
+     * @return The JFR recorder, or {@link #NOOP} if the {@code jdk.jfr} API isn't available on this JVM
+     */
+    static FilterMetrics jfr() {
+        // The events extend jdk.jfr.Event, so the recorder is only loaded once the API is known to be there
+        try {
+            Class.forName("jdk.jfr.Event", false, FilterMetrics.class.getClassLoader());
+            return new JfrFilterMetrics();
+        } catch (ClassNotFoundException | LinkageError e) {
+            return NOOP;
+        }
+    }
+
+    /**
+     * Returns a {@link FilterMetrics} that passes every measurement on to each of the given metrics in turn
+     *
+     * @param metrics The metrics to record to
+     * @return The combined metrics
+     */
+    static FilterMetrics combine(FilterMetrics... metrics) {
+        FilterMetrics[] targets = Arrays.stream(metrics).filter(m -> m != null && m != NOOP).toArray(FilterMetrics[]::new);
+        if(targets.length == 0) return NOOP;
+        return targets.length == 1 ? targets[0] : new CompositeFilterMetrics(targets);
+    }
+}
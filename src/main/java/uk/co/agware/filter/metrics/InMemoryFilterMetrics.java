@@ -0,0 +1,98 @@
+package uk.co.agware.filter.metrics;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A {@link FilterMetrics} that keeps its measurements in memory so they can be read back or
+ * exported elsewhere. Filter calls are broken down by direction and by the class of the object
+ * passed in, service calls and group refreshes each have their own {@link LatencyHistogram}.
+ *
+ * The counters for a class are created the first time an object of that class is filtered,
+ * after that recording a call doesn't create any objects.
+ */
+public class InMemoryFilterMetrics implements FilterMetrics {
+
+    private final Map<FilterOperation, ConcurrentMap<Class<?>, ClassMetrics>> classMetrics = new EnumMap<>(FilterOperation.class);
+    private final Map<ServiceOperation, LatencyHistogram> serviceCalls = new EnumMap<>(ServiceOperation.class);
+    private final LatencyHistogram groupRefreshes = new LatencyHistogram();
+
+    public InMemoryFilterMetrics() {
+        // Filled up front and never changed, so the maps can be read from any thread
+        for(FilterOperation operation : FilterOperation.values()){
+            classMetrics.put(operation, new ConcurrentHashMap<>());
+        }
+        for(ServiceOperation operation : ServiceOperation.values()){
+            serviceCalls.put(operation, new LatencyHistogram());
+        }
+    }
+
+    @Override
+    public void recordFilter(FilterOperation operation, Class<?> clazz, String groupName, long durationNanos,
+                             int maxDepth, int fieldsCopied, int objectsInstantiated, int deniedFields) {
+        ConcurrentMap<Class<?>, ClassMetrics> metrics = classMetrics.get(operation);
+        ClassMetrics forClass = metrics.get(clazz);
+        if(forClass == null){
+            forClass = metrics.computeIfAbsent(clazz, c -> new ClassMetrics());
+        }
+        forClass.record(durationNanos, maxDepth, fieldsCopied, objectsInstantiated, deniedFields);
+    }
+
+    @Override
+    public void recordGroupRefresh(long durationNanos, int groupCount) {
+        groupRefreshes.record(durationNanos);
+    }
+
+    @Override
+    public void recordServiceCall(ServiceOperation operation, long durationNanos, int groupCount) {
+        serviceCalls.get(operation).record(durationNanos);
+    }
+
+    /**
+     * Returns the measurements for a class
+     *
+     * @param operation The direction the objects were filtered in
+     * @param clazz The class of the objects
+     * @return The measurements, or {@code null} if no objects of the class have been filtered
+     */
+    public ClassMetrics getClassMetrics(FilterOperation operation, Class<?> clazz) {
+        return classMetrics.get(operation).get(clazz);
+    }
+
+    /**
+     * Returns the measurements for every class that has been filtered in a direction
+     *
+     * @param operation The direction the objects were filtered in
+     * @return An unmodifiable map of class to its measurements
+     */
+    public Map<Class<?>, ClassMetrics> getClassMetrics(FilterOperation operation) {
+        return Collections.unmodifiableMap(classMetrics.get(operation));
+    }
+
+    /**
+     * Returns the time taken by calls to the {@link uk.co.agware.filter.service.FilterService}
+     *
+     * @param operation The call to return the times of
+     * @return The latency histogram of the call
+     */
+    public LatencyHistogram getServiceCalls(ServiceOperation operation) {
+        return serviceCalls.get(operation);
+    }
+
+    /**
+     * Returns the time taken to replace the groups in the filter
+     *
+     * @return The latency histogram of the refreshes
+     */
+    public LatencyHistogram getGroupRefreshes() {
+        return groupRefreshes;
+    }
+
+    /** Clears all of the measurements */
+    public void reset() {
+        classMetrics.values().forEach(m -> m.values().forEach(ClassMetrics::reset));
+        serviceCalls.values().forEach(LatencyHistogram::reset);
+        groupRefreshes.reset();
+    }
+}
@@ -0,0 +1,212 @@
+package uk.co.agware.filter.metrics;
+
+import jdk.jfr.*;
+
+/**
+ * Records measurements as Java Flight Recorder events, created through {@link FilterMetrics#jfr()}
+ * so that this class is only loaded on JVMs that have the {@code jdk.jfr} API.
+ *
+ * Measurements are passed in once the work has finished, so the time taken is held in the
+ * {@code filterTime} field of each event rather than the event's own duration, and the event is
+ * timestamped at the point the work finished. Nothing is created unless a recording has the event enabled.
+ */
+final class JfrFilterMetrics implements FilterMetrics {
+
+    private static final String CATEGORY = "Property Filter";
+
+    private final EventType returnType;
+    private final EventType saveType;
+    private final EventType collectionType;
+    private final EventType refreshType;
+    private final EventType initType;
+    private final EventType reconcileType;
+
+    JfrFilterMetrics() {
+        this.returnType = EventType.getEventType(FilterReturnEvent.class);
+        this.saveType = EventType.getEventType(FilterSaveEvent.class);
+        this.collectionType = EventType.getEventType(CollectionFilterEvent.class);
+        this.refreshType = EventType.getEventType(GroupRefreshEvent.class);
+        this.initType = EventType.getEventType(InitEvent.class);
+        this.reconcileType = EventType.getEventType(ReconcileEvent.class);
+    }
+
+    @Override
+    public void recordFilter(FilterOperation operation, Class<?> clazz, String groupName, long durationNanos,
+                             int maxDepth, int fieldsCopied, int objectsInstantiated, int deniedFields) {
+        ObjectFilterEvent event;
+        if(operation == FilterOperation.RETURN){
+            if(!returnType.isEnabled()) return;
+            event = new FilterReturnEvent();
+        }
+        else {
+            if(!saveType.isEnabled()) return;
+            event = new FilterSaveEvent();
+        }
+        event.className = clazz.getName();
+        event.group = groupName;
+        event.filterTime = durationNanos;
+        event.depth = maxDepth;
+        event.fieldsCopied = fieldsCopied;
+        event.objectsInstantiated = objectsInstantiated;
+        event.deniedFields = deniedFields;
+        event.commit();
+    }
+
+    @Override
+    public void recordCollectionFilter(FilterOperation operation, Class<?> collectionClass, String groupName, long durationNanos,
+                                       int elementCount, int depth) {
+        if(!collectionType.isEnabled()) return;
+        CollectionFilterEvent event = new CollectionFilterEvent();
+        event.operation = operation.name();
+        event.className = collectionClass.getName();
+        event.group = groupName;
+        event.filterTime = durationNanos;
+        event.elementCount = elementCount;
+        event.depth = depth;
+        event.commit();
+    }
+
+    @Override
+    public void recordGroupRefresh(long durationNanos, int groupCount) {
+        if(!refreshType.isEnabled()) return;
+        GroupRefreshEvent event = new GroupRefreshEvent();
+        event.refreshTime = durationNanos;
+        event.groupCount = groupCount;
+        event.commit();
+    }
+
+    @Override
+    public void recordServiceCall(ServiceOperation operation, long durationNanos, int groupCount) {
+        if(operation != ServiceOperation.INIT || !initType.isEnabled()) return;
+        InitEvent event = new InitEvent();
+        event.initTime = durationNanos;
+        event.groupCount = groupCount;
+        event.commit();
+    }
+
+    @Override
+    public void recordReconcile(String groupName, long durationNanos, int classCount) {
+        if(!reconcileType.isEnabled()) return;
+        ReconcileEvent event = new ReconcileEvent();
+        event.group = groupName;
+        event.reconcileTime = durationNanos;
+        event.classCount = classCount;
+        event.commit();
+    }
+
+    @Category(CATEGORY)
+    @StackTrace(false)
+    abstract static class ObjectFilterEvent extends Event {
+
+        @Label("Class Name")
+        String className;
+
+        @Label("Group")
+        String group;
+
+        @Label("Filter Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long filterTime;
+
+        @Label("Depth")
+        @Description("The deepest level of related objects reached")
+        int depth;
+
+        @Label("Fields Copied")
+        int fieldsCopied;
+
+        @Label("Objects Instantiated")
+        int objectsInstantiated;
+
+        @Label("Denied Fields")
+        int deniedFields;
+    }
+
+    @Name("uk.co.agware.filter.FilterReturn")
+    @Label("Filter Return")
+    @Description("An object filtered for return")
+    static final class FilterReturnEvent extends ObjectFilterEvent {
+    }
+
+    @Name("uk.co.agware.filter.FilterSave")
+    @Label("Filter Save")
+    @Description("An object filtered for saving")
+    static final class FilterSaveEvent extends ObjectFilterEvent {
+    }
+
+    @Name("uk.co.agware.filter.CollectionFilter")
+    @Label("Collection Filter")
+    @Description("A collection filtered for return or saving")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class CollectionFilterEvent extends Event {
+
+        @Label("Operation")
+        String operation;
+
+        @Label("Class Name")
+        String className;
+
+        @Label("Group")
+        String group;
+
+        @Label("Filter Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long filterTime;
+
+        @Label("Element Count")
+        int elementCount;
+
+        @Label("Depth")
+        @Description("The level of the object holding the collection, 0 if it was filtered on its own")
+        int depth;
+    }
+
+    @Name("uk.co.agware.filter.GroupRefresh")
+    @Label("Group Refresh")
+    @Description("The groups in the filter being replaced")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class GroupRefreshEvent extends Event {
+
+        @Label("Refresh Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long refreshTime;
+
+        @Label("Group Count")
+        int groupCount;
+    }
+
+    @Name("uk.co.agware.filter.Init")
+    @Label("Filter Service Init")
+    @Description("The filter service loading and updating the saved groups")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class InitEvent extends Event {
+
+        @Label("Init Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long initTime;
+
+        @Label("Group Count")
+        int groupCount;
+    }
+
+    @Name("uk.co.agware.filter.Reconcile")
+    @Label("Group Reconcile")
+    @Description("A saved group being updated with the classes found on init")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class ReconcileEvent extends Event {
+
+        @Label("Group")
+        String group;
+
+        @Label("Reconcile Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long reconcileTime;
+
+        @Label("Class Count")
+        int classCount;
+    }
+}
@@ -0,0 +1,123 @@
+package uk.co.agware.filter.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed size histogram of durations in nanoseconds. Values are counted in log-linear buckets,
+ * each power of two is split into 8 buckets, so any value read back is within 12.5% of the values
+ * that were recorded in its bucket, and the whole range of a {@code long} is covered by 488 counters.
+ *
+ * All of the buckets are created up front, recording a value only increments counters and is safe
+ * to call from many threads at once. Values read while values are being recorded may be slightly out of
+ * step with each other.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (Long.SIZE - 1 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records a value, negative values are recorded as 0
+     *
+     * @param nanos The duration to record
+     */
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        counts.incrementAndGet(bucketOf(value));
+        count.increment();
+        total.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Returns the number of values recorded
+     *
+     * @return The number of values
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Returns the largest value recorded
+     *
+     * @return The largest value, 0 if nothing has been recorded
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the mean of the values recorded
+     *
+     * @return The mean, 0 if nothing has been recorded
+     */
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) total.sum() / n;
+    }
+
+    /**
+     * Returns the value that the given percentage of recorded values are less than or equal to,
+     * as the highest value that falls into the same bucket.
+     *
+     * @param percentile The percentile, between 0 and 100
+     * @return The value at the percentile, 0 if nothing has been recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        if(percentile < 0 || percentile > 100) throw new IllegalArgumentException("Percentile must be between 0 and 100");
+        long n = 0;
+        long[] snapshot = new long[BUCKET_COUNT];
+        for(int i = 0; i < BUCKET_COUNT; i++){
+            snapshot[i] = counts.get(i);
+            n += snapshot[i];
+        }
+        if(n == 0) return 0;
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for(int i = 0; i < BUCKET_COUNT; i++){
+            seen += snapshot[i];
+            if(seen >= target) return Math.min(highestValueOf(i), getMax());
+        }
+        return getMax();
+    }
+
+    /** Clears all of the recorded values */
+    public void reset() {
+        for(int i = 0; i < BUCKET_COUNT; i++){
+            counts.set(i, 0);
+        }
+        count.reset();
+        total.reset();
+        max.reset();
+    }
+
+    /* Values below 8 have a bucket each, above that the top 4 bits of the value pick the bucket */
+    static int bucketOf(long value) {
+        if(value < SUB_BUCKET_COUNT) return (int) value;
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + subBucket;
+    }
+
+    static long highestValueOf(int bucket) {
+        if(bucket < SUB_BUCKET_COUNT) return bucket;
+        int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+        long lowest = (long) (SUB_BUCKET_COUNT + (bucket & (SUB_BUCKET_COUNT - 1))) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LatencyHistogram{count=%d, mean=%.1f, p50=%d, p99=%d, max=%d}",
+                getCount(), getMean(), getValueAtPercentile(50), getValueAtPercentile(99), getMax());
+    }
+}
@@ -0,0 +1,22 @@
+package uk.co.agware.filter.metrics;
+
+import org.slf4j.LoggerFactory;
+
+/**
+ * Told about calls to the {@link uk.co.agware.filter.PropertyFilter} that took longer than the
+ * threshold set with {@link uk.co.agware.filter.PropertyFilterBuilder#slowFilterThreshold(long, java.util.concurrent.TimeUnit)}.
+ * It is called on the thread that did the filtering, after the filtering has finished.
+ */
+@FunctionalInterface
+public interface SlowFilterListener {
+
+    /** Logs each report as a warning */
+    SlowFilterListener LOG = report -> LoggerFactory.getLogger(SlowFilterListener.class).warn("Slow filter call: {}", report);
+
+    /**
+     * Called with the details of a slow call
+     *
+     * @param report The shape of the object that was filtered and how long it took
+     */
+    void onSlowFilter(SlowFilterReport report);
+}
@@ -0,0 +1,86 @@
+package uk.co.agware.filter.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The shape of an object whose filtering took longer than the slow filter threshold, passed to a
+ * {@link SlowFilterListener}. Large nested collections show up as a high count at one of the levels.
+ */
+public final class SlowFilterReport {
+
+    private final FilterMetrics.FilterOperation operation;
+    private final Class<?> rootClass;
+    private final String groupName;
+    private final long durationNanos;
+    private final int[] levelCounts;
+    private final String deepestPath;
+    private final int fieldsCopied;
+    private final int objectsInstantiated;
+
+    public SlowFilterReport(FilterMetrics.FilterOperation operation, Class<?> rootClass, String groupName, long durationNanos,
+                            int[] levelCounts, String deepestPath, int fieldsCopied, int objectsInstantiated) {
+        this.operation = operation;
+        this.rootClass = rootClass;
+        this.groupName = groupName;
+        this.durationNanos = durationNanos;
+        this.levelCounts = levelCounts;
+        this.deepestPath = deepestPath;
+        this.fieldsCopied = fieldsCopied;
+        this.objectsInstantiated = objectsInstantiated;
+    }
+
+    public FilterMetrics.FilterOperation getOperation() {
+        return operation;
+    }
+
+    /** @return The class of the object passed into the filter */
+    public Class<?> getRootClass() {
+        return rootClass;
+    }
+
+    public String getGroupName() {
+        return groupName;
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    /**
+     * Returns the number of objects filtered at each level, the first value is the object passed
+     * in, the second the related objects and collection values held by it, and so on.
+     *
+     * @return A copy of the counts for each level
+     */
+    public int[] getLevelCounts() {
+        return levelCounts.clone();
+    }
+
+    /** @return The property names leading to the first object filtered at the deepest level, {@code Customer.orders.lines} */
+    public String getDeepestPath() {
+        return deepestPath;
+    }
+
+    public int getFieldsCopied() {
+        return fieldsCopied;
+    }
+
+    public int getObjectsInstantiated() {
+        return objectsInstantiated;
+    }
+
+    @Override
+    public String toString() {
+        return "SlowFilterReport{" +
+                "operation=" + operation +
+                ", rootClass=" + rootClass.getName() +
+                ", groupName='" + groupName + '\'' +
+                ", durationMillis=" + TimeUnit.NANOSECONDS.toMillis(durationNanos) +
+                ", levelCounts=" + Arrays.toString(levelCounts) +
+                ", deepestPath='" + deepestPath + '\'' +
+                ", fieldsCopied=" + fieldsCopied +
+                ", objectsInstantiated=" + objectsInstantiated +
+                '}';
+    }
+}
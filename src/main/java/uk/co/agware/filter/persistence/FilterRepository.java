@@ -20,4 +20,15 @@ public interface FilterRepository<G extends Group<? extends Access<? extends Per
     Object save(Group group);
 
     void delete(String id);
+
+    /**
+     * Returns a value that changes whenever any of the stored groups change, such as a
+     * last modified timestamp or a version counter. Used by {@link uk.co.agware.filter.service.FilterService#refreshIfChanged()}
+     * to skip loading the groups when nothing has changed, so should be much cheaper than {@link #getGroups()}.
+     *
+     * @return The current version of the stored groups, or null if it isn't known, in which case the groups are always loaded
+     */
+    default Object getVersion() {
+        return null;
+    }
 }
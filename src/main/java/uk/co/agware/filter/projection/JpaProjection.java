@@ -0,0 +1,108 @@
+package uk.co.agware.filter.projection;
+
+import uk.co.agware.filter.util.FilterUtil;
+
+import javax.persistence.EntityGraph;
+import javax.persistence.EntityManager;
+import javax.persistence.Subgraph;
+import javax.persistence.criteria.From;
+import javax.persistence.criteria.JoinType;
+import javax.persistence.criteria.Selection;
+import java.lang.reflect.Field;
+import java.util.*;
+
+/**
+ * Turns a set of readable properties from {@link uk.co.agware.filter.PropertyFilter#getReadableProperties(Class, String)}
+ * into JPA fetch instructions, either an {@link EntityGraph} to be used as a fetch graph, or a list of
+ * {@link Selection} values for a Criteria query projection.
+ *
+ * Requires a JPA 2.1 or later API to be on the classpath, it is not pulled in by this library.
+ */
+public final class JpaProjection {
+
+    /** The query hint to pass the {@link EntityGraph} in with so that only its attributes are fetched */
+    public static final String FETCH_GRAPH_HINT = "javax.persistence.fetchgraph";
+
+    private JpaProjection() {
+    }
+
+    /**
+     * Creates an {@link EntityGraph} containing the readable properties, related properties
+     * are added as sub graphs. It should be passed into a query using the {@link #FETCH_GRAPH_HINT}
+     * so that any other attributes are treated as lazy.
+     *
+     * @param entityManager The entity manager used to create the graph
+     * @param clazz The entity class
+     * @param readableProperties The readable properties of the class
+     * @param <T> The entity type
+     * @return An {@link EntityGraph} of the readable properties
+     */
+    public static <T> EntityGraph<T> createEntityGraph(EntityManager entityManager, Class<T> clazz, Set<String> readableProperties){
+        EntityGraph<T> graph = entityManager.createEntityGraph(clazz);
+        for(Map.Entry<String, Map<String, ?>> e : buildTree(readableProperties).entrySet()){
+            if(e.getValue().isEmpty()){
+                graph.addAttributeNodes(e.getKey());
+            }
+            else {
+                addSubgraph(graph.addSubgraph(e.getKey()), e.getValue());
+            }
+        }
+        return graph;
+    }
+
+    /**
+     * Returns the selections needed to fetch the readable single valued properties of an entity,
+     * values inside collections can't be selected as part of a tuple so are left out. Related
+     * entities are reached through a left join, so rows where the relation is null are still returned.
+     *
+     * @param root The root of the Criteria query
+     * @param readableProperties The readable properties of the root's class
+     * @return The list of selections, for use in {@code CriteriaQuery.multiselect()}
+     */
+    public static List<Selection<?>> getSelections(From<?, ?> root, Set<String> readableProperties){
+        List<Selection<?>> selections = new ArrayList<>();
+        addSelections(root, root.getJavaType(), buildTree(readableProperties), selections);
+        return selections;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void addSubgraph(Subgraph<?> graph, Map<String, ?> children){
+        for(Map.Entry<String, ?> e : children.entrySet()){
+            Map<String, ?> grandChildren = (Map<String, ?>) e.getValue();
+            if(grandChildren.isEmpty()){
+                graph.addAttributeNodes(e.getKey());
+            }
+            else {
+                addSubgraph(graph.addSubgraph(e.getKey()), grandChildren);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void addSelections(From<?, ?> from, Class<?> clazz, Map<String, ?> children, List<Selection<?>> selections){
+        for(Map.Entry<String, ?> e : children.entrySet()){
+            Field field = FilterUtil.findField(clazz, e.getKey());
+            if(field == null || Collection.class.isAssignableFrom(field.getType()) || Map.class.isAssignableFrom(field.getType())) continue;
+            Map<String, ?> grandChildren = (Map<String, ?>) e.getValue();
+            if(grandChildren.isEmpty()){
+                selections.add(from.get(e.getKey()));
+            }
+            else { // Navigating with get() would make an inner join, dropping rows without the relation
+                addSelections(from.join(e.getKey(), JoinType.LEFT), field.getType(), grandChildren, selections);
+            }
+        }
+    }
+
+    /* Builds a tree of property names from the dotted paths */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Map<String, ?>> buildTree(Set<String> properties){
+        Map<String, Map<String, ?>> root = new LinkedHashMap<>();
+        for(String property : properties){
+            Map<String, Map<String, ?>> node = root;
+            for(String part : property.split("\\.")){
+                node = (Map<String, Map<String, ?>>) node.computeIfAbsent(part, k -> new LinkedHashMap<String, Map<String, ?>>());
+            }
+        }
+        return root;
+    }
+}
@@ -0,0 +1,76 @@
+package uk.co.agware.filter.projection;
+
+import org.apache.commons.lang3.StringUtils;
+import uk.co.agware.filter.annotations.FilterTarget;
+import uk.co.agware.filter.util.FilterUtil;
+
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Turns a set of readable properties from {@link uk.co.agware.filter.PropertyFilter#getReadableProperties(Class, String)}
+ * into the column list of a SQL select, so that columns a group is never able to see, such as large
+ * BLOB or CLOB values, are not fetched from the database.
+ *
+ * Only the simple values held directly on the class are included, relations, collections, maps and
+ * arrays are normally mapped through joins or other tables and have to be fetched separately.
+ */
+public final class SqlProjection {
+
+    /** Maps {@code propertyName} to {@code property_name} */
+    public static final Function<String, String> SNAKE_CASE = name ->
+            Arrays.stream(StringUtils.splitByCharacterTypeCamelCase(name))
+                  .map(String::toLowerCase)
+                  .collect(Collectors.joining("_"));
+
+    /** Uses the property name as the column name */
+    public static final Function<String, String> PROPERTY_NAME = Function.identity();
+
+    private SqlProjection() {
+    }
+
+    /**
+     * Returns the names of the columns that need to be selected for a class
+     *
+     * @param clazz The class the properties are for
+     * @param readableProperties The readable properties of the class
+     * @param columnNaming Maps a property name to its column name
+     * @return The column names, in the order of the readable properties
+     */
+    public static List<String> getColumns(Class<?> clazz, Set<String> readableProperties, Function<String, String> columnNaming){
+        List<String> columns = new ArrayList<>();
+        for(String property : readableProperties){
+            if(property.indexOf('.') >= 0) continue; // Values on related classes
+            Field field = FilterUtil.findField(clazz, property);
+            if(field == null || !isColumn(field.getType())) continue;
+            columns.add(columnNaming.apply(property));
+        }
+        return columns;
+    }
+
+    /**
+     * Returns a comma separated list of columns for use in a select statement,
+     * each column is prefixed with the table alias if one is given.
+     *
+     * @param clazz The class the properties are for
+     * @param readableProperties The readable properties of the class
+     * @param tableAlias The alias of the table, can be null
+     * @param columnNaming Maps a property name to its column name
+     * @return The select list, for example {@code t.id, t.name}
+     */
+    public static String getSelectList(Class<?> clazz, Set<String> readableProperties, String tableAlias, Function<String, String> columnNaming){
+        String prefix = tableAlias == null || tableAlias.isEmpty() ? "" : tableAlias + ".";
+        return getColumns(clazz, readableProperties, columnNaming).stream()
+                                                                   .map(c -> prefix + c)
+                                                                   .collect(Collectors.joining(", "));
+    }
+
+    private static boolean isColumn(Class<?> type){
+        return !Collection.class.isAssignableFrom(type)
+                && !Map.class.isAssignableFrom(type)
+                && !(type.isArray() && type != byte[].class && type != char[].class) // byte[] and char[] are normally BLOB and CLOB columns
+                && !type.isAnnotationPresent(FilterTarget.class);
+    }
+}
@@ -7,19 +7,25 @@ import uk.co.agware.filter.data.Access;
 import uk.co.agware.filter.data.Group;
 import uk.co.agware.filter.data.Permission;
 import uk.co.agware.filter.exceptions.PropertyFilterException;
+import uk.co.agware.filter.metrics.FilterMetrics;
 import uk.co.agware.filter.persistence.FilterRepository;
 import uk.co.agware.filter.util.FilterUtil;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 /**
  * Holds a {@link PropertyFilter} and provides a default implementation for managing the
  * security groups in the system.
  *
+ * Closing the service stops any scheduled refresh and shuts down the executor it created when
+ * one wasn't given to the {@link ServiceBuilder}, an executor that was given to it is left running.
+ *
  * Created by Philip Ward <Philip.Ward@agware.com> on 24/06/2016.
  */
-public class FilterService {
+public class FilterService implements AutoCloseable {
 
     private final Logger logger = LoggerFactory.getLogger(FilterService.class);
 
@@ -28,18 +34,34 @@ public class FilterService {
     private Set<String> packagesToScan;
     private Map<String, String> staticGroupAllocation;
     private List<? extends Group<? extends Access>> runTimeGroups;
+    private Executor executor;
+    // Whether the executor was created by the builder, in which case it is shut down on close
+    private boolean ownsExecutor;
+    private FilterMetrics metrics;
+    // Each load of the groups takes a ticket, so a slow load can't replace the groups from a newer one
+    private final AtomicLong loadTickets = new AtomicLong();
+    private long publishedTicket;
+    private volatile Object loadedVersion;
+    private volatile long lastRefreshNanos;
+    private ScheduledThreadPoolExecutor refreshScheduler;
 
     /* Package local constructor for builder to use */
     FilterService(PropertyFilter propertyFilter,
                   FilterRepository<? extends Group<? extends Access>> repository,
                   Set<String> packagesToScan,
                   Map<String, String> staticGroupAllocation,
-                  List<? extends Group<? extends Access>> runTimeGroups) {
+                  List<? extends Group<? extends Access>> runTimeGroups,
+                  Executor executor,
+                  boolean ownsExecutor,
+                  FilterMetrics metrics) {
         this.propertyFilter = propertyFilter;
         this.repository = repository;
         this.packagesToScan = packagesToScan;
         this.staticGroupAllocation = staticGroupAllocation;
         this.runTimeGroups = runTimeGroups;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.metrics = metrics;
     }
 
     /**
@@ -55,6 +77,8 @@ public class FilterService {
      * and adds those to the list in {@link PropertyFilter} that stops it from attempting to process the values in that class.
      */
     public void init(){
+        long start = System.nanoTime();
+        long ticket = loadTickets.incrementAndGet();
         List<? extends Group<? extends Access>> groups = repository.initGroups();
         List<Access<? extends Permission>> allClasses = new ArrayList<>();
         for(String s : packagesToScan){
@@ -62,10 +86,12 @@ public class FilterService {
         }
         // For each saved group, check for updates to the access objects and then re-save
         FilterUtil.nullSafe(groups).forEach(group -> {
+            long reconcileStart = System.nanoTime();
             /* The .orElse(null) calls used in the streams in these methods should be safe due to the order in which objects are being called and used */
             removeOldClasses(group, allClasses);
             addNewAccess(group, allClasses);
             repository.save(group);
+            metrics.recordReconcile(group.getName(), System.nanoTime() - reconcileStart, FilterUtil.nullSafe(group.getAccess()).size());
         });
         // Add all extra ignored classes to the property filter's list
         packagesToScan.forEach(s ->
@@ -73,15 +99,147 @@ public class FilterService {
                         propertyFilter.addIgnoredClass(c)
                 )
         );
-        setGroups(groups);
+        setGroups(ticket, groups);
+        metrics.recordServiceCall(FilterMetrics.ServiceOperation.INIT, System.nanoTime() - start, FilterUtil.nullSafe(groups).size());
+    }
+
+    /**
+     * Runs {@link #init()} on the service's {@link Executor}
+     *
+     * @return A future completed once the groups have been loaded into the {@link PropertyFilter}
+     */
+    public CompletableFuture<Void> initAsync(){
+        return CompletableFuture.runAsync(this::init, executor);
     }
 
     /**
      * Reloads the groups from the database into the PropertyFilter
      */
     public void refresh(){
+        long start = System.nanoTime();
+        long ticket = loadTickets.incrementAndGet();
         List<? extends Group<? extends Access>> groups = repository.getGroups();
-        setGroups(groups);
+        setGroups(ticket, groups);
+        lastRefreshNanos = System.nanoTime() - start;
+        metrics.recordServiceCall(FilterMetrics.ServiceOperation.REFRESH, lastRefreshNanos, FilterUtil.nullSafe(groups).size());
+    }
+
+    /**
+     * Returns how long the last call to {@link #refresh()} took, including loading the groups from the repository
+     *
+     * @return The time taken in nanoseconds, 0 if the groups haven't been refreshed
+     */
+    public long getLastRefreshNanos(){
+        return lastRefreshNanos;
+    }
+
+    /**
+     * Returns the version of the groups last loaded by {@link #refreshIfChanged()}
+     *
+     * @return The version from {@link FilterRepository#getVersion()}, or null if none has been loaded
+     */
+    public Object getLoadedVersion(){
+        return loadedVersion;
+    }
+
+    /**
+     * Asks the repository for the version of the stored groups with {@link FilterRepository#getVersion()}
+     * and only reloads them if it differs from the version last loaded by this method. Repositories that
+     * don't provide a version are always reloaded.
+     *
+     * @return Whether the groups were reloaded
+     */
+    public boolean refreshIfChanged(){
+        Object version = repository.getVersion();
+        if(version != null && version.equals(loadedVersion)) return false;
+        refresh();
+        loadedVersion = version;
+        return true;
+    }
+
+    /**
+     * Starts calling {@link #refreshIfChanged()} in the background, replacing any refresh that
+     * was already scheduled. The time between each refresh is the {@code period} moved randomly by up to
+     * {@code jitter} times the period either way, so that many instances started together don't all hit
+     * the repository at once. The current groups stay in use while the new ones are loaded, and if a refresh
+     * fails it is logged and the current groups are kept until the next one.
+     *
+     * @param period The time between refreshes
+     * @param unit The unit of {@code period}
+     * @param jitter The fraction of the period that each delay can vary by, from 0 up to but not including 1
+     */
+    public synchronized void scheduleRefresh(long period, TimeUnit unit, double jitter){
+        if(period <= 0) throw new IllegalArgumentException("The refresh period must be greater than zero");
+        if(jitter < 0 || jitter >= 1) throw new IllegalArgumentException("The jitter must be at least 0 and less than 1");
+        cancelScheduledRefresh();
+        refreshScheduler = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "property-filter-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refreshScheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        scheduleNextRefresh(refreshScheduler, unit.toNanos(period), jitter);
+    }
+
+    /**
+     * Returns whether a background refresh has been started by {@link #scheduleRefresh(long, TimeUnit, double)}
+     *
+     * @return Whether the groups are being refreshed in the background
+     */
+    public synchronized boolean isRefreshScheduled(){
+        return refreshScheduler != null;
+    }
+
+    /**
+     * Stops the background refresh started by {@link #scheduleRefresh(long, TimeUnit, double)},
+     * a refresh that is already running is allowed to finish.
+     */
+    public synchronized void cancelScheduledRefresh(){
+        if(refreshScheduler != null){
+            refreshScheduler.shutdown();
+            refreshScheduler = null;
+        }
+    }
+
+    /**
+     * Stops any background refresh and shuts down the executor used by the asynchronous calls if it
+     * was created by the {@link ServiceBuilder}, asynchronous calls made after this will be rejected.
+     * Tasks that are already running are allowed to finish. An executor passed to
+     * {@link ServiceBuilder#withExecutor(Executor)} is left for the caller to shut down.
+     */
+    @Override
+    public synchronized void close(){
+        cancelScheduledRefresh();
+        if(ownsExecutor && executor instanceof ExecutorService){
+            ((ExecutorService) executor).shutdown();
+        }
+    }
+
+    private void scheduleNextRefresh(ScheduledExecutorService scheduler, long periodNanos, double jitter){
+        long delay = periodNanos + (long) (periodNanos * jitter * (ThreadLocalRandom.current().nextDouble() * 2 - 1));
+        try {
+            scheduler.schedule(() -> {
+                try {
+                    refreshIfChanged();
+                } catch (RuntimeException e) {
+                    logger.error("Scheduled refresh of the groups failed, the current groups will be kept", e);
+                }
+                scheduleNextRefresh(scheduler, periodNanos, jitter);
+            }, delay, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            logger.debug("Scheduled refresh has been cancelled");
+        }
+    }
+
+    /**
+     * Loads the groups from the repository on the service's {@link Executor} and then
+     * sets them in the {@link PropertyFilter}, which carries on using the current groups
+     * until the new ones are ready.
+     *
+     * @return A future completed once the new groups are in use
+     */
+    public CompletableFuture<Void> refreshAsync(){
+        return CompletableFuture.runAsync(this::refresh, executor);
     }
 
     /**
@@ -207,19 +365,24 @@ public class FilterService {
      * Sets the groups in the {@link PropertyFilter}, first adding
      * the {@code runTimeGroups} to the supplied list and then
      * passing this list into the {@link PropertyFilter} where the
-     * groups will be refreshed.
+     * groups will be refreshed, along with the static allocations
+     * so that they replace the old ones in a single change.
      *
      * @param groups The list of groups to be set in the filter
      */
     @SuppressWarnings("unchecked")
-    private void setGroups(List<? extends Group<? extends Access>> groups){
+    private synchronized void setGroups(long ticket, List<? extends Group<? extends Access>> groups){
+        if(ticket < publishedTicket){
+            logger.debug("Skipping groups from load {}, groups from load {} are already in use", ticket, publishedTicket);
+            return;
+        }
+        publishedTicket = ticket;
         // TODO Fairly certain this is really stupid, but I'm in a hurry and generics aren't playing nice here for some reason
         List<Group<? extends Access>> allGroups = new ArrayList<>();
         allGroups.addAll(groups);
         allGroups.addAll(runTimeGroups);
-        propertyFilter.setGroups(allGroups);
-        // Add the static allocations into the group map, this is mainly for either overrides, or virtual users such as system users that might need a group
-        staticGroupAllocation.entrySet().forEach(e -> propertyFilter.addUserToGroup(e.getKey(), e.getValue()));
+        // The static allocations are set along with the groups, this is mainly for either overrides, or virtual users such as system users that might need a group
+        propertyFilter.setGroups(allGroups, staticGroupAllocation);
     }
 
     /**
@@ -270,6 +433,15 @@ public class FilterService {
         return repository.getGroups();
     }
 
+    /**
+     * Runs {@link #getGroups()} on the service's {@link Executor}
+     *
+     * @return A future of the saved groups
+     */
+    public CompletableFuture<List<? extends Group<? extends Access>>> getGroupsAsync(){
+        return CompletableFuture.supplyAsync(this::getGroups, executor);
+    }
+
     /**
      * Deletes a group from the repository.
      *
@@ -288,12 +460,25 @@ public class FilterService {
      */
     @SuppressWarnings("unchecked")
     public Object saveGroup(Group<? extends Access> group){
+        long start = System.nanoTime();
         Object id = repository.save(group);
+        long ticket = loadTickets.incrementAndGet();
         List<? extends Group<? extends Access>> groups = repository.getGroups();
-        setGroups(groups);
+        setGroups(ticket, groups);
+        metrics.recordServiceCall(FilterMetrics.ServiceOperation.SAVE_GROUP, System.nanoTime() - start, FilterUtil.nullSafe(groups).size());
         return id;
     }
 
+    /**
+     * Runs {@link #saveGroup(Group)} on the service's {@link Executor}
+     *
+     * @param group The group to be saved
+     * @return A future of the ID returned by the repository, completed once the refreshed groups are in use
+     */
+    public CompletableFuture<Object> saveGroupAsync(Group<? extends Access> group){
+        return CompletableFuture.supplyAsync(() -> saveGroup(group), executor);
+    }
+
     public List<? extends Access> getAccessList(String username){
         String groupName = propertyFilter.getUsersGroup(username);
         return propertyFilter.getGroup(groupName)
@@ -364,4 +549,16 @@ public class FilterService {
     public List<? extends Permission> getAccessibleFieldsForGroup(String className, String group) throws PropertyFilterException {
         return propertyFilter.getAccessibleFields(className, group);
     }
+
+    public Set<String> getReadableProperties(Object target, String username) {
+        return getReadableProperties(target.getClass(), username);
+    }
+
+    public Set<String> getReadableProperties(Class<?> clazz, String username) {
+        return getReadablePropertiesForGroup(clazz, propertyFilter.getUsersGroup(username));
+    }
+
+    public Set<String> getReadablePropertiesForGroup(Class<?> clazz, String group) {
+        return propertyFilter.getReadableProperties(clazz, group);
+    }
 }
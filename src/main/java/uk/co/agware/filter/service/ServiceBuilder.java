@@ -5,9 +5,13 @@ import uk.co.agware.filter.data.Access;
 import uk.co.agware.filter.data.Group;
 import uk.co.agware.filter.data.Permission;
 import uk.co.agware.filter.impl.PseudoRepository;
+import uk.co.agware.filter.metrics.FilterMetrics;
 import uk.co.agware.filter.persistence.FilterRepository;
 
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Creates a {@link FilterService} instance which is used to manage the
@@ -25,6 +29,8 @@ public class ServiceBuilder {
     private Set<String> packagesToScan = null;
     private Map<String, String> staticGroupAllocations = new HashMap<>();
     private List<Group<? extends Access<? extends Permission>>> runTimeGroups = new ArrayList<>();
+    private Executor executor = null;
+    private FilterMetrics metrics = FilterMetrics.NOOP;
 
     /**
      * Initialize the builder with a {@link PropertyFilter}
@@ -114,6 +120,33 @@ public class ServiceBuilder {
         return this;
     }
 
+    /**
+     * Sets the {@link Executor} that the asynchronous service calls, such as
+     * {@link FilterService#refreshAsync()}, run their repository calls on. If one isn't set
+     * then a virtual thread per task executor is used when running on a Java version that
+     * has them, otherwise a cached pool of daemon threads. An executor set here is not shut down
+     * by {@link FilterService#close()}, the default one is.
+     *
+     * @param executor The executor to use
+     * @return Self
+     */
+    public ServiceBuilder withExecutor(Executor executor){
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Sets the {@link FilterMetrics} that the service records the time taken by its calls
+     * to the repository to. This is normally the same instance given to the {@link PropertyFilter}.
+     *
+     * @param metrics The metrics to record to
+     * @return Self
+     */
+    public ServiceBuilder withMetrics(FilterMetrics metrics){
+        this.metrics = metrics == null ? FilterMetrics.NOOP : metrics;
+        return this;
+    }
+
     /**
      * Builds the {@link FilterService} from the values specified in the builder.
      * @throws IllegalArgumentException If either the PropertyFilter is null
@@ -128,6 +161,20 @@ public class ServiceBuilder {
         else if(packagesToScan == null){
             throw new IllegalArgumentException("No packages specified to scan");
         }
-        return new FilterService(propertyFilter, repository, packagesToScan, staticGroupAllocations, runTimeGroups);
+        return new FilterService(propertyFilter, repository, packagesToScan, staticGroupAllocations, runTimeGroups, executor == null ? defaultExecutor() : executor, executor == null, metrics);
+    }
+
+    /* Virtual threads are looked up by reflection as the library is still built for Java 8 */
+    private static Executor defaultExecutor(){
+        try {
+            return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger threadCount = new AtomicInteger();
+            return Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "property-filter-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
     }
 }
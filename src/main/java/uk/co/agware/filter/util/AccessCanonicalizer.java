@@ -0,0 +1,196 @@
+package uk.co.agware.filter.util;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import uk.co.agware.filter.data.Access;
+import uk.co.agware.filter.data.AccessType;
+import uk.co.agware.filter.data.Permission;
+import uk.co.agware.filter.data.PermissionType;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Canonicalizing store for the {@link Access} and {@link Permission} objects held by
+ * the {@link uk.co.agware.filter.PropertyFilter}. Groups commonly share identical
+ * settings for a class, so rather than holding a separate object graph per group
+ * the store hashes the content of each {@link Access} and hands back a single shared
+ * copy for every group with the same settings. Property and display names are interned
+ * so that each distinct name is only held once.
+ *
+ * The shared copies are created through the {@link ClassFactory}, so the objects passed
+ * in by callers are never mutated and are not retained by the store.
+ */
+public class AccessCanonicalizer {
+
+    private final Interner<String> names = Interners.newWeakInterner();
+    private final Map<AccessKey, Access<? extends Permission>> accessCache = new HashMap<>();
+    private final Map<PermissionKey, Permission> permissionCache = new HashMap<>();
+    private final ClassFactory<? extends Access<? extends Permission>, ? extends Permission> classFactory;
+
+    public AccessCanonicalizer(ClassFactory<? extends Access<? extends Permission>, ? extends Permission> classFactory) {
+        this.classFactory = classFactory;
+    }
+
+    /**
+     * Returns the shared copy of the given {@link Access}, creating it if no
+     * {@link Access} with the same content has been seen since the last call to {@link #clear()}
+     *
+     * @param access The access object to canonicalize
+     * @return A shared copy with the same content as {@code access}
+     */
+    @SuppressWarnings("unchecked")
+    public Access<? extends Permission> canonicalize(Access<? extends Permission> access){
+        if(access == null) return null;
+        AccessKey key = new AccessKey(access);
+        Access<? extends Permission> canonical = accessCache.get(key);
+        if(canonical != null) return canonical;
+
+        canonical = ((ClassFactory) classFactory).copyAccessClass(access); // Cannot be changed, too much generics
+        canonical.setObjectClass(intern(canonical.getObjectClass()));
+        canonical.setDisplayName(intern(canonical.getDisplayName()));
+        List<Permission> permissions = (List<Permission>) canonical.getPermissions();
+        if(permissions != null){ // The factory may return a list that can't be changed, so a new one is set
+            List<Permission> shared = new ArrayList<>(permissions.size());
+            for(Permission p : permissions){
+                shared.add(canonicalize(p));
+            }
+            ((Access) canonical).setPermissions(shared);
+        }
+        accessCache.put(key, canonical);
+        return canonical;
+    }
+
+    /**
+     * Returns the shared copy of the given {@link Permission}
+     *
+     * @param permission The permission to canonicalize, this should already be a copy owned by the store
+     * @return The shared copy with the same content as {@code permission}
+     */
+    private Permission canonicalize(Permission permission){
+        if(permission == null) return null;
+        PermissionKey key = new PermissionKey(permission);
+        Permission canonical = permissionCache.get(key);
+        if(canonical == null){
+            permission.setPropertyName(intern(permission.getPropertyName()));
+            permission.setDisplayName(intern(permission.getDisplayName()));
+            permissionCache.put(key, permission);
+            canonical = permission;
+        }
+        return canonical;
+    }
+
+    /**
+     * Drops all the shared copies so that ones no longer used by any group can be collected,
+     * interned names are held weakly and so do not need to be cleared.
+     */
+    public void clear(){
+        accessCache.clear();
+        permissionCache.clear();
+    }
+
+    /**
+     * Returns the number of distinct {@link Access} objects currently held
+     *
+     * @return The number of shared {@link Access} copies
+     */
+    public int size(){
+        return accessCache.size();
+    }
+
+    private String intern(String name){
+        return name == null ? null : names.intern(name);
+    }
+
+    /* Content key for an Access object, includes the full permission vector */
+    private static final class AccessKey {
+
+        private final String objectClass;
+        private final String displayName;
+        private final AccessType access;
+        private final boolean modifiable;
+        private final List<PermissionKey> permissions;
+        private final int hash;
+
+        AccessKey(Access<? extends Permission> a) {
+            this.objectClass = a.getObjectClass();
+            this.displayName = a.getDisplayName();
+            this.access = a.getAccess();
+            this.modifiable = a.isModifiable();
+            if(a.getPermissions() == null){
+                this.permissions = null;
+            }
+            else {
+                this.permissions = new ArrayList<>(a.getPermissions().size());
+                for(Permission p : a.getPermissions()){
+                    permissions.add(p == null ? null : new PermissionKey(p));
+                }
+            }
+            int result = objectClass != null ? objectClass.hashCode() : 0;
+            result = 31 * result + (displayName != null ? displayName.hashCode() : 0);
+            result = 31 * result + (access != null ? access.hashCode() : 0);
+            result = 31 * result + (modifiable ? 1 : 0);
+            result = 31 * result + (permissions != null ? permissions.hashCode() : 0);
+            this.hash = result;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof AccessKey)) return false;
+            AccessKey that = (AccessKey) o;
+            if (hash != that.hash) return false;
+            if (modifiable != that.modifiable) return false;
+            if (access != that.access) return false;
+            if (objectClass != null ? !objectClass.equals(that.objectClass) : that.objectClass != null) return false;
+            if (displayName != null ? !displayName.equals(that.displayName) : that.displayName != null) return false;
+            return permissions != null ? permissions.equals(that.permissions) : that.permissions == null;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /* Content key for a Permission object */
+    private static final class PermissionKey {
+
+        private final String propertyName;
+        private final String displayName;
+        private final PermissionType permission;
+        private final boolean modifiable;
+        private final int hash;
+
+        PermissionKey(Permission p) {
+            this.propertyName = p.getPropertyName();
+            this.displayName = p.getDisplayName();
+            this.permission = p.getPermission();
+            this.modifiable = p.isModifiable();
+            int result = propertyName != null ? propertyName.hashCode() : 0;
+            result = 31 * result + (displayName != null ? displayName.hashCode() : 0);
+            result = 31 * result + (permission != null ? permission.hashCode() : 0);
+            result = 31 * result + (modifiable ? 1 : 0);
+            this.hash = result;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof PermissionKey)) return false;
+            PermissionKey that = (PermissionKey) o;
+            if (hash != that.hash) return false;
+            if (modifiable != that.modifiable) return false;
+            if (permission != that.permission) return false;
+            if (propertyName != null ? !propertyName.equals(that.propertyName) : that.propertyName != null) return false;
+            return displayName != null ? displayName.equals(that.displayName) : that.displayName == null;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
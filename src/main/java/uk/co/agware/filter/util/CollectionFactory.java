@@ -0,0 +1,16 @@
+package uk.co.agware.filter.util;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Creates the empty collections and maps that filtered values are copied into. The result
+ * should behave like the source as closely as possible, keeping its ordering and any comparator,
+ * and should be sized to hold the values of the source without having to grow.
+ */
+public interface CollectionFactory {
+
+    <T> Collection<T> newCollection(Collection<T> source);
+
+    <K, V> Map<K, V> newMap(Map<K, V> source);
+}
@@ -11,13 +11,19 @@ import uk.co.agware.filter.data.AccessType;
 import uk.co.agware.filter.data.Permission;
 import uk.co.agware.filter.data.PermissionType;
 import uk.co.agware.filter.exceptions.FilterException;
+import uk.co.agware.filter.exceptions.MissingPermissionException;
 
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -30,6 +36,12 @@ public class FilterUtil {
     private AccessType DEFAULT_ACCESS_TYPE = AccessType.NO_ACCESS;
     private PermissionType DEFAULT_PERMISSION_TYPE = PermissionType.NO_ACCESS;
     private ClassFactory<? extends Access<? extends Permission>, ? extends Permission> classFactory;
+    // The fields of a class never change, so they are only looked up once
+    private final Map<Class<?>, Set<Field>> fieldCache = new ConcurrentHashMap<>();
+    private final LongAdder fieldCacheHits = new LongAdder();
+    private final LongAdder fieldCacheMisses = new LongAdder();
+    // Limited for each class and set of fields, so one broken class can't hide another when the groups are recompiled
+    private final KeyedRateLimitedLog missingPermissionLogs = new KeyedRateLimitedLog(10, TimeUnit.SECONDS, 1024);
 
     public FilterUtil(ClassFactory<? extends Access<? extends Permission>, ? extends Permission> classFactory) {
         this.classFactory = classFactory;
@@ -47,38 +59,108 @@ public class FilterUtil {
         DEFAULT_PERMISSION_TYPE = defaultPermissionType;
     }
 
-    public boolean isFieldReadable(String fieldName, Access<? extends Permission> access){
+    public PermissionType getDefaultPermissionType() {
+        return DEFAULT_PERMISSION_TYPE;
+    }
+
+    /**
+     * Returns the permission defined for a field, without throwing or logging if there isn't one.
+     *
+     * @param fieldName The name of the field
+     * @param access The access to look for the permission in
+     * @return The permission for the field, or null if none is defined
+     */
+    public Permission findPermission(String fieldName, Access<? extends Permission> access){
         for(Permission p : nullSafe(access.getPermissions())){
             if(p.getPropertyName().equals(fieldName)){
-                return !p.getPermission().equals(PermissionType.NO_ACCESS);
+                return p;
             }
         }
-        LOGGER.error("No permission defined for field {} on object {}", fieldName, access.getObjectClass());
-        throw new FilterException(String.format("No permission defined for field %s on object %s", fieldName, access.getObjectClass()));
+        return null;
+    }
+
+    public boolean isFieldReadable(String fieldName, Access<? extends Permission> access){
+        Permission p = findPermission(fieldName, access);
+        if(p == null) throw missingPermission(fieldName, access);
+        return !p.getPermission().equals(PermissionType.NO_ACCESS);
     }
 
     public boolean isFieldWritable(String fieldName, Access<? extends Permission> access){
-        for(Permission p : nullSafe(access.getPermissions())){
-            if(p.getPropertyName().equals(fieldName)){
-                return !p.getPermission().equals(PermissionType.NO_ACCESS) && !p.getPermission().equals(PermissionType.READ);
-            }
+        Permission p = findPermission(fieldName, access);
+        if(p == null) throw missingPermission(fieldName, access);
+        return !p.getPermission().equals(PermissionType.NO_ACCESS) && !p.getPermission().equals(PermissionType.READ);
+    }
+
+    /* A missing permission is hit on every call until the groups are fixed, so the error is only logged now and again */
+    private MissingPermissionException missingPermission(String fieldName, Access<? extends Permission> access){
+        logMissingPermissions(Collections.singletonList(fieldName), access);
+        return MissingPermissionException.forField(fieldName, access.getObjectClass());
+    }
+
+    /**
+     * Logs that fields have no permission defined in an access, through the same rate limited
+     * logs as {@link #isFieldReadable(String, Access)} and {@link #isFieldWritable(String, Access)}
+     * so that a broken group doesn't flood the logs. Each class and set of fields is limited
+     * separately, so every misconfigured class is still reported.
+     *
+     * @param fieldNames The names of the fields without a permission
+     * @param access The access the permissions are missing from
+     */
+    public void logMissingPermissions(Collection<String> fieldNames, Access<? extends Permission> access){
+        Object fields = fieldNames.size() == 1 ? fieldNames.iterator().next() : fieldNames;
+        RateLimitedLog log = missingPermissionLogs.forKey(access.getObjectClass() + "#" + fields);
+        if(log.tryAcquire()){
+            LOGGER.error("No permission defined for field {} on object {} ({} similar errors suppressed)",
+                    fields, access.getObjectClass(), log.drainSuppressed());
         }
-        LOGGER.error("No permission defined for field {} on object {}", fieldName, access.getObjectClass());
-        throw new FilterException(String.format("No permission defined for field %s on object %s", fieldName, access.getObjectClass()));
     }
 
     public Set<Field> getAllFields(Object o){
         return getAllFields(o.getClass());
     }
 
+    /**
+     * Returns the fields declared on a class and all of its super classes, the
+     * fields are cached so each class is only looked up once.
+     *
+     * @param c The class to get the fields of
+     * @return An unmodifiable set of the fields
+     */
     public Set<Field> getAllFields(Class<?> c){
+        Set<Field> fields = fieldCache.get(c);
+        if(fields != null){
+            fieldCacheHits.increment();
+            return fields;
+        }
+        fieldCacheMisses.increment();
+        return fieldCache.computeIfAbsent(c, FilterUtil::findAllFields);
+    }
+
+    private static Set<Field> findAllFields(Class<?> c){
         Set<Field> fields = new HashSet<>();
         Class<?> clazz = c;
         do {
             fields.addAll(Arrays.asList(clazz.getDeclaredFields()));
             clazz = clazz.getSuperclass();
         } while (clazz != null);
-        return fields;
+        return Collections.unmodifiableSet(fields);
+    }
+
+    public long getFieldCacheHits(){
+        return fieldCacheHits.sum();
+    }
+
+    public long getFieldCacheMisses(){
+        return fieldCacheMisses.sum();
+    }
+
+    public int getFieldCacheSize(){
+        return fieldCache.size();
+    }
+
+    /** Empties the field cache, the fields of each class are looked up again on next use */
+    public void clearFieldCache(){
+        fieldCache.clear();
     }
 
     @SuppressWarnings("unchecked")
@@ -198,6 +280,30 @@ public class FilterUtil {
         return new ArrayList<>();
     }
 
+    // Returns the field with the given name from the class or its super classes, or null if there isn't one
+    public static Field findField(Class<?> clazz, String name){
+        Class<?> c = clazz;
+        while(c != null){
+            for(Field f : c.getDeclaredFields()){
+                if(f.getName().equals(name)) return f;
+            }
+            c = c.getSuperclass();
+        }
+        return null;
+    }
+
+    // Returns the generic type of a collection field, or null if it can't be worked out
+    public static Class<?> getCollectionType(Field field){
+        Type type = field.getGenericType();
+        if(type instanceof ParameterizedType){
+            Type[] arguments = ((ParameterizedType) type).getActualTypeArguments();
+            if(arguments.length == 1 && arguments[0] instanceof Class){
+                return (Class<?>) arguments[0];
+            }
+        }
+        return null;
+    }
+
     // Returns and empty list if the collection passed in is null
     public static <T> Collection<T> nullSafe(Collection<T> collection){
         return collection == null ? Collections.emptyList() : collection;
@@ -0,0 +1,39 @@
+package uk.co.agware.filter.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a {@link RateLimitedLog} for each distinct message key, so that a problem that is logged
+ * often can't hide a different problem logged in the same interval. The number of keys is bounded,
+ * once the limit is reached any new keys share a single log.
+ */
+public final class KeyedRateLimitedLog {
+
+    private final long interval;
+    private final TimeUnit unit;
+    private final int maxKeys;
+    private final Map<String, RateLimitedLog> logs = new ConcurrentHashMap<>();
+    private final RateLimitedLog overflow;
+
+    public KeyedRateLimitedLog(long interval, TimeUnit unit, int maxKeys) {
+        this.interval = interval;
+        this.unit = unit;
+        this.maxKeys = maxKeys;
+        this.overflow = new RateLimitedLog(interval, unit);
+    }
+
+    /**
+     * Returns the log for the given key, creating it if this is the first time the key has been seen
+     *
+     * @param key The key identifying the message, such as the class and field it is about
+     * @return The log to check before logging the message
+     */
+    public RateLimitedLog forKey(String key){
+        RateLimitedLog log = logs.get(key);
+        if(log != null) return log;
+        if(logs.size() >= maxKeys) return overflow;
+        return logs.computeIfAbsent(key, k -> new RateLimitedLog(interval, unit));
+    }
+}
@@ -0,0 +1,48 @@
+package uk.co.agware.filter.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits how often a message is logged, for problems that can happen on every call such as
+ * a field with no permission defined. At most one message is let through per interval and the
+ * rest are counted, so the next message logged can say how many were left out.
+ */
+public final class RateLimitedLog {
+
+    private final long intervalNanos;
+    private final AtomicLong nextAllowed;
+    private final LongAdder suppressed = new LongAdder();
+
+    public RateLimitedLog(long interval, TimeUnit unit) {
+        this.intervalNanos = unit.toNanos(interval);
+        this.nextAllowed = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Returns whether a message can be logged now, counting it as suppressed if not.
+     * Only one of the threads calling in the same interval is let through.
+     *
+     * @return Whether the message should be logged
+     */
+    public boolean tryAcquire(){
+        long now = System.nanoTime();
+        long next = nextAllowed.get();
+        if(now - next >= 0 && nextAllowed.compareAndSet(next, now + intervalNanos)){
+            return true;
+        }
+        suppressed.increment();
+        return false;
+    }
+
+    /**
+     * Returns the number of messages suppressed since this was last called, to be included
+     * in the message that was let through
+     *
+     * @return The number of messages suppressed
+     */
+    public long drainSuppressed(){
+        return suppressed.sumThenReset();
+    }
+}
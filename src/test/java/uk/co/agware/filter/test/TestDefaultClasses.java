@@ -9,11 +9,11 @@ import uk.co.agware.filter.data.Permission;
 import uk.co.agware.filter.data.PermissionType;
 import uk.co.agware.filter.impl.AccessImpl;
 import uk.co.agware.filter.impl.DefaultClassFactory;
+import uk.co.agware.filter.impl.DefaultCollectionFactory;
 import uk.co.agware.filter.impl.PermissionImpl;
 import uk.co.agware.filter.test.classes.TestClass;
 
-import java.util.Collections;
-import java.util.List;
+import java.util.*;
 
 /**
  * Created by Philip Ward <Philip.Ward@agware.com> on 24/06/2016.
@@ -89,4 +89,36 @@ public class TestDefaultClasses extends Assert {
     public void testCopyNullPermission(){
         defaultClassFactory.copyPermissionClass(null);
     }
+
+    @Test
+    public void testNewCollectionKeepsType(){
+        DefaultCollectionFactory collectionFactory = new DefaultCollectionFactory();
+
+        TreeSet<String> sorted = new TreeSet<>(Comparator.reverseOrder());
+        sorted.addAll(Arrays.asList("a", "b"));
+        Collection<String> sortedCopy = collectionFactory.newCollection(sorted);
+        assertEquals(TreeSet.class, sortedCopy.getClass());
+        assertEquals(sorted.comparator(), ((TreeSet<String>) sortedCopy).comparator());
+
+        Collection<AccessType> enumCopy = collectionFactory.newCollection(EnumSet.of(AccessType.READ));
+        assertTrue(enumCopy.isEmpty());
+        enumCopy.add(AccessType.UPDATE);
+        assertTrue(enumCopy instanceof EnumSet);
+
+        assertEquals(LinkedHashSet.class, collectionFactory.newCollection(new LinkedHashSet<>()).getClass());
+        assertEquals(ArrayDeque.class, collectionFactory.newCollection(new ArrayDeque<>()).getClass());
+        assertEquals(ArrayList.class, collectionFactory.newCollection(Collections.singletonList("a")).getClass());
+    }
+
+    @Test
+    public void testNewMapKeepsType(){
+        DefaultCollectionFactory collectionFactory = new DefaultCollectionFactory();
+
+        assertEquals(LinkedHashMap.class, collectionFactory.newMap(new LinkedHashMap<>()).getClass());
+        Map<AccessType, String> enumMap = collectionFactory.newMap(new EnumMap<>(Collections.singletonMap(AccessType.READ, "a")));
+        assertTrue(enumMap instanceof EnumMap);
+        assertTrue(enumMap.isEmpty());
+        TreeMap<String, String> sorted = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        assertEquals(String.CASE_INSENSITIVE_ORDER, ((TreeMap<String, String>) collectionFactory.newMap(sorted)).comparator());
+    }
 }
@@ -0,0 +1,91 @@
+package uk.co.agware.filter.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import uk.co.agware.filter.PropertyFilter;
+import uk.co.agware.filter.PropertyFilterBuilder;
+import uk.co.agware.filter.audit.DenialAuditor;
+import uk.co.agware.filter.audit.DenialEvent;
+import uk.co.agware.filter.data.AccessType;
+import uk.co.agware.filter.data.PermissionType;
+import uk.co.agware.filter.impl.DefaultClassFactory;
+import uk.co.agware.filter.impl.GroupImpl;
+import uk.co.agware.filter.test.relations.Address;
+import uk.co.agware.filter.test.relations.Customer;
+import uk.co.agware.filter.util.FilterUtil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+public class TestDenialAuditor {
+
+    private String username = "test";
+    private String groupName = "Test Group";
+
+    @Test
+    public void testDenialsAreRecorded() throws InterruptedException {
+        BlockingQueue<DenialEvent> events = new LinkedBlockingQueue<>();
+        FilterUtil filterUtil = new FilterUtil(new DefaultClassFactory());
+        filterUtil.setDefaultAccessType(AccessType.UPDATE);
+        filterUtil.setDefaultPermissionType(PermissionType.WRITE);
+        try (DenialAuditor auditor = new DenialAuditor(64, events::add, 1, TimeUnit.MILLISECONDS)) {
+            PropertyFilter propertyFilter = new PropertyFilterBuilder()
+                    .filterUtil(filterUtil)
+                    .denialAuditor(auditor)
+                    .build();
+            GroupImpl group = new GroupImpl();
+            group.setName(groupName);
+            group.setAccess(filterUtil.getFullAccessList("uk.co.agware.filter.test.relations"));
+            group.setMembers(Collections.singletonList(username));
+            propertyFilter.setGroups(Collections.singletonList(group));
+
+            propertyFilter.parseObjectForReturn(new Address("Street", "Notes"), username);
+            DenialEvent event = events.poll(5, TimeUnit.SECONDS);
+            Assert.assertNotNull(event);
+            Assert.assertEquals(username, event.getUsername());
+            Assert.assertEquals(groupName, event.getGroupName());
+            Assert.assertEquals(Address.class.getName(), event.getClassName());
+            Assert.assertEquals("notes", event.getFieldName());
+            Assert.assertEquals(DenialEvent.Direction.READ, event.getDirection());
+
+            propertyFilter.parseObjectForSaving(new Customer("2", "New", null), new Customer("1", "Old", null), username);
+            event = events.poll(5, TimeUnit.SECONDS);
+            Assert.assertNotNull(event);
+            Assert.assertEquals(Customer.class.getName(), event.getClassName());
+            Assert.assertEquals("id", event.getFieldName());
+            Assert.assertEquals(DenialEvent.Direction.WRITE, event.getDirection());
+            Assert.assertEquals(2, auditor.getRecorded());
+        }
+    }
+
+    @Test
+    public void testFullBufferDropsDenials() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<DenialEvent> events = Collections.synchronizedList(new ArrayList<>());
+        DenialAuditor auditor = new DenialAuditor(2, e -> {
+            events.add(e);
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }, 1, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(2, auditor.getCapacity());
+
+        Assert.assertTrue(auditor.record(username, groupName, "Class", "first", DenialEvent.Direction.READ));
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS)); // The drain thread is now held by the consumer
+        Assert.assertTrue(auditor.record(username, groupName, "Class", "second", DenialEvent.Direction.READ));
+        Assert.assertTrue(auditor.record(username, groupName, "Class", "third", DenialEvent.Direction.READ));
+        Assert.assertFalse(auditor.record(username, groupName, "Class", "fourth", DenialEvent.Direction.READ));
+        Assert.assertEquals(1, auditor.getDropped());
+
+        release.countDown();
+        auditor.close();
+        Assert.assertEquals(3, events.size());
+        Assert.assertEquals("third", events.get(2).getFieldName());
+    }
+}
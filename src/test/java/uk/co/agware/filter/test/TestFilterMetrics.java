@@ -0,0 +1,201 @@
+package uk.co.agware.filter.test;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import uk.co.agware.filter.PropertyFilter;
+import uk.co.agware.filter.PropertyFilterBuilder;
+import uk.co.agware.filter.data.AccessType;
+import uk.co.agware.filter.data.PermissionType;
+import uk.co.agware.filter.impl.AccessImpl;
+import uk.co.agware.filter.impl.DefaultClassFactory;
+import uk.co.agware.filter.impl.GroupImpl;
+import uk.co.agware.filter.metrics.ClassMetrics;
+import uk.co.agware.filter.metrics.FilterMetrics;
+import uk.co.agware.filter.metrics.InMemoryFilterMetrics;
+import uk.co.agware.filter.metrics.LatencyHistogram;
+import uk.co.agware.filter.metrics.SlowFilterReport;
+import uk.co.agware.filter.test.relations.Address;
+import uk.co.agware.filter.test.relations.Customer;
+import uk.co.agware.filter.util.FilterUtil;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+public class TestFilterMetrics {
+
+    private String username = "test";
+    private String groupName = "Test Group";
+
+    private FilterUtil filterUtil;
+    private InMemoryFilterMetrics metrics;
+    private PropertyFilter propertyFilter;
+
+    @Before
+    public void setUp(){
+        filterUtil = new FilterUtil(new DefaultClassFactory());
+        metrics = new InMemoryFilterMetrics();
+        propertyFilter = new PropertyFilterBuilder()
+                .filterUtil(filterUtil)
+                .metrics(metrics)
+                .build();
+        filterUtil.setDefaultAccessType(AccessType.CREATE);
+        filterUtil.setDefaultPermissionType(PermissionType.WRITE);
+        List<AccessImpl> accessList = filterUtil.getFullAccessList("uk.co.agware.filter.test.relations");
+        GroupImpl group = new GroupImpl();
+        group.setName(groupName);
+        group.setAccess(accessList);
+        group.setMembers(Collections.singletonList(username));
+        propertyFilter.setGroups(Collections.singletonList(group));
+    }
+
+    @Test
+    public void testReturnIsRecordedForOuterClass(){
+        propertyFilter.parseObjectForReturn(new Customer("1", "Name", new Address("Street", "Notes")), username);
+        propertyFilter.parseObjectForReturn(new Customer("2", "Name", null), username);
+
+        ClassMetrics customer = metrics.getClassMetrics(FilterMetrics.FilterOperation.RETURN, Customer.class);
+        Assert.assertEquals(2, customer.getCalls());
+        Assert.assertEquals(2, customer.getMaxDepth());
+        Assert.assertEquals(3, customer.getObjectsInstantiated());
+        Assert.assertEquals(1, customer.getDeniedFields()); // Address notes
+        Assert.assertEquals(13, customer.getFieldsCopied()); // 6 on each customer, street on the address
+        // The address was filtered as part of the customer
+        Assert.assertNull(metrics.getClassMetrics(FilterMetrics.FilterOperation.RETURN, Address.class));
+        Assert.assertEquals(1, metrics.getGroupRefreshes().getCount());
+    }
+
+    @Test
+    public void testSaveIsRecordedSeparately(){
+        Customer existing = new Customer("1", "Name", new Address("Street", "Notes"));
+        propertyFilter.parseObjectForSaving(new Customer("1", "New Name", new Address("New Street", "New Notes")), existing, username);
+
+        ClassMetrics customer = metrics.getClassMetrics(FilterMetrics.FilterOperation.SAVE, Customer.class);
+        Assert.assertEquals(1, customer.getCalls());
+        Assert.assertEquals(2, customer.getMaxDepth());
+        Assert.assertEquals(0, customer.getObjectsInstantiated());
+        Assert.assertEquals(2, customer.getDeniedFields()); // Customer id and address notes
+        Assert.assertTrue(metrics.getClassMetrics(FilterMetrics.FilterOperation.RETURN).isEmpty());
+
+        metrics.reset();
+        Assert.assertEquals(0, customer.getCalls());
+    }
+
+    @Test
+    public void testSlowFilterReport(){
+        List<SlowFilterReport> reports = new ArrayList<>();
+        PropertyFilter slowFilter = new PropertyFilterBuilder()
+                .filterUtil(filterUtil)
+                .slowFilterThreshold(1, TimeUnit.NANOSECONDS)
+                .slowFilterListener(reports::add)
+                .build();
+        GroupImpl group = new GroupImpl();
+        group.setName(groupName);
+        group.setAccess(filterUtil.getFullAccessList("uk.co.agware.filter.test.relations"));
+        slowFilter.setGroups(Collections.singletonList(group));
+
+        Customer customer = new Customer("1", "Name", new Address("Street", "Notes"));
+        Map<String, Address> addressBook = new HashMap<>();
+        addressBook.put("home", new Address("Home", "Notes"));
+        addressBook.put("work", new Address("Work", "Notes"));
+        customer.setAddressBook(addressBook);
+        customer.setPreviousAddresses(new Address[]{ new Address("Old", "Notes") });
+        slowFilter.parseObjectForReturn(customer, username, groupName);
+
+        Assert.assertEquals(1, reports.size());
+        SlowFilterReport report = reports.get(0);
+        Assert.assertEquals(FilterMetrics.FilterOperation.RETURN, report.getOperation());
+        Assert.assertEquals(Customer.class, report.getRootClass());
+        Assert.assertEquals(groupName, report.getGroupName());
+        Assert.assertArrayEquals(new int[]{1, 4}, report.getLevelCounts());
+        Assert.assertEquals(10, report.getFieldsCopied());
+        Assert.assertEquals(5, report.getObjectsInstantiated());
+        Assert.assertTrue(Arrays.asList("Customer.address", "Customer.addressBook", "Customer.previousAddresses").contains(report.getDeepestPath()));
+
+        // Nothing is reported when no slow calls are sampled
+        PropertyFilter unsampled = new PropertyFilterBuilder()
+                .filterUtil(filterUtil)
+                .slowFilterThreshold(1, TimeUnit.NANOSECONDS)
+                .slowFilterSampleRate(0)
+                .slowFilterListener(reports::add)
+                .build();
+        unsampled.setGroups(Collections.singletonList(group));
+        unsampled.parseObjectForReturn(customer, username, groupName);
+        Assert.assertEquals(1, reports.size());
+    }
+
+    @Test
+    public void testHistogramPercentiles(){
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.getValueAtPercentile(99));
+        for(long i = 1; i <= 1000; i++){
+            histogram.record(i * 1000);
+        }
+        Assert.assertEquals(1000, histogram.getCount());
+        Assert.assertEquals(1_000_000, histogram.getMax());
+        Assert.assertEquals(500_500, histogram.getMean(), 0.1);
+        // Buckets are within 12.5% of the recorded values
+        Assert.assertEquals(500_000, histogram.getValueAtPercentile(50), 500_000 * 0.125);
+        Assert.assertEquals(990_000, histogram.getValueAtPercentile(99), 990_000 * 0.125);
+        Assert.assertEquals(1000, histogram.getValueAtPercentile(0), 1000 * 0.125);
+        Assert.assertEquals(1_000_000, histogram.getValueAtPercentile(100));
+
+        histogram.record(Long.MAX_VALUE);
+        Assert.assertEquals(Long.MAX_VALUE, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testJfrEvents() throws IOException {
+        FilterMetrics jfr = FilterMetrics.jfr();
+        Assume.assumeTrue(jfr != FilterMetrics.NOOP);
+        PropertyFilter jfrFilter = new PropertyFilterBuilder()
+                .filterUtil(filterUtil)
+                .metrics(FilterMetrics.combine(jfr, metrics))
+                .build();
+        Path file = Files.createTempFile("property-filter", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("uk.co.agware.filter.FilterReturn");
+            recording.enable("uk.co.agware.filter.CollectionFilter");
+            recording.enable("uk.co.agware.filter.GroupRefresh");
+            recording.start();
+            GroupImpl group = new GroupImpl();
+            group.setName(groupName);
+            group.setAccess(filterUtil.getFullAccessList("uk.co.agware.filter.test.relations"));
+            group.setMembers(Collections.singletonList(username));
+            jfrFilter.setGroups(Collections.singletonList(group));
+            jfrFilter.handleCollectionForReturn(Arrays.asList(new Customer("1", "Name", new Address("Street", "Notes"))), username, groupName);
+            recording.stop();
+            recording.dump(file);
+
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            Set<String> names = events.stream().map(e -> e.getEventType().getName()).collect(Collectors.toSet());
+            Assert.assertTrue(names.contains("uk.co.agware.filter.FilterReturn"));
+            Assert.assertTrue(names.contains("uk.co.agware.filter.CollectionFilter"));
+            Assert.assertTrue(names.contains("uk.co.agware.filter.GroupRefresh"));
+            RecordedEvent filterReturn = events.stream().filter(e -> e.getEventType().getName().equals("uk.co.agware.filter.FilterReturn")).findFirst().get();
+            Assert.assertEquals(Customer.class.getName(), filterReturn.getString("className"));
+            Assert.assertEquals(groupName, filterReturn.getString("group"));
+            Assert.assertEquals(2, filterReturn.getInt("depth"));
+            RecordedEvent collection = events.stream().filter(e -> e.getEventType().getName().equals("uk.co.agware.filter.CollectionFilter")).findFirst().get();
+            Assert.assertEquals(1, collection.getInt("elementCount"));
+            // The combined metrics are still recorded in memory
+            Assert.assertEquals(1, metrics.getClassMetrics(FilterMetrics.FilterOperation.RETURN, Customer.class).getCalls());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
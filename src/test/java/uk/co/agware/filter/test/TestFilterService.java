@@ -13,6 +13,9 @@ import uk.co.agware.filter.impl.AccessImpl;
 import uk.co.agware.filter.impl.DefaultClassFactory;
 import uk.co.agware.filter.impl.GroupImpl;
 import uk.co.agware.filter.impl.PermissionImpl;
+import uk.co.agware.filter.jmx.FilterServiceMonitor;
+import uk.co.agware.filter.metrics.FilterMetrics;
+import uk.co.agware.filter.metrics.InMemoryFilterMetrics;
 import uk.co.agware.filter.persistence.FilterRepository;
 import uk.co.agware.filter.service.FilterService;
 import uk.co.agware.filter.service.ServiceBuilder;
@@ -22,6 +25,11 @@ import uk.co.agware.filter.test.classes.TestClass;
 import uk.co.agware.filter.util.FilterUtil;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by Philip Ward <Philip.Ward@agware.com> on 24/06/2016.
@@ -74,17 +82,127 @@ public class TestFilterService extends Mockito {
     @Test
     public void testInitAddsExtraMappings(){
         filterService.init();
-        verify(propertyFilter).addUserToGroup("user 1", "group 1");
+        // The static allocations are set along with the groups rather than added afterwards
+        verify(propertyFilter).setGroups(anyList(), eq(Collections.singletonMap("user 1", "group 1")));
+        verify(propertyFilter, never()).addUserToGroup(anyString(), anyString());
     }
 
     @Test
     public void testInitSetsGroups(){
         filterService.init();
-        verify(propertyFilter).setGroups(groupsCaptor.capture());
+        verify(propertyFilter).setGroups(groupsCaptor.capture(), anyMap());
         List<GroupImpl> groups = groupsCaptor.getValue();
         Assert.assertEquals(1, groups.size());
     }
 
+    @Test
+    public void testRefreshAsyncSetsGroups(){
+        filterService.refreshAsync().join();
+        verify(filterRepository).getGroups();
+        verify(propertyFilter).setGroups(groupsCaptor.capture(), anyMap());
+        Assert.assertEquals(1, groupsCaptor.getValue().size());
+    }
+
+    @Test
+    public void testSaveGroupAsyncUsesExecutor(){
+        List<Runnable> tasks = new ArrayList<>();
+        FilterService service = new ServiceBuilder(propertyFilter)
+                .withRepository(filterRepository)
+                .addPackageToScan("uk.co.agware.filter.test")
+                .withExecutor(tasks::add)
+                .build();
+        Group group = getTestGroup();
+        when(filterRepository.save(group)).thenReturn("id");
+
+        CompletableFuture<Object> result = service.saveGroupAsync(group);
+        Assert.assertFalse(result.isDone());
+        verify(filterRepository, never()).save(anyObject());
+
+        tasks.forEach(Runnable::run);
+        Assert.assertEquals("id", result.join());
+        verify(propertyFilter).setGroups(anyList(), anyMap());
+    }
+
+    @Test
+    public void testRefreshIfChangedSkipsSameVersion(){
+        when(filterRepository.getVersion()).thenReturn(1L);
+        Assert.assertTrue(filterService.refreshIfChanged());
+        Assert.assertFalse(filterService.refreshIfChanged());
+        verify(filterRepository, times(1)).getGroups();
+
+        when(filterRepository.getVersion()).thenReturn(2L);
+        Assert.assertTrue(filterService.refreshIfChanged());
+        verify(filterRepository, times(2)).getGroups();
+    }
+
+    @Test
+    public void testServiceCallsAreRecorded(){
+        InMemoryFilterMetrics metrics = new InMemoryFilterMetrics();
+        FilterService service = new ServiceBuilder(propertyFilter)
+                .withRepository(filterRepository)
+                .addPackageToScan("uk.co.agware.filter.test")
+                .withMetrics(metrics)
+                .build();
+        service.refresh();
+        service.refresh();
+        service.saveGroup(getTestGroup());
+        Assert.assertEquals(2, metrics.getServiceCalls(FilterMetrics.ServiceOperation.REFRESH).getCount());
+        Assert.assertEquals(1, metrics.getServiceCalls(FilterMetrics.ServiceOperation.SAVE_GROUP).getCount());
+        Assert.assertEquals(0, metrics.getServiceCalls(FilterMetrics.ServiceOperation.INIT).getCount());
+    }
+
+    @Test
+    public void testServiceMonitor(){
+        FilterServiceMonitor monitor = new FilterServiceMonitor(filterService);
+        when(filterRepository.getVersion()).thenReturn(3L);
+        Assert.assertNull(monitor.getLoadedVersion());
+        Assert.assertTrue(monitor.refreshIfChanged());
+        Assert.assertEquals("3", monitor.getLoadedVersion());
+        Assert.assertTrue(monitor.getLastRefreshNanos() > 0);
+        Assert.assertFalse(monitor.isRefreshScheduled());
+        monitor.refresh();
+        verify(filterRepository, times(2)).getGroups();
+    }
+
+    @Test
+    public void testScheduledRefresh(){
+        when(filterRepository.getVersion()).thenReturn(null);
+        filterService.scheduleRefresh(10, TimeUnit.MILLISECONDS, 0.5);
+        try {
+            verify(filterRepository, timeout(5000).atLeast(2)).getGroups();
+        } finally {
+            filterService.cancelScheduledRefresh();
+        }
+    }
+
+    @Test
+    public void testCloseShutsDownDefaultExecutor(){
+        filterService.scheduleRefresh(1, TimeUnit.HOURS, 0);
+        filterService.close();
+        Assert.assertFalse(filterService.isRefreshScheduled());
+        try {
+            filterService.refreshAsync().join();
+            Assert.fail("The default executor should have been shut down");
+        } catch (RejectedExecutionException e) {
+            // Expected, the executor rejects the task before a future is returned
+        }
+    }
+
+    @Test
+    public void testCloseLeavesSuppliedExecutor(){
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (FilterService service = new ServiceBuilder(propertyFilter)
+                .withRepository(filterRepository)
+                .addPackageToScan("uk.co.agware.filter.test")
+                .withExecutor(executor)
+                .build()) {
+            service.refreshAsync().join();
+        } finally {
+            Assert.assertFalse(executor.isShutdown());
+            executor.shutdown();
+        }
+    }
+
     @Test
     public void testAddNewAccess(){
         // When init is called, the service will get an access list with an additional access object over the test group
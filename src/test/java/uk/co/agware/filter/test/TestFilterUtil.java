@@ -8,17 +8,21 @@ import uk.co.agware.filter.data.AccessType;
 import uk.co.agware.filter.data.Access;
 import uk.co.agware.filter.data.PermissionType;
 import uk.co.agware.filter.exceptions.FilterException;
+import uk.co.agware.filter.exceptions.MissingPermissionException;
 import uk.co.agware.filter.impl.AccessImpl;
 import uk.co.agware.filter.impl.DefaultClassFactory;
 import uk.co.agware.filter.impl.PermissionImpl;
 import uk.co.agware.filter.test.classes.*;
 import uk.co.agware.filter.util.FilterUtil;
+import uk.co.agware.filter.util.KeyedRateLimitedLog;
+import uk.co.agware.filter.util.RateLimitedLog;
 
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by Philip Ward <Philip.Ward@agware.com> on 10/04/2016.
@@ -129,6 +133,46 @@ public class TestFilterUtil {
         Assert.assertNull(filterUtil.isFieldWritable("notARealFiled", readWriteAccessTest));
     }
 
+    @Test
+    public void testFindPermission(){
+        Assert.assertEquals(PermissionType.READ, filterUtil.findPermission("testString", readWriteAccessTest).getPermission());
+        Assert.assertNull(filterUtil.findPermission("notARealFiled", readWriteAccessTest));
+    }
+
+    @Test
+    public void testMissingPermissionHasNoStackTrace(){
+        try {
+            filterUtil.isFieldReadable("notARealFiled", readWriteAccessTest);
+            Assert.fail("Expected an exception for the missing permission");
+        }
+        catch (MissingPermissionException e){
+            Assert.assertEquals(0, e.getStackTrace().length);
+            Assert.assertEquals("No permission defined for field notARealFiled on object TestClass", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testRateLimitedLog(){
+        RateLimitedLog log = new RateLimitedLog(1, TimeUnit.HOURS);
+        Assert.assertTrue(log.tryAcquire());
+        Assert.assertFalse(log.tryAcquire());
+        Assert.assertFalse(log.tryAcquire());
+        Assert.assertEquals(2, log.drainSuppressed());
+        Assert.assertEquals(0, log.drainSuppressed());
+    }
+
+    @Test
+    public void testKeyedRateLimitedLog(){
+        KeyedRateLimitedLog logs = new KeyedRateLimitedLog(1, TimeUnit.HOURS, 2);
+        Assert.assertTrue(logs.forKey("A#id").tryAcquire());
+        Assert.assertTrue(logs.forKey("B#id").tryAcquire());
+        Assert.assertFalse(logs.forKey("A#id").tryAcquire());
+        Assert.assertSame(logs.forKey("A#id"), logs.forKey("A#id"));
+        // New keys past the limit share a log
+        Assert.assertTrue(logs.forKey("C#id").tryAcquire());
+        Assert.assertFalse(logs.forKey("D#id").tryAcquire());
+    }
+
     @Test
     public void testGetAllFieldsFromClass(){
         Set<Field> fields = filterUtil.getAllFields(TestClass.class);
@@ -141,6 +185,20 @@ public class TestFilterUtil {
         Assert.assertTrue(fields.size() == 4);
     }
 
+    @Test
+    public void testGetAllFieldsIsCached(){
+        Set<Field> fields = filterUtil.getAllFields(TestClass.class);
+        Assert.assertSame(fields, filterUtil.getAllFields(new TestClass()));
+        Assert.assertEquals(1, filterUtil.getFieldCacheMisses());
+        Assert.assertEquals(1, filterUtil.getFieldCacheHits());
+        Assert.assertEquals(1, filterUtil.getFieldCacheSize());
+
+        filterUtil.clearFieldCache();
+        Assert.assertEquals(0, filterUtil.getFieldCacheSize());
+        Assert.assertEquals(fields, filterUtil.getAllFields(TestClass.class));
+        Assert.assertEquals(2, filterUtil.getFieldCacheMisses());
+    }
+
     @Test
     public void testGetAllClasses(){
         List<Class<?>> classes = filterUtil.getAllClasses("uk.co.agware.filter.test.classes");
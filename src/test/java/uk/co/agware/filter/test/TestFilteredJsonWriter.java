@@ -0,0 +1,202 @@
+package uk.co.agware.filter.test;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import uk.co.agware.filter.PropertyFilter;
+import uk.co.agware.filter.PropertyFilterBuilder;
+import uk.co.agware.filter.audit.DenialAuditor;
+import uk.co.agware.filter.audit.DenialEvent;
+import uk.co.agware.filter.data.AccessType;
+import uk.co.agware.filter.data.PermissionType;
+import uk.co.agware.filter.impl.AccessImpl;
+import uk.co.agware.filter.impl.DefaultClassFactory;
+import uk.co.agware.filter.impl.GroupImpl;
+import uk.co.agware.filter.json.FilteredJsonWriter;
+import uk.co.agware.filter.metrics.FilterMetrics;
+import uk.co.agware.filter.test.classes.SecondTestClass;
+import uk.co.agware.filter.test.classes.TestClass;
+import uk.co.agware.filter.test.json.Folder;
+import uk.co.agware.filter.test.json.Node;
+import uk.co.agware.filter.test.relations.Address;
+import uk.co.agware.filter.test.relations.Customer;
+import uk.co.agware.filter.util.FilterUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestFilteredJsonWriter {
+
+    private FilterUtil filterUtil;
+    private TestClass testClass;
+    private String username = "test";
+    private String groupName = "Test Group";
+
+    @Before
+    public void setUp(){
+        filterUtil = new FilterUtil(new DefaultClassFactory());
+        testClass = new TestClass("Test \"String\"", BigDecimal.valueOf(37), Arrays.asList("First", "Second"),
+                Arrays.asList(new SecondTestClass("Second Test", 2, "Secret 1"), new SecondTestClass("Second Test 2", null, "Secret 2")));
+    }
+
+    private PropertyFilter buildFilter(PropertyFilterBuilder builder, AccessType accessType, PermissionType permissionType){
+        PropertyFilter propertyFilter = builder.filterUtil(filterUtil).build();
+        filterUtil.setDefaultAccessType(accessType);
+        filterUtil.setDefaultPermissionType(permissionType);
+        List<AccessImpl> accessList = filterUtil.getFullAccessList("uk.co.agware.filter.test.classes");
+        GroupImpl group = new GroupImpl();
+        group.setName(groupName);
+        group.setAccess(accessList);
+        group.setMembers(Collections.singletonList(username));
+        propertyFilter.setGroups(Collections.singletonList(group));
+        return propertyFilter;
+    }
+
+    @Test
+    public void testWriteReadAccess(){
+        PropertyFilter propertyFilter = buildFilter(new PropertyFilterBuilder(), AccessType.READ, PermissionType.READ);
+        String json = new FilteredJsonWriter(propertyFilter).writeToString(testClass, username, groupName);
+        Assert.assertEquals("{\"id\":\"Test \\\"String\\\"\"," +
+                "\"secondTestClasses\":[{\"id\":\"Second Test\",\"number\":2},{\"id\":\"Second Test 2\",\"number\":null}]," +
+                "\"stringList\":[\"First\",\"Second\"]," +
+                "\"testBD\":37}", json);
+    }
+
+    @Test
+    public void testWriteNoPermission(){
+        PropertyFilter propertyFilter = buildFilter(new PropertyFilterBuilder(), AccessType.READ, PermissionType.NO_ACCESS);
+        String json = new FilteredJsonWriter(propertyFilter).writeToString(testClass, username, groupName);
+        Assert.assertEquals("{\"id\":\"Test \\\"String\\\"\"}", json); // Only the ReadOnly id field is visible
+    }
+
+    @Test
+    public void testWriteNoAccess(){
+        PropertyFilter propertyFilter = buildFilter(new PropertyFilterBuilder(), AccessType.NO_ACCESS, PermissionType.READ);
+        FilteredJsonWriter writer = new FilteredJsonWriter(propertyFilter);
+        Assert.assertEquals("null", writer.writeToString(testClass, username, groupName));
+        // The SecondTestClass values are ReadOnly so are still visible in a collection
+        Assert.assertEquals("[{\"id\":\"Second Test\",\"number\":2},{\"id\":\"Second Test 2\",\"number\":null}]",
+                writer.writeToString(testClass.getSecondTestClasses(), username, groupName));
+        Assert.assertEquals("[]", writer.writeToString(Collections.singletonList(testClass), username, groupName));
+    }
+
+    /* Without filtering collections the NoAccess secret field is written out as well */
+    @Test
+    public void testWriteIgnoreFilterCollection() throws IOException {
+        PropertyFilter propertyFilter = buildFilter(new PropertyFilterBuilder().filterCollectionsOnLoad(false), AccessType.READ, PermissionType.READ);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new FilteredJsonWriter(propertyFilter).write(testClass.getSecondTestClasses().get(0), username, groupName, out);
+        Assert.assertEquals("{\"id\":\"Second Test\",\"number\":2}", new String(out.toByteArray(), StandardCharsets.UTF_8));
+
+        String json = new FilteredJsonWriter(propertyFilter).writeToString(testClass, username, groupName);
+        Assert.assertTrue(json.contains("\"secret\":\"Secret 1\""));
+    }
+
+    /* NoAccess fields of entities held in maps and arrays are left out, as they are by parseObjectForReturn */
+    @Test
+    public void testWriteMapsAndArrays(){
+        PropertyFilter propertyFilter = new PropertyFilterBuilder().filterUtil(filterUtil).build();
+        filterUtil.setDefaultAccessType(AccessType.READ);
+        filterUtil.setDefaultPermissionType(PermissionType.READ);
+        GroupImpl group = new GroupImpl();
+        group.setName(groupName);
+        group.setAccess(filterUtil.getFullAccessList("uk.co.agware.filter.test.relations"));
+        group.setMembers(Collections.singletonList(username));
+        propertyFilter.setGroups(Collections.singletonList(group));
+
+        Customer customer = new Customer("1", "Customer", new Address("Current", "Secret 1"));
+        customer.setVisits(new long[]{1, 2});
+        customer.setPreviousAddresses(new Address[]{new Address("Previous", "Secret 2"), null});
+        Map<String, Address> addressBook = new LinkedHashMap<>();
+        addressBook.put("work", new Address("Work", "Secret 3"));
+        addressBook.put("old", null);
+        customer.setAddressBook(addressBook);
+
+        String json = new FilteredJsonWriter(propertyFilter).writeToString(customer, username, groupName);
+        Assert.assertFalse(json.contains("Secret"));
+        Assert.assertEquals("{\"address\":{\"street\":\"Current\"}," +
+                "\"addressBook\":{\"work\":{\"street\":\"Work\"},\"old\":null}," +
+                "\"id\":\"1\",\"name\":\"Customer\"," +
+                "\"previousAddresses\":[{\"street\":\"Previous\"}]," +
+                "\"visits\":[1,2]}", json);
+    }
+
+    @Test
+    public void testWriteSqlDates(){
+        PropertyFilter propertyFilter = buildFilter(new PropertyFilterBuilder().addIgnoredClass(java.sql.Date.class).addIgnoredClass(java.sql.Time.class),
+                AccessType.READ, PermissionType.READ);
+        FilteredJsonWriter writer = new FilteredJsonWriter(propertyFilter);
+        Assert.assertEquals("[\"2020-01-02\",\"10:15:30\"]", writer.writeToString(
+                Arrays.asList(java.sql.Date.valueOf("2020-01-02"), java.sql.Time.valueOf("10:15:30")), username, groupName));
+    }
+
+    /* Both sides of a relation that isn't filtered point at each other, the back reference is written as null */
+    @Test
+    public void testWriteCyclicRelation(){
+        PropertyFilter propertyFilter = new PropertyFilterBuilder().filterUtil(filterUtil).build();
+        filterUtil.setDefaultAccessType(AccessType.READ);
+        filterUtil.setDefaultPermissionType(PermissionType.READ);
+        GroupImpl group = new GroupImpl();
+        group.setName(groupName);
+        group.setAccess(filterUtil.getFullAccessList("uk.co.agware.filter.test.json"));
+        propertyFilter.setGroups(Collections.singletonList(group));
+
+        Node root = new Node("Root");
+        Node child = new Node("Child");
+        root.setChild(child);
+        child.setParent(root);
+
+        String json = new FilteredJsonWriter(propertyFilter).writeToString(new Folder("Folder", root), username, groupName);
+        // The properties of beans that aren't filtered are in no particular order
+        Assert.assertTrue(json.startsWith("{\"name\":\"Folder\",\"root\":{"));
+        Assert.assertTrue(json.contains("\"name\":\"Child\""));
+        Assert.assertEquals(json.indexOf("Root"), json.lastIndexOf("Root"));
+        Assert.assertEquals(2, json.split("\"parent\":null", -1).length - 1);
+    }
+
+    @Test
+    public void testWriteRecordsDenials() throws InterruptedException {
+        BlockingQueue<DenialEvent> events = new LinkedBlockingQueue<>();
+        AtomicInteger deniedFields = new AtomicInteger();
+        FilterMetrics metrics = new FilterMetrics() {
+            @Override
+            public void recordFilter(FilterOperation operation, Class<?> clazz, String groupName, long durationNanos, int maxDepth, int fieldsCopied, int objectsInstantiated, int denied) {
+                deniedFields.addAndGet(denied);
+            }
+        };
+        filterUtil.setDefaultAccessType(AccessType.READ);
+        filterUtil.setDefaultPermissionType(PermissionType.READ);
+        try (DenialAuditor auditor = new DenialAuditor(64, events::add, 1, TimeUnit.MILLISECONDS)) {
+            PropertyFilter propertyFilter = new PropertyFilterBuilder()
+                    .filterUtil(filterUtil)
+                    .denialAuditor(auditor)
+                    .metrics(metrics)
+                    .build();
+            GroupImpl group = new GroupImpl();
+            group.setName(groupName);
+            group.setAccess(filterUtil.getFullAccessList("uk.co.agware.filter.test.relations"));
+            propertyFilter.setGroups(Collections.singletonList(group));
+
+            String json = new FilteredJsonWriter(propertyFilter).writeToString(new Address("Street", "Notes"), username, groupName);
+            Assert.assertEquals("{\"street\":\"Street\"}", json);
+            DenialEvent event = events.poll(5, TimeUnit.SECONDS);
+            Assert.assertNotNull(event);
+            Assert.assertEquals(username, event.getUsername());
+            Assert.assertEquals(Address.class.getName(), event.getClassName());
+            Assert.assertEquals("notes", event.getFieldName());
+            Assert.assertEquals(DenialEvent.Direction.READ, event.getDirection());
+            Assert.assertEquals(1, deniedFields.get());
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package uk.co.agware.filter.test;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import uk.co.agware.filter.projection.JpaProjection;
+import uk.co.agware.filter.test.relations.Customer;
+
+import javax.persistence.criteria.Join;
+import javax.persistence.criteria.JoinType;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Root;
+import javax.persistence.criteria.Selection;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+public class TestJpaProjection extends Mockito {
+
+    private Root<?> root;
+    private Join<?, ?> addressJoin;
+    private Path<?> idPath;
+    private Path<?> namePath;
+    private Path<?> streetPath;
+
+    @Before
+    public void setUp(){
+        root = mock(Root.class);
+        addressJoin = mock(Join.class);
+        idPath = mock(Path.class);
+        namePath = mock(Path.class);
+        streetPath = mock(Path.class);
+        doReturn(Customer.class).when(root).getJavaType();
+        doReturn(idPath).when(root).get("id");
+        doReturn(namePath).when(root).get("name");
+        doReturn(addressJoin).when(root).join("address", JoinType.LEFT);
+        doReturn(streetPath).when(addressJoin).get("street");
+    }
+
+    @Test
+    public void testGetSelections(){
+        List<Selection<?>> selections = JpaProjection.getSelections(root, new LinkedHashSet<>(Arrays.asList("id", "name")));
+        Assert.assertEquals(Arrays.asList(idPath, namePath), selections);
+        verify(root, never()).join(anyString(), any(JoinType.class));
+    }
+
+    /* Collections and maps can't be part of a tuple so are left out */
+    @Test
+    public void testGetSelectionsSkipsCollections(){
+        List<Selection<?>> selections = JpaProjection.getSelections(root, new LinkedHashSet<>(Arrays.asList("id", "addressBook")));
+        Assert.assertEquals(Arrays.asList(idPath), selections);
+    }
+
+    /* Relations are left joined once, an implicit inner join would drop customers without an address */
+    @Test
+    public void testGetSelectionsLeftJoinsRelations(){
+        List<Selection<?>> selections = JpaProjection.getSelections(root, new LinkedHashSet<>(Arrays.asList("name", "address.street", "address.notes")));
+        verify(root).join("address", JoinType.LEFT);
+        verify(root, never()).get("address");
+        verify(addressJoin).get("notes");
+        Assert.assertEquals(3, selections.size());
+        Assert.assertSame(namePath, selections.get(0));
+        Assert.assertSame(streetPath, selections.get(1));
+    }
+}
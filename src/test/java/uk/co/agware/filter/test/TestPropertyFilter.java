@@ -3,20 +3,33 @@ package uk.co.agware.filter.test;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import uk.co.agware.filter.FilterStats;
 import uk.co.agware.filter.PropertyFilter;
 import uk.co.agware.filter.PropertyFilterBuilder;
+import uk.co.agware.filter.cache.SnapshotCache;
 import uk.co.agware.filter.data.*;
 import uk.co.agware.filter.exceptions.PropertyFilterException;
 import uk.co.agware.filter.impl.AccessImpl;
 import uk.co.agware.filter.impl.DefaultClassFactory;
 import uk.co.agware.filter.impl.GroupImpl;
+import uk.co.agware.filter.jmx.PropertyFilterMonitor;
+import uk.co.agware.filter.projection.SqlProjection;
 import uk.co.agware.filter.test.classes.*;
 import uk.co.agware.filter.util.FilterUtil;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by Philip Ward <Philip.Ward@agware.com> on 9/04/2016.
@@ -184,4 +197,215 @@ public class TestPropertyFilter {
         Assert.assertTrue(members.contains("MEMBER 3"));
         Assert.assertTrue(members.contains("MEMBER 4"));
     }
+
+    @Test
+    public void testIdenticalAccessIsSharedBetweenGroups(){
+        GroupImpl group1 = new GroupImpl();
+        group1.setName("Group 1");
+        group1.setAccess(filterUtil.getFullAccessList("uk.co.agware.filter.test.classes"));
+        GroupImpl group2 = new GroupImpl();
+        group2.setName("Group 2");
+        group2.setAccess(filterUtil.getFullAccessList("uk.co.agware.filter.test.classes"));
+        propertyFilter.setGroups(Arrays.asList(group1, group2));
+
+        Access<? extends Permission> access1 = propertyFilter.getAccessForGroup(TestClass.class.getName(), "Group 1");
+        Access<? extends Permission> access2 = propertyFilter.getAccessForGroup(TestClass.class.getName(), "Group 2");
+        Assert.assertEquals(access1, access2); // Shared inside the filter, callers are given the objects they passed in
+        Assert.assertNotSame(access1, access2);
+        Assert.assertSame(group1.getAccess().get(0), propertyFilter.getAccessForGroup(group1.getAccess().get(0).getObjectClass(), "Group 1"));
+
+        // Changing one group's settings should stop it sharing with the other
+        group2.getAccess().forEach(a -> a.setAccess(AccessType.UPDATE));
+        propertyFilter.setGroups(Arrays.asList(group1, group2));
+        access1 = propertyFilter.getAccessForGroup(TestClass.class.getName(), "Group 1");
+        access2 = propertyFilter.getAccessForGroup(TestClass.class.getName(), "Group 2");
+        Assert.assertNotSame(access1, access2);
+        Assert.assertEquals(AccessType.NO_ACCESS, access1.getAccess());
+        Assert.assertEquals(AccessType.UPDATE, access2.getAccess());
+        Assert.assertEquals(access1.getPermissions().get(0), access2.getPermissions().get(0));
+    }
+
+    @Test
+    public void testGetReadableProperties(){
+        filterUtil.setDefaultAccessType(AccessType.READ);
+        filterUtil.setDefaultPermissionType(PermissionType.READ);
+        GroupImpl group = new GroupImpl();
+        group.setName(groupName);
+        group.setAccess(filterUtil.getFullAccessList("uk.co.agware.filter.test.classes"));
+        propertyFilter.setGroups(Collections.singletonList(group));
+
+        Set<String> properties = propertyFilter.getReadableProperties(TestClass.class, groupName);
+        Assert.assertEquals(new TreeSet<>(Arrays.asList("id", "secondTestClasses", "secondTestClasses.id", "secondTestClasses.number", "stringList", "testBD")), properties);
+        Assert.assertEquals("t.id, t.test_bd", SqlProjection.getSelectList(TestClass.class, properties, "t", SqlProjection.SNAKE_CASE));
+
+        // Without filtering collections the whole collection is returned
+        PropertyFilter unfiltered = new PropertyFilterBuilder().filterUtil(filterUtil).filterCollectionsOnLoad(false).build();
+        unfiltered.setGroups(Collections.singletonList(group));
+        Assert.assertEquals(new TreeSet<>(Arrays.asList("id", "secondTestClasses", "stringList", "testBD")), unfiltered.getReadableProperties(TestClass.class, groupName));
+    }
+
+    @Test
+    public void testGetReadablePropertiesNoAccess(){
+        // Set up with no access by default, only the ReadOnly id field is visible
+        Assert.assertTrue(propertyFilter.getReadableProperties(TestClass.class, groupName).isEmpty());
+        Assert.assertEquals(Collections.singleton("id"), propertyFilter.getReadableProperties(SecondTestClass.class, groupName));
+    }
+
+    @Test
+    public void testStats(){
+        FilterStats stats = propertyFilter.getStats();
+        Assert.assertEquals(1, stats.getRefreshCount());
+        Assert.assertEquals(1, stats.getSnapshotVersion());
+        Assert.assertEquals(1, stats.getWriteLocks());
+        Assert.assertTrue(stats.getSnapshotAgeMillis() >= 0);
+
+        propertyFilter.setGroups(Collections.emptyList());
+        stats = propertyFilter.getStats();
+        Assert.assertEquals(2, stats.getRefreshCount());
+        Assert.assertEquals(2, stats.getSnapshotVersion());
+        Assert.assertTrue(stats.getMaxWriteLockHoldNanos() >= stats.getLastWriteLockHoldNanos());
+
+        // Nothing set yet
+        stats = new PropertyFilterBuilder().build().getStats();
+        Assert.assertEquals(0, stats.getSnapshotVersion());
+        Assert.assertEquals(-1, stats.getSnapshotAgeMillis());
+    }
+
+    @Test
+    public void testSuppliedAccessIsReturned(){
+        GroupImpl first = new GroupImpl();
+        first.setName("First");
+        first.setAccess(filterUtil.getFullAccessList("uk.co.agware.filter.test.classes"));
+        GroupImpl second = new GroupImpl();
+        second.setName("Second");
+        second.setAccess(filterUtil.getFullAccessList("uk.co.agware.filter.test.classes"));
+        propertyFilter.setGroups(Arrays.asList(first, second));
+
+        // Callers get back what they passed in, so entity state such as an id is kept
+        String className = SecondTestClass.class.getName();
+        Access<? extends Permission> access = propertyFilter.getAccessForGroup(className, "First");
+        AccessImpl supplied = first.getAccess().stream().filter(a -> a.getObjectClass().equals(className)).findFirst().get();
+        Assert.assertSame(supplied, access);
+        Assert.assertSame(supplied, propertyFilter.getGroup("First").get(className));
+
+        // The filter works from its own copies, so changing the returned objects doesn't change either group
+        access.setAccess(AccessType.NO_ACCESS);
+        Assert.assertEquals(Collections.singleton("id"), propertyFilter.getReadableProperties(SecondTestClass.class, "First"));
+        Assert.assertEquals(Collections.singleton("id"), propertyFilter.getReadableProperties(SecondTestClass.class, "Second"));
+        Assert.assertEquals(AccessType.READ, propertyFilter.getAccessForGroup(className, "Second").getAccess());
+    }
+
+    /* A class factory may hand back copies with permission lists that can't be changed */
+    @Test
+    public void testSetGroupsWithUnmodifiablePermissions(){
+        FilterUtil unmodifiableUtil = new FilterUtil(new DefaultClassFactory(){
+            @Override
+            public AccessImpl copyAccessClass(AccessImpl old) {
+                AccessImpl copy = super.copyAccessClass(old);
+                copy.setPermissions(Collections.unmodifiableList(copy.getPermissions()));
+                return copy;
+            }
+        });
+        PropertyFilter filter = new PropertyFilterBuilder().filterUtil(unmodifiableUtil).build();
+        GroupImpl group = new GroupImpl();
+        group.setName(groupName);
+        group.setAccess(unmodifiableUtil.getFullAccessList("uk.co.agware.filter.test.classes"));
+        filter.setGroups(Collections.singletonList(group));
+        Assert.assertEquals(Collections.singleton("id"), filter.getReadableProperties(SecondTestClass.class, groupName));
+    }
+
+    @Test
+    public void testSnapshotVersion(){
+        Assert.assertEquals(1, propertyFilter.getSnapshotVersion());
+        propertyFilter.addUserToGroup("Another User", groupName);
+        Assert.assertEquals(2, propertyFilter.getSnapshotVersion());
+        Assert.assertEquals(groupName, propertyFilter.removeUserFromGroup("ANOTHER user"));
+        Assert.assertEquals(3, propertyFilter.getSnapshotVersion());
+        Assert.assertNull(propertyFilter.removeUserFromGroup("Another User"));
+        Assert.assertEquals(1, propertyFilter.getStats().getRefreshCount());
+    }
+
+    @Test
+    public void testRegisteredCacheIsInvalidatedByVersion(){
+        SnapshotCache<String, String> groups = new SnapshotCache<>("users");
+        propertyFilter.registerCache(groups);
+        Assert.assertTrue(propertyFilter.getCaches().contains(groups));
+
+        Assert.assertEquals(groupName, groups.get(username, propertyFilter.getSnapshotVersion(), propertyFilter::getUsersGroup));
+        Assert.assertEquals(groupName, groups.get(username, propertyFilter.getSnapshotVersion(), u -> "Not loaded"));
+        Assert.assertEquals(1, groups.getHits());
+
+        // Changing the mappings moves the version on, so the old value is worked out again
+        propertyFilter.addUserToGroup(username, "Other Group");
+        Assert.assertEquals("Other Group", groups.get(username, propertyFilter.getSnapshotVersion(), propertyFilter::getUsersGroup));
+        Assert.assertEquals(2, groups.getMisses());
+        Assert.assertTrue(new PropertyFilterMonitor(propertyFilter).describeCaches().contains("users size=1 hits=1 misses=2 hitRate=0.333"));
+
+        propertyFilter.clearCaches();
+        Assert.assertEquals(0, groups.size());
+        Assert.assertTrue(propertyFilter.unregisterCache(groups));
+    }
+
+    @Test
+    public void testStatsMBean() throws Exception {
+        ObjectName name = PropertyFilterMonitor.register(propertyFilter, "test");
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            Assert.assertEquals(1L, server.getAttribute(name, "RefreshCount"));
+            propertyFilter.setGroups(Collections.emptyList());
+            Assert.assertEquals(2L, server.getAttribute(name, "SnapshotVersion"));
+            Assert.assertEquals(0, server.getAttribute(name, "GroupCount"));
+        } finally {
+            PropertyFilterMonitor.unregister(name);
+        }
+        Assert.assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+
+    @Test
+    public void testMonitorOperations(){
+        PropertyFilterMonitor monitor = new PropertyFilterMonitor(propertyFilter);
+        Assert.assertEquals(1, monitor.getGroupCount());
+        Assert.assertEquals(1, monitor.getUserMappingCount());
+        Assert.assertTrue(monitor.getLastRefreshNanos() > 0);
+
+        List<String> dump = monitor.dumpGroup(groupName);
+        Assert.assertEquals(5, dump.size());
+        Assert.assertTrue(dump.contains(SecondTestClass.class.getName() + " READ {id=READ, number=NO_ACCESS, secret=NO_ACCESS}"));
+
+        propertyFilter.getReadableProperties(TestClass.class, groupName);
+        Assert.assertTrue(monitor.getFieldCacheSize() > 0);
+        monitor.clearCaches();
+        Assert.assertEquals(0, monitor.getFieldCacheSize());
+    }
+
+    /* Readers looping on the group lock mustn't keep a writer from getting through */
+    @Test(timeout = 30000)
+    public void testWriterIsNotStarvedByReaders() throws InterruptedException {
+        AtomicBoolean running = new AtomicBoolean(true);
+        CountDownLatch started = new CountDownLatch(4);
+        List<Thread> readers = new ArrayList<>();
+        for(int i = 0; i < 4; i++){
+            Thread reader = new Thread(() -> {
+                started.countDown();
+                while(running.get()){
+                    propertyFilter.getUsersGroup(username);
+                }
+            });
+            reader.setDaemon(true);
+            reader.start();
+            readers.add(reader);
+        }
+        try {
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+            for(int i = 0; i < 100; i++){
+                propertyFilter.addUserToGroup("User " + i, groupName);
+            }
+            Assert.assertEquals(groupName, propertyFilter.getUsersGroup("User 99"));
+        } finally {
+            running.set(false);
+            for(Thread reader : readers){
+                reader.join();
+            }
+        }
+    }
 }
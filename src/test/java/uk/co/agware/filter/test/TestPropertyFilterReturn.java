@@ -3,25 +3,45 @@ package uk.co.agware.filter.test;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.Mockito;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import uk.co.agware.filter.ArrayPolicy;
+import uk.co.agware.filter.MissingPermissionPolicy;
 import uk.co.agware.filter.PropertyFilter;
 import uk.co.agware.filter.PropertyFilterBuilder;
+import uk.co.agware.filter.cache.FilterCache;
 import uk.co.agware.filter.data.AccessType;
 import uk.co.agware.filter.data.PermissionType;
 import uk.co.agware.filter.exceptions.FilterException;
 import uk.co.agware.filter.exceptions.GroupNotFoundException;
+import uk.co.agware.filter.exceptions.MissingPermissionException;
 import uk.co.agware.filter.exceptions.PropertyFilterException;
 import uk.co.agware.filter.impl.AccessImpl;
 import uk.co.agware.filter.impl.DefaultClassFactory;
 import uk.co.agware.filter.impl.GroupImpl;
 import uk.co.agware.filter.test.classes.SecondTestClass;
 import uk.co.agware.filter.test.classes.TestClass;
+import uk.co.agware.filter.test.relations.Address;
+import uk.co.agware.filter.test.relations.Country;
+import uk.co.agware.filter.test.relations.Customer;
+import uk.co.agware.filter.test.relations.AddressView;
+import uk.co.agware.filter.test.relations.CustomerView;
 import uk.co.agware.filter.util.FilterUtil;
 
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 /**
  * Created by Philip Ward <Philip.Ward@agware.com> on 10/04/2016.
@@ -197,4 +217,412 @@ public class TestPropertyFilterReturn {
         Assert.assertNotNull(result.getSecondTestClasses().get(1));
         Assert.assertNotNull(result.getSecondTestClasses().get(2));
     }
+
+    @Test
+    public void testStreamForReturn() {
+        propertyFilter = new PropertyFilterBuilder().filterUtil(filterUtil).build();
+        filterUtil.setDefaultAccessType(AccessType.READ);
+        filterUtil.setDefaultPermissionType(PermissionType.READ);
+        List<AccessImpl> accessList = filterUtil.getFullAccessList("uk.co.agware.filter.test.classes");
+        GroupImpl group = new GroupImpl();
+        group.setName(groupName);
+        group.setAccess(accessList);
+        group.setMembers(Collections.singletonList(username));
+        propertyFilter.setGroups(Collections.singletonList(group));
+
+        List<SecondTestClass> result = propertyFilter.handleStreamForReturn(testClass.getSecondTestClasses().stream(), username, groupName)
+                                                     .collect(Collectors.toList());
+        Assert.assertEquals(3, result.size());
+        Assert.assertEquals(secondTestClass1, result.get(0));
+        Assert.assertNotSame(secondTestClass1, result.get(0));
+        Assert.assertNull(result.get(0).getSecret()); // NoAccess field
+        Assert.assertEquals(secondTestInt1, result.get(0).getNumber());
+    }
+
+    @Test
+    public void testIteratorForReturnIsLazy() {
+        propertyFilter = new PropertyFilterBuilder().filterUtil(filterUtil).build();
+        filterUtil.setDefaultAccessType(AccessType.NO_ACCESS);
+        filterUtil.setDefaultPermissionType(PermissionType.READ);
+        List<AccessImpl> accessList = filterUtil.getFullAccessList("uk.co.agware.filter.test.classes");
+        GroupImpl group = new GroupImpl();
+        group.setName(groupName);
+        group.setAccess(accessList);
+        group.setMembers(Collections.singletonList(username));
+        propertyFilter.setGroups(Collections.singletonList(group));
+
+        // TestClass has no access so should be skipped, SecondTestClass is ReadOnly so should be returned
+        AtomicInteger pulled = new AtomicInteger();
+        Iterator<Object> source = Arrays.<Object>asList(testClass, secondTestClass1, testClass, secondTestClass2).stream()
+                                        .peek(o -> pulled.incrementAndGet())
+                                        .iterator();
+        Iterator<Object> result = propertyFilter.handleIteratorForReturn(source, username, groupName);
+        Assert.assertEquals(0, pulled.get());
+        Assert.assertTrue(result.hasNext());
+        Assert.assertEquals(secondTestClass1, result.next());
+        Assert.assertEquals(2, pulled.get());
+        Assert.assertEquals(secondTestClass2, result.next());
+        Assert.assertFalse(result.hasNext());
+    }
+
+    @Test
+    public void testPublisherForReturnHonoursDemand() {
+        propertyFilter = new PropertyFilterBuilder().filterUtil(filterUtil).build();
+        filterUtil.setDefaultAccessType(AccessType.NO_ACCESS);
+        filterUtil.setDefaultPermissionType(PermissionType.READ);
+        List<AccessImpl> accessList = filterUtil.getFullAccessList("uk.co.agware.filter.test.classes");
+        GroupImpl group = new GroupImpl();
+        group.setName(groupName);
+        group.setAccess(accessList);
+        group.setMembers(Collections.singletonList(username));
+        propertyFilter.setGroups(Collections.singletonList(group));
+
+        // Simple synchronous publisher over a list, emits only as much as has been requested
+        List<Object> values = Arrays.asList(testClass, secondTestClass1, testClass, testClass, secondTestClass2, secondTestClass3);
+        Publisher<Object> source = subscriber -> subscriber.onSubscribe(new Subscription() {
+            private int index = 0;
+            @Override
+            public void request(long n) {
+                for (long i = 0; i < n && index < values.size(); i++) {
+                    subscriber.onNext(values.get(index++));
+                }
+                if(index == values.size()) subscriber.onComplete();
+            }
+            @Override
+            public void cancel() {
+                index = values.size();
+            }
+        });
+
+        List<Object> received = new ArrayList<>();
+        AtomicInteger completed = new AtomicInteger();
+        Subscription[] subscription = new Subscription[1];
+        propertyFilter.handlePublisherForReturn(source, username).subscribe(new Subscriber<Object>() {
+            @Override
+            public void onSubscribe(Subscription s) {
+                subscription[0] = s;
+            }
+            @Override
+            public void onNext(Object o) {
+                received.add(o);
+            }
+            @Override
+            public void onError(Throwable t) {
+                Assert.fail(t.getMessage());
+            }
+            @Override
+            public void onComplete() {
+                completed.incrementAndGet();
+            }
+        });
+
+        subscription[0].request(1);
+        Assert.assertEquals(1, received.size());
+        Assert.assertEquals(secondTestClass1, received.get(0));
+        subscription[0].request(1); // Skips the two NO_ACCESS values
+        Assert.assertEquals(2, received.size());
+        Assert.assertEquals(secondTestClass2, received.get(1));
+        Assert.assertEquals(0, completed.get());
+        subscription[0].request(5);
+        Assert.assertEquals(3, received.size());
+        Assert.assertEquals(1, completed.get());
+    }
+
+    @Test
+    public void testArraysForReturn() throws IllegalAccessException, PropertyFilterException {
+        propertyFilter = new PropertyFilterBuilder()
+                .filterUtil(filterUtil)
+                .build();
+        filterUtil.setDefaultAccessType(AccessType.READ);
+        filterUtil.setDefaultPermissionType(PermissionType.READ);
+        List<AccessImpl> accessList = filterUtil.getFullAccessList("uk.co.agware.filter.test.relations");
+        GroupImpl group = new GroupImpl();
+        group.setName(groupName);
+        group.setAccess(accessList);
+        group.setMembers(Collections.singletonList(username));
+        propertyFilter.setGroups(Collections.singletonList(group));
+
+        Customer customer = new Customer("1", "Name", null);
+        customer.setVisits(new long[]{1L, 2L, 3L});
+        Address address1 = new Address("Street 1", "Notes 1");
+        Address address2 = new Address("Street 2", "Notes 2");
+        customer.setPreviousAddresses(new Address[]{address1, null, address2});
+
+        Customer result = propertyFilter.parseObjectForReturn(customer, username);
+
+        Assert.assertNotSame(customer.getVisits(), result.getVisits());
+        Assert.assertArrayEquals(customer.getVisits(), result.getVisits());
+        Assert.assertEquals(2, result.getPreviousAddresses().length);
+        Assert.assertNotSame(address1, result.getPreviousAddresses()[0]);
+        Assert.assertEquals("Street 1", result.getPreviousAddresses()[0].getStreet());
+        Assert.assertNull(result.getPreviousAddresses()[0].getNotes());
+        Assert.assertEquals("Street 2", result.getPreviousAddresses()[1].getStreet());
+    }
+
+    @Test
+    public void testSharedArraysForReturn() throws IllegalAccessException, PropertyFilterException {
+        propertyFilter = new PropertyFilterBuilder()
+                .filterUtil(filterUtil)
+                .arrayPolicy(ArrayPolicy.SHARE)
+                .build();
+        filterUtil.setDefaultAccessType(AccessType.READ);
+        filterUtil.setDefaultPermissionType(PermissionType.READ);
+        List<AccessImpl> accessList = filterUtil.getFullAccessList("uk.co.agware.filter.test.relations");
+        GroupImpl group = new GroupImpl();
+        group.setName(groupName);
+        group.setAccess(accessList);
+        group.setMembers(Collections.singletonList(username));
+        propertyFilter.setGroups(Collections.singletonList(group));
+
+        Customer customer = new Customer("1", "Name", null);
+        customer.setVisits(new long[]{1L, 2L, 3L});
+
+        Customer result = propertyFilter.parseObjectForReturn(customer, username);
+
+        Assert.assertSame(customer.getVisits(), result.getVisits());
+    }
+
+    @Test
+    public void testMapsForReturn() throws IllegalAccessException, PropertyFilterException {
+        propertyFilter = new PropertyFilterBuilder()
+                .filterUtil(filterUtil)
+                .build();
+        filterUtil.setDefaultAccessType(AccessType.READ);
+        filterUtil.setDefaultPermissionType(PermissionType.READ);
+        List<AccessImpl> accessList = filterUtil.getFullAccessList("uk.co.agware.filter.test.relations");
+        GroupImpl group = new GroupImpl();
+        group.setName(groupName);
+        group.setAccess(accessList);
+        group.setMembers(Collections.singletonList(username));
+        propertyFilter.setGroups(Collections.singletonList(group));
+
+        Map<String, Address> addressBook = new TreeMap<>(Comparator.reverseOrder());
+        addressBook.put("home", new Address("Street 1", "Notes 1"));
+        addressBook.put("work", new Address("Street 2", "Notes 2"));
+        addressBook.put("old", null);
+        Customer customer = new Customer("1", "Name", null);
+        customer.setAddressBook(addressBook);
+
+        Customer result = propertyFilter.parseObjectForReturn(customer, username);
+
+        Assert.assertTrue(result.getAddressBook() instanceof TreeMap);
+        Assert.assertNotSame(addressBook, result.getAddressBook());
+        Assert.assertEquals(Arrays.asList("work", "old", "home"), new ArrayList<>(result.getAddressBook().keySet()));
+        Assert.assertNull(result.getAddressBook().get("old"));
+        Assert.assertEquals("Street 1", result.getAddressBook().get("home").getStreet());
+        Assert.assertNull(result.getAddressBook().get("home").getNotes());
+    }
+
+    @Test
+    public void testReturnView() throws IllegalAccessException, PropertyFilterException {
+        propertyFilter = new PropertyFilterBuilder()
+                .filterUtil(filterUtil)
+                .build();
+        filterUtil.setDefaultAccessType(AccessType.READ);
+        filterUtil.setDefaultPermissionType(PermissionType.READ);
+        List<AccessImpl> accessList = filterUtil.getFullAccessList("uk.co.agware.filter.test.relations");
+        GroupImpl group = new GroupImpl();
+        group.setName(groupName);
+        group.setAccess(accessList);
+        group.setMembers(Collections.singletonList(username));
+        propertyFilter.setGroups(Collections.singletonList(group));
+
+        Customer customer = new Customer("1", "Name", new Address("Street 1", "Notes 1"));
+        Map<String, Address> addressBook = new HashMap<>();
+        addressBook.put("home", new Address("Street 2", "Notes 2"));
+        customer.setAddressBook(addressBook);
+
+        CustomerView view = propertyFilter.createReturnView(customer, CustomerView.class, username);
+
+        // Values are read from the original object when called
+        customer.setName("Changed");
+        Assert.assertEquals("Changed", view.getName());
+        Assert.assertEquals("Street 1", view.getAddress().getStreet());
+        Assert.assertNull(view.getAddress().getNotes());
+        Assert.assertSame(view.getAddress(), view.getAddress());
+        Assert.assertNotSame(addressBook, view.getAddressBook());
+        Assert.assertNull(view.getAddressBook().get("home").getNotes());
+        Assert.assertNull(view.getVisits());
+    }
+
+    /* Without filtering relations the address can't be returned as it is, it doesn't implement AddressView */
+    @Test
+    public void testReturnViewWithoutFilteringRelations() throws IllegalAccessException, PropertyFilterException {
+        propertyFilter = new PropertyFilterBuilder()
+                .filterUtil(filterUtil)
+                .filterRelationsOnLoad(false)
+                .build();
+        filterUtil.setDefaultAccessType(AccessType.READ);
+        filterUtil.setDefaultPermissionType(PermissionType.READ);
+        List<AccessImpl> accessList = filterUtil.getFullAccessList("uk.co.agware.filter.test.relations");
+        GroupImpl group = new GroupImpl();
+        group.setName(groupName);
+        group.setAccess(accessList);
+        group.setMembers(Collections.singletonList(username));
+        propertyFilter.setGroups(Collections.singletonList(group));
+
+        CustomerView view = propertyFilter.createReturnView(new Customer("1", "Name", new Address("Street 1", "Notes 1")), CustomerView.class, username);
+
+        AddressView address = view.getAddress();
+        Assert.assertEquals("Street 1", address.getStreet());
+        Assert.assertSame(address, view.getAddress());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testReturnViewOnlyAllowsGetters() throws IllegalAccessException, PropertyFilterException {
+        propertyFilter = new PropertyFilterBuilder()
+                .filterUtil(filterUtil)
+                .build();
+        filterUtil.setDefaultAccessType(AccessType.READ);
+        filterUtil.setDefaultPermissionType(PermissionType.READ);
+        List<AccessImpl> accessList = filterUtil.getFullAccessList("uk.co.agware.filter.test.relations");
+        GroupImpl group = new GroupImpl();
+        group.setName(groupName);
+        group.setAccess(accessList);
+        group.setMembers(Collections.singletonList(username));
+        propertyFilter.setGroups(Collections.singletonList(group));
+
+        CustomerView view = propertyFilter.createReturnView(new Customer("1", "Name", null), CustomerView.class, username);
+        view.setName("Changed");
+    }
+
+    @Test
+    public void testMissingPermissionPolicy() throws PropertyFilterException {
+        filterUtil.setDefaultAccessType(AccessType.READ);
+        filterUtil.setDefaultPermissionType(PermissionType.READ);
+        List<AccessImpl> accessList = filterUtil.getFullAccessList("uk.co.agware.filter.test.relations");
+        for(AccessImpl access : accessList){ // As though the street field was added after the group was saved
+            if(access.getObjectClass().equals(Address.class.getName())){
+                access.setPermissions(access.getPermissions().stream()
+                        .filter(p -> !p.getPropertyName().equals("street"))
+                        .collect(Collectors.toList()));
+            }
+        }
+        GroupImpl group = new GroupImpl();
+        group.setName(groupName);
+        group.setAccess(accessList);
+        group.setMembers(Collections.singletonList(username));
+        Address address = new Address("Street", "Notes");
+
+        propertyFilter = new PropertyFilterBuilder().filterUtil(filterUtil).build();
+        propertyFilter.setGroups(Collections.singletonList(group));
+        try {
+            propertyFilter.parseObjectForReturn(address, username);
+            Assert.fail("Expected the missing permission to fail");
+        }
+        catch (MissingPermissionException e){
+            Assert.assertTrue(e.getMessage().contains("street"));
+        }
+
+        propertyFilter = new PropertyFilterBuilder().filterUtil(filterUtil).missingPermissionPolicy(MissingPermissionPolicy.DENY).build();
+        propertyFilter.setGroups(Collections.singletonList(group));
+        Assert.assertNull(propertyFilter.parseObjectForReturn(address, username).getStreet());
+
+        propertyFilter = new PropertyFilterBuilder().filterUtil(filterUtil).missingPermissionPolicy(MissingPermissionPolicy.DEFAULT).build();
+        propertyFilter.setGroups(Collections.singletonList(group));
+        Assert.assertEquals("Street", propertyFilter.parseObjectForReturn(address, username).getStreet());
+        Assert.assertNull(propertyFilter.parseObjectForReturn(address, username).getNotes());
+    }
+
+    /* Whatever the policy, a missing permission is logged once when the plan is compiled rather than on each call */
+    @Test
+    public void testMissingPermissionIsLoggedOncePerPlan() throws PropertyFilterException {
+        FilterUtil spiedUtil = Mockito.spy(filterUtil);
+        spiedUtil.setDefaultAccessType(AccessType.READ);
+        spiedUtil.setDefaultPermissionType(PermissionType.READ);
+        List<AccessImpl> accessList = spiedUtil.getFullAccessList("uk.co.agware.filter.test.relations");
+        for(AccessImpl access : accessList){
+            if(access.getObjectClass().equals(Address.class.getName())){
+                access.setPermissions(access.getPermissions().stream()
+                        .filter(p -> !p.getPropertyName().equals("street"))
+                        .collect(Collectors.toList()));
+            }
+        }
+        GroupImpl group = new GroupImpl();
+        group.setName(groupName);
+        group.setAccess(accessList);
+        group.setMembers(Collections.singletonList(username));
+
+        for(MissingPermissionPolicy policy : MissingPermissionPolicy.values()){
+            Mockito.reset(spiedUtil);
+            propertyFilter = new PropertyFilterBuilder().filterUtil(spiedUtil).missingPermissionPolicy(policy).build();
+            propertyFilter.setGroups(Collections.singletonList(group));
+            for(int i = 0; i < 3; i++){
+                try {
+                    propertyFilter.parseObjectForReturn(new Address("Street", "Notes"), username);
+                }
+                catch (MissingPermissionException e){
+                    Assert.assertEquals(MissingPermissionPolicy.FAIL, policy);
+                }
+            }
+            Mockito.verify(spiedUtil, Mockito.times(1)).logMissingPermissions(Collections.singletonList("street"), group.getAccess().stream()
+                    .filter(a -> a.getObjectClass().equals(Address.class.getName())).findFirst().get());
+        }
+    }
+
+    @Test
+    public void testAccessPlansAreReused() throws PropertyFilterException {
+        propertyFilter = new PropertyFilterBuilder().filterUtil(filterUtil).build();
+        filterUtil.setDefaultAccessType(AccessType.READ);
+        filterUtil.setDefaultPermissionType(PermissionType.READ);
+        GroupImpl group = new GroupImpl();
+        group.setName(groupName);
+        group.setAccess(filterUtil.getFullAccessList("uk.co.agware.filter.test.relations"));
+        group.setMembers(Collections.singletonList(username));
+        propertyFilter.setGroups(Collections.singletonList(group));
+
+        propertyFilter.parseObjectForReturn(new Address("Street", "Notes"), username);
+        propertyFilter.parseObjectForReturn(new Address("Street", "Notes"), username);
+        FilterCache plans = propertyFilter.getPlanCache();
+        Assert.assertEquals(1, plans.size());
+        Assert.assertEquals(1, plans.getMisses());
+        Assert.assertEquals(1, plans.getHits());
+
+        // New groups need new plans, the old one is replaced when it is next used
+        propertyFilter.setGroups(Collections.singletonList(group));
+        Assert.assertEquals(1, plans.size());
+        propertyFilter.parseObjectForReturn(new Address("Street", "Notes"), username);
+        Assert.assertEquals(2, plans.getMisses());
+        Assert.assertEquals(1, plans.size());
+
+        // Plans of groups that have been removed are dropped straight away
+        group.setName("Renamed Group");
+        propertyFilter.setGroups(Collections.singletonList(group));
+        Assert.assertEquals(0, plans.size());
+    }
+
+    @Test
+    public void testCachedResultsAreReused() throws PropertyFilterException {
+        propertyFilter = new PropertyFilterBuilder().filterUtil(filterUtil).build();
+        filterUtil.setDefaultAccessType(AccessType.READ);
+        filterUtil.setDefaultPermissionType(PermissionType.READ);
+        List<AccessImpl> accessList = filterUtil.getFullAccessList("uk.co.agware.filter.test.relations");
+        GroupImpl group = new GroupImpl();
+        group.setName(groupName);
+        group.setAccess(accessList);
+        group.setMembers(Collections.singletonList(username));
+        GroupImpl otherGroup = new GroupImpl();
+        otherGroup.setName("Other Group");
+        otherGroup.setAccess(accessList);
+        otherGroup.setMembers(Collections.singletonList("other"));
+        propertyFilter.setGroups(Arrays.asList(group, otherGroup));
+
+        Country country = new Country("NZ", "New Zealand", "Notes");
+        Country first = propertyFilter.parseObjectForReturn(country, username);
+        Assert.assertEquals("New Zealand", first.getName());
+        Assert.assertNull(first.getNotes());
+        Assert.assertSame(first, propertyFilter.parseObjectForReturn(country, username));
+        Assert.assertSame(first, propertyFilter.parseObjectForReturn(new Country("NZ", "New Zealand", "Notes"), username)); // Same key
+        Assert.assertNotSame(first, propertyFilter.parseObjectForReturn(country, "other"));
+        Assert.assertEquals(2, propertyFilter.getResultCache().getHits());
+        Assert.assertEquals(1, propertyFilter.getResultCache().size());
+
+        // Uncached classes are always copied
+        Address address = new Address("Street", "Notes");
+        Assert.assertNotSame(propertyFilter.parseObjectForReturn(address, username), propertyFilter.parseObjectForReturn(address, username));
+
+        // Copies made with older groups are not returned
+        propertyFilter.setGroups(Arrays.asList(group, otherGroup));
+        Assert.assertNotSame(first, propertyFilter.parseObjectForReturn(country, username));
+    }
 }
@@ -3,6 +3,7 @@ package uk.co.agware.filter.test;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import uk.co.agware.filter.ChangeSet;
 import uk.co.agware.filter.PropertyFilter;
 import uk.co.agware.filter.PropertyFilterBuilder;
 import uk.co.agware.filter.data.AccessType;
@@ -15,13 +16,20 @@ import uk.co.agware.filter.impl.GroupImpl;
 import uk.co.agware.filter.test.classes.NoDefaultConstructor;
 import uk.co.agware.filter.test.classes.SecondTestClass;
 import uk.co.agware.filter.test.classes.TestClass;
+import uk.co.agware.filter.test.relations.Address;
+import uk.co.agware.filter.test.relations.Customer;
 import uk.co.agware.filter.util.FilterUtil;
 
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 
 /**
  * Created by Philip Ward <Philip.Ward@agware.com> on 10/04/2016.
@@ -348,4 +356,294 @@ public class TestPropertyFilterSave {
         Assert.assertTrue(tc.getSecondTestClasses().contains(stc2));
         Assert.assertTrue(tc.getSecondTestClasses().contains(stc3));
     }
+
+    @Test
+    public void testSaveChangesOnlyCopiesChangedValues() throws IllegalAccessException, PropertyFilterException {
+        PropertyFilter propertyFilter = new PropertyFilterBuilder()
+                .filterUtil(filterUtil)
+                .build();
+
+        filterUtil.setDefaultAccessType(AccessType.UPDATE);
+        filterUtil.setDefaultPermissionType(PermissionType.WRITE);
+        List<AccessImpl> accessList = filterUtil.getFullAccessList("uk.co.agware.filter.test.classes");
+        GroupImpl group = new GroupImpl();
+        group.setName(groupName);
+        group.setAccess(accessList);
+        group.setMembers(Collections.singletonList(username));
+        propertyFilter.setGroups(Collections.singletonList(group));
+
+        List<SecondTestClass> existingClasses = new ArrayList<>(3);
+        SecondTestClass existing1 = new SecondTestClass(secondTestId1, 99, secondTestSecret1);
+        existingClasses.add(existing1);
+        existingClasses.add(new SecondTestClass(secondTestId2, secondTestInt2, secondTestSecret2));
+        existingClasses.add(new SecondTestClass(secondTestId3, secondTestInt3, secondTestSecret3));
+        List<String> existingStrings = new ArrayList<>(Arrays.asList(listString1, listString2, listString3));
+        TestClass existing = new TestClass(testString1, testBD2, existingStrings, existingClasses);
+
+        Set<String> changes = propertyFilter.parseObjectForSavingChanges(testClass, existing, username);
+
+        // The second test class is read only, so only the decimal can change
+        Assert.assertEquals(Collections.singleton("testBD"), changes);
+        Assert.assertEquals(testBD1, existing.getTestBD());
+        Assert.assertSame(existingStrings, existing.getStringList());
+        Assert.assertSame(existing1, existing.getSecondTestClasses().get(0));
+        Assert.assertEquals(Integer.valueOf(99), existing1.getNumber());
+    }
+
+    @Test
+    public void testSaveChangesRecordsCollectionChanges() throws IllegalAccessException, PropertyFilterException {
+        PropertyFilter propertyFilter = new PropertyFilterBuilder()
+                .filterUtil(filterUtil)
+                .valueEquality((a, b) -> a instanceof BigDecimal && b instanceof BigDecimal
+                        ? ((BigDecimal) a).compareTo((BigDecimal) b) == 0
+                        : Objects.equals(a, b))
+                .build();
+
+        filterUtil.setDefaultAccessType(AccessType.UPDATE);
+        filterUtil.setDefaultPermissionType(PermissionType.WRITE);
+        List<AccessImpl> accessList = filterUtil.getFullAccessList("uk.co.agware.filter.test.classes");
+        GroupImpl group = new GroupImpl();
+        group.setName(groupName);
+        group.setAccess(accessList);
+        group.setMembers(Collections.singletonList(username));
+        propertyFilter.setGroups(Collections.singletonList(group));
+
+        TestClass existing = new TestClass(testString1, new BigDecimal("37.00"), new ArrayList<>(Arrays.asList(listString1, listString2)), null);
+
+        Set<String> changes = propertyFilter.parseObjectForSavingChanges(testClass, existing, username);
+
+        Assert.assertFalse(changes.contains("testBD"));
+        Assert.assertTrue(changes.contains("stringList"));
+        Assert.assertTrue(changes.contains("secondTestClasses"));
+        Assert.assertEquals(3, existing.getStringList().size());
+        Assert.assertEquals(3, existing.getSecondTestClasses().size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSaveChangesNeedsExistingObject() throws IllegalAccessException {
+        PropertyFilter propertyFilter = new PropertyFilterBuilder()
+                .filterUtil(filterUtil)
+                .build();
+
+        propertyFilter.parseObjectForSavingChanges(testClass, null, username, groupName);
+    }
+
+    @Test
+    public void testChangeSetDoesNotChangeExistingObject() throws IllegalAccessException, PropertyFilterException {
+        PropertyFilter propertyFilter = new PropertyFilterBuilder()
+                .filterUtil(filterUtil)
+                .build();
+
+        filterUtil.setDefaultAccessType(AccessType.UPDATE);
+        filterUtil.setDefaultPermissionType(PermissionType.WRITE);
+        List<AccessImpl> accessList = filterUtil.getFullAccessList("uk.co.agware.filter.test.classes");
+        GroupImpl group = new GroupImpl();
+        group.setName(groupName);
+        group.setAccess(accessList);
+        group.setMembers(Collections.singletonList(username));
+        propertyFilter.setGroups(Collections.singletonList(group));
+
+        List<String> existingStrings = new ArrayList<>(Arrays.asList(listString1, listString21));
+        List<SecondTestClass> existingClasses = new ArrayList<>(Collections.singletonList(new SecondTestClass(secondTestId1, 99, secondTestSecret1)));
+        TestClass existing = new TestClass(testString1, testBD2, existingStrings, existingClasses);
+
+        ChangeSet changes = propertyFilter.parseObjectForChangeSet(testClass, existing, username);
+
+        Assert.assertEquals(6, changes.size());
+        int bd = changes.indexOf("testBD");
+        Assert.assertEquals(ChangeSet.Type.SET, changes.getType(bd));
+        Assert.assertEquals(testBD2, changes.getOldValue(bd));
+        Assert.assertEquals(testBD1, changes.getNewValue(bd));
+
+        int removed = changes.indexOf("stringList");
+        Assert.assertEquals(ChangeSet.Type.REMOVE, changes.getType(removed));
+        Assert.assertEquals(listString21, changes.getOldValue(removed));
+        Assert.assertEquals(ChangeSet.Type.ADD, changes.getType(removed + 1));
+        Assert.assertEquals(listString2, changes.getNewValue(removed + 1));
+        Assert.assertEquals(ChangeSet.Type.ADD, changes.getType(removed + 2));
+        Assert.assertEquals(listString3, changes.getNewValue(removed + 2));
+
+        // Added values are filtered copies
+        int added = changes.indexOf("secondTestClasses");
+        Assert.assertEquals(ChangeSet.Type.ADD, changes.getType(added));
+        SecondTestClass addedClass = (SecondTestClass) changes.getNewValue(added);
+        Assert.assertNotSame(secondTestClass2, addedClass);
+        Assert.assertNull(addedClass.getSecret());
+
+        Assert.assertEquals(testBD2, existing.getTestBD());
+        Assert.assertEquals(Arrays.asList(listString1, listString21), existing.getStringList());
+        Assert.assertEquals(1, existing.getSecondTestClasses().size());
+    }
+
+    @Test
+    public void testCollectionChangeSet() throws IllegalAccessException, PropertyFilterException {
+        PropertyFilter propertyFilter = new PropertyFilterBuilder()
+                .filterUtil(filterUtil)
+                .build();
+
+        filterUtil.setDefaultAccessType(AccessType.UPDATE);
+        filterUtil.setDefaultPermissionType(PermissionType.WRITE);
+        List<AccessImpl> accessList = filterUtil.getFullAccessList("uk.co.agware.filter.test.classes");
+        GroupImpl group = new GroupImpl();
+        group.setName(groupName);
+        group.setAccess(accessList);
+        group.setMembers(Collections.singletonList(username));
+        propertyFilter.setGroups(Collections.singletonList(group));
+
+        List<TestClass> existing = new ArrayList<>(Arrays.asList(new TestClass(testString1, testBD2, null, null), testClass2));
+        List<TestClass> updated = Collections.singletonList(new TestClass(testString1, testBD1, null, null));
+
+        ChangeSet changes = propertyFilter.handleCollectionsForChangeSet(existing, updated, username, groupName);
+
+        Assert.assertEquals(2, changes.size());
+        Assert.assertEquals("[0].testBD", changes.getPath(0));
+        Assert.assertEquals(testBD1, changes.getNewValue(0));
+        Assert.assertEquals(ChangeSet.Type.REMOVE, changes.getType(1));
+        Assert.assertEquals("", changes.getPath(1));
+        Assert.assertSame(testClass2, changes.getOldValue(1));
+        Assert.assertEquals(testBD2, existing.get(0).getTestBD());
+    }
+
+    @Test
+    public void testRelatedObjectIsMergedIntoExisting() throws IllegalAccessException, PropertyFilterException {
+        PropertyFilter propertyFilter = new PropertyFilterBuilder()
+                .filterUtil(filterUtil)
+                .build();
+
+        filterUtil.setDefaultAccessType(AccessType.UPDATE);
+        filterUtil.setDefaultPermissionType(PermissionType.WRITE);
+        List<AccessImpl> accessList = filterUtil.getFullAccessList("uk.co.agware.filter.test.relations");
+        GroupImpl group = new GroupImpl();
+        group.setName(groupName);
+        group.setAccess(accessList);
+        group.setMembers(Collections.singletonList(username));
+        propertyFilter.setGroups(Collections.singletonList(group));
+
+        Address existingAddress = new Address("Old Street", "Stored notes");
+        Customer existing = new Customer("1", "Old Name", existingAddress);
+        Customer updated = new Customer("2", "New Name", new Address("New Street", "Changed notes"));
+
+        Customer result = propertyFilter.parseObjectForSaving(updated, existing, username);
+
+        Assert.assertSame(existing, result);
+        Assert.assertEquals("1", result.getId());
+        Assert.assertEquals("New Name", result.getName());
+        Assert.assertSame(existingAddress, result.getAddress());
+        Assert.assertEquals("New Street", existingAddress.getStreet());
+        Assert.assertEquals("Stored notes", existingAddress.getNotes());
+    }
+
+    /* A related object the group can't change is never created, whichever way the save is run */
+    @Test
+    public void testMissingReadOnlyRelationIsLeftNull() throws IllegalAccessException, PropertyFilterException {
+        PropertyFilter propertyFilter = new PropertyFilterBuilder()
+                .filterUtil(filterUtil)
+                .build();
+
+        filterUtil.setDefaultAccessType(AccessType.UPDATE);
+        filterUtil.setDefaultPermissionType(PermissionType.WRITE);
+        List<AccessImpl> accessList = filterUtil.getFullAccessList("uk.co.agware.filter.test.relations");
+        for(AccessImpl access : accessList){
+            if(access.getObjectClass().equals(Address.class.getName())) access.setAccess(AccessType.READ);
+        }
+        GroupImpl group = new GroupImpl();
+        group.setName(groupName);
+        group.setAccess(accessList);
+        group.setMembers(Collections.singletonList(username));
+        propertyFilter.setGroups(Collections.singletonList(group));
+
+        Customer updated = new Customer("1", "Name", new Address("New Street", "New notes"));
+
+        Customer saved = new Customer("1", "Name", null);
+        propertyFilter.parseObjectForSaving(updated, saved, username);
+        Assert.assertNull(saved.getAddress());
+
+        Customer tracked = new Customer("1", "Name", null);
+        Assert.assertTrue(propertyFilter.parseObjectForSavingChanges(updated, tracked, username).isEmpty());
+        Assert.assertNull(tracked.getAddress());
+
+        Customer existing = new Customer("1", "Name", null);
+        Assert.assertTrue(propertyFilter.parseObjectForChangeSet(updated, existing, username).isEmpty());
+        Assert.assertNull(existing.getAddress());
+    }
+
+    @Test
+    public void testSaveArrays() throws IllegalAccessException, PropertyFilterException {
+        PropertyFilter propertyFilter = new PropertyFilterBuilder()
+                .filterUtil(filterUtil)
+                .build();
+
+        filterUtil.setDefaultAccessType(AccessType.UPDATE);
+        filterUtil.setDefaultPermissionType(PermissionType.WRITE);
+        List<AccessImpl> accessList = filterUtil.getFullAccessList("uk.co.agware.filter.test.relations");
+        GroupImpl group = new GroupImpl();
+        group.setName(groupName);
+        group.setAccess(accessList);
+        group.setMembers(Collections.singletonList(username));
+        propertyFilter.setGroups(Collections.singletonList(group));
+
+        Address existingAddress = new Address("Street 1", "Stored notes");
+        Customer existing = new Customer("1", "Name", null);
+        long[] existingVisits = {1L, 2L};
+        existing.setVisits(existingVisits);
+        existing.setPreviousAddresses(new Address[]{existingAddress});
+
+        Customer updated = new Customer("1", "Name", null);
+        updated.setVisits(new long[]{1L, 2L});
+        updated.setPreviousAddresses(new Address[]{new Address("Street 1", "Changed notes"), new Address("Street 2", "New notes")});
+
+        Set<String> changes = propertyFilter.parseObjectForSavingChanges(updated, existing, username);
+
+        Assert.assertEquals(Collections.singleton("previousAddresses"), changes);
+        Assert.assertSame(existingVisits, existing.getVisits());
+        Assert.assertEquals(2, existing.getPreviousAddresses().length);
+        Assert.assertSame(existingAddress, existing.getPreviousAddresses()[0]);
+        Assert.assertEquals("Stored notes", existingAddress.getNotes());
+        Assert.assertEquals("Street 2", existing.getPreviousAddresses()[1].getStreet());
+        Assert.assertNull(existing.getPreviousAddresses()[1].getNotes());
+
+        updated.setVisits(new long[]{3L});
+        propertyFilter.parseObjectForSaving(updated, existing, username);
+        Assert.assertArrayEquals(new long[]{3L}, existing.getVisits());
+        Assert.assertNotSame(updated.getVisits(), existing.getVisits());
+    }
+
+    @Test
+    public void testSaveMaps() throws IllegalAccessException, PropertyFilterException {
+        PropertyFilter propertyFilter = new PropertyFilterBuilder()
+                .filterUtil(filterUtil)
+                .build();
+
+        filterUtil.setDefaultAccessType(AccessType.UPDATE);
+        filterUtil.setDefaultPermissionType(PermissionType.WRITE);
+        List<AccessImpl> accessList = filterUtil.getFullAccessList("uk.co.agware.filter.test.relations");
+        GroupImpl group = new GroupImpl();
+        group.setName(groupName);
+        group.setAccess(accessList);
+        group.setMembers(Collections.singletonList(username));
+        propertyFilter.setGroups(Collections.singletonList(group));
+
+        Address home = new Address("Street 1", "Stored notes");
+        Map<String, Address> existingBook = new LinkedHashMap<>();
+        existingBook.put("home", home);
+        existingBook.put("work", new Address("Street 2", null));
+        Customer existing = new Customer("1", "Name", null);
+        existing.setAddressBook(existingBook);
+
+        Map<String, Address> updatedBook = new LinkedHashMap<>();
+        updatedBook.put("home", new Address("Street 3", "Changed notes"));
+        updatedBook.put("holiday", new Address("Street 4", "New notes"));
+        Customer updated = new Customer("1", "Name", null);
+        updated.setAddressBook(updatedBook);
+
+        Set<String> changes = propertyFilter.parseObjectForSavingChanges(updated, existing, username);
+
+        Assert.assertEquals(new HashSet<>(Arrays.asList("addressBook[home].street", "addressBook[holiday]", "addressBook[work]")), changes);
+        Assert.assertSame(existingBook, existing.getAddressBook());
+        Assert.assertEquals(Arrays.asList("home", "holiday"), new ArrayList<>(existingBook.keySet()));
+        Assert.assertSame(home, existingBook.get("home"));
+        Assert.assertEquals("Street 3", home.getStreet());
+        Assert.assertEquals("Stored notes", home.getNotes());
+        Assert.assertNull(existingBook.get("holiday").getNotes());
+    }
 }
@@ -101,6 +101,7 @@ public class TestServiceBuilder extends Mockito {
                 .build();
         service.init();
         Assert.assertEquals("group", propertyFilter.getUsersGroup("test"));
+        Assert.assertEquals(1, propertyFilter.getSnapshotVersion()); // Set in the same change as the groups
     }
 
     @Test
@@ -146,7 +147,7 @@ public class TestServiceBuilder extends Mockito {
                 .build();
         service.init();
 
-        verify(filter).setGroups(groupsCaptor.capture());
+        verify(filter).setGroups(groupsCaptor.capture(), anyMap());
         Assert.assertEquals(1, groupsCaptor.getValue().size());
         Assert.assertTrue(groupsCaptor.getValue().contains(group));
     }
@@ -169,7 +170,7 @@ public class TestServiceBuilder extends Mockito {
                 .build();
         service.init();
 
-        verify(filter).setGroups(groupsCaptor.capture());
+        verify(filter).setGroups(groupsCaptor.capture(), anyMap());
         Assert.assertEquals(2, groupsCaptor.getValue().size());
         Assert.assertTrue(groupsCaptor.getValue().contains(group));
         Assert.assertTrue(groupsCaptor.getValue().contains(group2));
@@ -0,0 +1,34 @@
+package uk.co.agware.filter.test.json;
+
+import uk.co.agware.filter.annotations.FilterTarget;
+
+@FilterTarget("Folder")
+public class Folder {
+
+    private String name;
+    private Node root;
+
+    public Folder() {
+    }
+
+    public Folder(String name, Node root) {
+        this.name = name;
+        this.root = root;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public Node getRoot() {
+        return root;
+    }
+
+    public void setRoot(Node root) {
+        this.root = root;
+    }
+}
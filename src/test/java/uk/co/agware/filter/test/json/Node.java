@@ -0,0 +1,40 @@
+package uk.co.agware.filter.test.json;
+
+/* Not a filter target, so it is written out in full along with both sides of its relation */
+public class Node {
+
+    private String name;
+    private Node parent;
+    private Node child;
+
+    public Node() {
+    }
+
+    public Node(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public Node getParent() {
+        return parent;
+    }
+
+    public void setParent(Node parent) {
+        this.parent = parent;
+    }
+
+    public Node getChild() {
+        return child;
+    }
+
+    public void setChild(Node child) {
+        this.child = child;
+    }
+}
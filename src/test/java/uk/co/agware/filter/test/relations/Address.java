@@ -0,0 +1,48 @@
+package uk.co.agware.filter.test.relations;
+
+import uk.co.agware.filter.annotations.FilterTarget;
+import uk.co.agware.filter.annotations.NoAccess;
+
+@FilterTarget("Address")
+public class Address {
+
+    private String street;
+    @NoAccess private String notes;
+
+    public Address() {
+    }
+
+    public Address(String street, String notes) {
+        this.street = street;
+        this.notes = notes;
+    }
+
+    public String getStreet() {
+        return street;
+    }
+
+    public void setStreet(String street) {
+        this.street = street;
+    }
+
+    public String getNotes() {
+        return notes;
+    }
+
+    public void setNotes(String notes) {
+        this.notes = notes;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Address)) return false;
+        Address that = (Address) o;
+        return street != null ? street.equals(that.street) : that.street == null;
+    }
+
+    @Override
+    public int hashCode() {
+        return street != null ? street.hashCode() : 0;
+    }
+}
@@ -0,0 +1,8 @@
+package uk.co.agware.filter.test.relations;
+
+public interface AddressView {
+
+    String getStreet();
+
+    String getNotes();
+}
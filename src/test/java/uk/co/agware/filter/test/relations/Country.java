@@ -0,0 +1,47 @@
+package uk.co.agware.filter.test.relations;
+
+import uk.co.agware.filter.annotations.CacheResult;
+import uk.co.agware.filter.annotations.FilterTarget;
+import uk.co.agware.filter.annotations.NoAccess;
+
+@FilterTarget("Country")
+@CacheResult(key = "code", maximumSize = 10)
+public class Country {
+
+    private String code;
+    private String name;
+    @NoAccess private String notes;
+
+    public Country() {
+    }
+
+    public Country(String code, String name, String notes) {
+        this.code = code;
+        this.name = name;
+        this.notes = notes;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public void setCode(String code) {
+        this.code = code;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getNotes() {
+        return notes;
+    }
+
+    public void setNotes(String notes) {
+        this.notes = notes;
+    }
+}
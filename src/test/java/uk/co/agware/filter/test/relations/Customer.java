@@ -0,0 +1,74 @@
+package uk.co.agware.filter.test.relations;
+
+import uk.co.agware.filter.annotations.FilterTarget;
+import uk.co.agware.filter.annotations.ReadOnly;
+
+import java.util.Map;
+
+@FilterTarget("Customer")
+public class Customer {
+
+    @ReadOnly private String id;
+    private String name;
+    private Address address;
+    private long[] visits;
+    private Address[] previousAddresses;
+    private Map<String, Address> addressBook;
+
+    public Customer() {
+    }
+
+    public Customer(String id, String name, Address address) {
+        this.id = id;
+        this.name = name;
+        this.address = address;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public Address getAddress() {
+        return address;
+    }
+
+    public void setAddress(Address address) {
+        this.address = address;
+    }
+
+    public long[] getVisits() {
+        return visits;
+    }
+
+    public void setVisits(long[] visits) {
+        this.visits = visits;
+    }
+
+    public Address[] getPreviousAddresses() {
+        return previousAddresses;
+    }
+
+    public void setPreviousAddresses(Address[] previousAddresses) {
+        this.previousAddresses = previousAddresses;
+    }
+
+    public Map<String, Address> getAddressBook() {
+        return addressBook;
+    }
+
+    public void setAddressBook(Map<String, Address> addressBook) {
+        this.addressBook = addressBook;
+    }
+}
@@ -0,0 +1,18 @@
+package uk.co.agware.filter.test.relations;
+
+import java.util.Map;
+
+public interface CustomerView {
+
+    String getId();
+
+    String getName();
+
+    AddressView getAddress();
+
+    long[] getVisits();
+
+    Map<String, Address> getAddressBook();
+
+    void setName(String name);
+}